@@ -0,0 +1,88 @@
+package io.windmill.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import io.windmill.core.CPUSet;
+import io.windmill.core.IdleStrategy;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Base state of the benchmarks which need running {@link CPUSet}, it consists
+ * of two single CPU sockets (CPU 0 and CPU 1) and gets started once per trial.
+ *
+ * Idle strategy of the CPUs is configurable via {@code -p idle=(spin|backoff|blocking)}, blocking is the default
+ * since spinning CPUs are going to compete with benchmark threads on the machines with few cores.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public abstract class CPUSetBenchmark
+{
+    @Param({ "blocking" })
+    public String idle;
+
+    protected CPUSet cpus;
+
+    @Setup
+    public void startCPUs() throws Throwable
+    {
+        configure();
+
+        cpus = CPUSet.builder().addSocket(0).addSocket(1).setIdleStrategy(idleStrategy(idle)).build();
+        cpus.start();
+
+        setUp();
+    }
+
+    @TearDown
+    public void haltCPUs() throws Throwable
+    {
+        try
+        {
+            tearDown();
+        }
+        finally
+        {
+            cpus.halt();
+        }
+    }
+
+    /**
+     * Called before CPUs are created, e.g. to set system properties based on the benchmark parameters.
+     */
+    protected void configure() throws Throwable
+    {}
+
+    /**
+     * Called once CPUs are started.
+     */
+    protected void setUp() throws Throwable
+    {}
+
+    /**
+     * Called before CPUs are halted.
+     */
+    protected void tearDown() throws Throwable
+    {}
+
+    private static Supplier<IdleStrategy> idleStrategy(String name)
+    {
+        switch (name)
+        {
+            case "spin":
+                return IdleStrategy::busySpin;
+
+            case "backoff":
+                return () -> IdleStrategy.backoff(100, 10, 1, 1, TimeUnit.MILLISECONDS);
+
+            case "blocking":
+                return () -> IdleStrategy.blocking(1, TimeUnit.MILLISECONDS);
+
+            default:
+                throw new IllegalArgumentException("unknown idle strategy: " + name);
+        }
+    }
+}
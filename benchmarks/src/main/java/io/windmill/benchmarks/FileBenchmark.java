@@ -0,0 +1,64 @@
+package io.windmill.benchmarks;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import io.windmill.disk.File;
+import io.windmill.disk.FileContext;
+import io.windmill.disk.cache.Page;
+import io.windmill.utils.Futures;
+
+import io.netty.buffer.ByteBuf;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Cost of {@link File#read(long, int)} and {@link File#write(long, byte[])} of cached data,
+ * every request starts in the middle of the page, so it always crosses page boundary.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FileBenchmark extends CPUSetBenchmark
+{
+    private static final int POSITION = Page.PAGE_SIZE / 2;
+
+    @Param({ "4096", "16384" })
+    public int size;
+
+    private java.io.File path;
+    private File file;
+    private byte[] data;
+
+    @Override
+    protected void setUp() throws Throwable
+    {
+        path = java.io.File.createTempFile("file-", ".db");
+
+        data = new byte[size];
+        ThreadLocalRandom.current().nextBytes(data);
+
+        file = Futures.await(cpus.get(0).open(path, "rw"));
+
+        // make sure that all of the pages are cached
+        Futures.await(file.write(0, new byte[POSITION + size]));
+    }
+
+    @Override
+    protected void tearDown() throws Throwable
+    {
+        Futures.await(file.close());
+        path.delete();
+    }
+
+    @Benchmark
+    public ByteBuf read() throws Throwable
+    {
+        return Futures.await(file.read(POSITION, size));
+    }
+
+    @Benchmark
+    public FileContext write() throws Throwable
+    {
+        return Futures.await(file.write(POSITION, data));
+    }
+}
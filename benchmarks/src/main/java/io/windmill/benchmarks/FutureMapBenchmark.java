@@ -0,0 +1,61 @@
+package io.windmill.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import io.windmill.core.CPU;
+import io.windmill.core.Future;
+import io.windmill.utils.Futures;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Cost (time and allocation, use {@code -prof gc}) of transforming {@link Future}s
+ * which are already complete by the time continuation is attached, the common case
+ * for chains like {@code seek(...).flatMap(...).map(...)} over cached data.
+ *
+ * All of the transformations are performed on the CPU thread in batches of {@link #BATCH_SIZE},
+ * so results are per single {@link Future#map(io.windmill.core.tasks.Task1)} call.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FutureMapBenchmark extends CPUSetBenchmark
+{
+    private static final int BATCH_SIZE = 1024;
+
+    private CPU cpu;
+    private Future<Integer> complete;
+
+    @Override
+    protected void setUp()
+    {
+        cpu = cpus.get(0);
+        complete = Futures.constantFuture(cpu, 42);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public Integer map() throws Throwable
+    {
+        return Futures.await(cpu.schedule(() -> {
+            Future<Integer> last = null;
+            for (int i = 0; i < BATCH_SIZE; i++)
+                last = complete.map((v) -> v + 1);
+
+            // continuations on the same CPU are executed in order, so the last one completes after everything else
+            return last;
+        }).flatMap((last) -> last));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public Integer mapChain() throws Throwable
+    {
+        return Futures.await(cpu.schedule(() -> {
+            Future<Integer> last = complete;
+            for (int i = 0; i < BATCH_SIZE; i++)
+                last = last.map((v) -> v + 1);
+
+            return last;
+        }).flatMap((last) -> last));
+    }
+}
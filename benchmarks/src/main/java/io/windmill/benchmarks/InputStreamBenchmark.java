@@ -0,0 +1,84 @@
+package io.windmill.benchmarks;
+
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import io.windmill.core.CPU;
+import io.windmill.core.Future;
+import io.windmill.net.Channel;
+import io.windmill.net.io.InputStream;
+import io.windmill.utils.Futures;
+
+import io.netty.buffer.ByteBuf;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Cost of {@link InputStream#read(int)} over the loopback connection. Every invocation
+ * sends {@link #BATCH_SIZE} messages of the given size from the blocking client socket
+ * and then reads them one by one on the CPU thread.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class InputStreamBenchmark extends CPUSetBenchmark
+{
+    private static final int PORT = 31400;
+    private static final int BATCH_SIZE = 64;
+
+    @Param({ "4", "64", "1024" })
+    public int size;
+
+    private CPU cpu;
+    private Channel channel;
+    private Socket client;
+    private byte[] payload;
+
+    @Override
+    protected void setUp() throws Throwable
+    {
+        cpu = cpus.get(0);
+
+        CountDownLatch accepted = new CountDownLatch(1);
+        AtomicReference<Channel> server = new AtomicReference<>();
+
+        cpu.listen(new InetSocketAddress("127.0.0.1", PORT), (c) -> {
+            server.set(c);
+            accepted.countDown();
+        }, Throwable::printStackTrace);
+
+        client = new Socket("127.0.0.1", PORT);
+        client.setTcpNoDelay(true);
+
+        Futures.awaitUninterruptibly(accepted);
+
+        channel = server.get();
+        payload = new byte[size * BATCH_SIZE];
+    }
+
+    @Override
+    protected void tearDown() throws Throwable
+    {
+        client.close();
+        Futures.await(cpu.schedule(channel::close));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public ByteBuf read() throws Throwable
+    {
+        client.getOutputStream().write(payload);
+
+        return Futures.await(cpu.schedule(() -> {
+            InputStream input = channel.getInput();
+
+            Future<ByteBuf> last = null;
+            for (int i = 0; i < BATCH_SIZE; i++)
+                last = input.read(size);
+
+            return last;
+        }).flatMap((last) -> last));
+    }
+}
@@ -0,0 +1,54 @@
+package io.windmill.benchmarks;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import io.windmill.examples.kvs.KVClient;
+import io.windmill.examples.kvs.KVStore;
+import io.windmill.utils.Futures;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Round-trip latency of the example {@link KVStore} get and put requests over the loopback connection,
+ * store is running on both CPUs (listening on CPU 0) and the client is running on CPU 1.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class KVStoreBenchmark extends CPUSetBenchmark
+{
+    private static final InetSocketAddress ADDRESS = new InetSocketAddress("127.0.0.1", 31401);
+
+    private KVClient.Client client;
+    private ByteBuf key, value;
+
+    @Override
+    protected void setUp() throws Throwable
+    {
+        KVStore.start(cpus, ADDRESS);
+
+        client = new KVClient.Client(cpus.get(1), ADDRESS);
+        Futures.await(client.connect());
+
+        key = Unpooled.copiedBuffer("benchmark".getBytes());
+        value = Unpooled.copyLong(42);
+
+        // make sure that key exists for the gets
+        Futures.await(client.put(key.duplicate(), value.duplicate()));
+    }
+
+    @Benchmark
+    public ByteBuf put() throws Throwable
+    {
+        return Futures.await(client.put(key.duplicate(), value.duplicate()));
+    }
+
+    @Benchmark
+    public ByteBuf get() throws Throwable
+    {
+        return Futures.await(client.get(key.duplicate()));
+    }
+}
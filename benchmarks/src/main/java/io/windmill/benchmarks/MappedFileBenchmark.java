@@ -0,0 +1,67 @@
+package io.windmill.benchmarks;
+
+import java.io.RandomAccessFile;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import io.windmill.disk.File;
+import io.windmill.disk.MappedFile;
+import io.windmill.disk.cache.Page;
+import io.windmill.utils.Futures;
+
+import io.netty.buffer.ByteBuf;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Cost of {@link File#read(long, int)} of the data which is already in memory, when it's served by the page cache
+ * ("r" mode, the whole file is cached before measurement) vs. memory mapping ({@link MappedFile#MODE}).
+ * Every request starts in the middle of the page, so it always crosses page boundary.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MappedFileBenchmark extends CPUSetBenchmark
+{
+    private static final int POSITION = Page.PAGE_SIZE / 2;
+
+    @Param({ "r", MappedFile.MODE })
+    public String mode;
+
+    @Param({ "4096", "16384" })
+    public int size;
+
+    private java.io.File path;
+    private File file;
+
+    @Override
+    protected void setUp() throws Throwable
+    {
+        path = java.io.File.createTempFile("mapped-file-", ".db");
+
+        byte[] data = new byte[POSITION + size];
+        ThreadLocalRandom.current().nextBytes(data);
+
+        try (RandomAccessFile raf = new RandomAccessFile(path, "rw"))
+        {
+            raf.write(data);
+        }
+
+        file = Futures.await(cpus.get(0).open(path, mode));
+
+        // make sure that everything is in memory before measurement starts
+        Futures.await(file.read(0, data.length));
+    }
+
+    @Override
+    protected void tearDown() throws Throwable
+    {
+        Futures.await(file.close());
+        path.delete();
+    }
+
+    @Benchmark
+    public ByteBuf read() throws Throwable
+    {
+        return Futures.await(file.read(POSITION, size));
+    }
+}
@@ -0,0 +1,82 @@
+package io.windmill.benchmarks;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import io.windmill.net.io.InputStream;
+import io.windmill.net.io.OutputStream;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Round trip of a small message over the loopback connection served by a single CPU
+ * which also has the given number of idle connections registered with its selector.
+ *
+ * Compares the array-backed selected key set with the plain JDK one ({@code -p optimizeSelector=false}).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class NetworkBenchmark extends CPUSetBenchmark
+{
+    private static final int PORT = 31402;
+
+    @Param({ "true", "false" })
+    public boolean optimizeSelector;
+
+    @Param({ "0", "256" })
+    public int idleConnections;
+
+    private final List<Socket> clients = new ArrayList<>();
+
+    private DataInputStream input;
+    private DataOutputStream output;
+
+    @Override
+    protected void configure()
+    {
+        // benchmark is forked for every combination of parameters, so the property is read by a fresh JVM
+        System.setProperty("windmill.net.optimize_selector", Boolean.toString(optimizeSelector));
+    }
+
+    @Override
+    protected void setUp() throws Throwable
+    {
+        cpus.get(0).listen(new InetSocketAddress("127.0.0.1", PORT), (c) -> {
+            InputStream in = c.getInput();
+            OutputStream out = c.getOutput();
+
+            c.loop((cpu) -> in.readLong().flatMap((v) -> out.writeLong(v).flush()));
+        }, Throwable::printStackTrace);
+
+        for (int i = 0; i < idleConnections; i++)
+            clients.add(new Socket("127.0.0.1", PORT));
+
+        Socket client = new Socket("127.0.0.1", PORT);
+        client.setTcpNoDelay(true);
+        clients.add(client);
+
+        input = new DataInputStream(client.getInputStream());
+        output = new DataOutputStream(client.getOutputStream());
+    }
+
+    @Override
+    protected void tearDown() throws Throwable
+    {
+        for (Socket client : clients)
+            client.close();
+    }
+
+    @Benchmark
+    public long roundTrip() throws Throwable
+    {
+        output.writeLong(42);
+        output.flush();
+
+        return input.readLong();
+    }
+}
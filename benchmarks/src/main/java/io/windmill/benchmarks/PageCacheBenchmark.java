@@ -0,0 +1,100 @@
+package io.windmill.benchmarks;
+
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import io.windmill.core.CPU;
+import io.windmill.core.Future;
+import io.windmill.disk.cache.Page;
+import io.windmill.disk.cache.PageCache;
+import io.windmill.utils.Futures;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Cost of {@link PageCache#getOrCreate(int)} when the page is already in the cache (hit, radix tree search only)
+ * and when it has to be loaded from the file by the I/O threads (miss). Every invocation requests {@link #BATCH_SIZE}
+ * pages on the CPU thread.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PageCacheBenchmark extends CPUSetBenchmark
+{
+    private static final int PAGES = 1024;
+    private static final int BATCH_SIZE = 256;
+
+    private CPU cpu;
+    private java.io.File path;
+    private RandomAccessFile file;
+    private PageCache cache;
+
+    // the next page to request, only accessed by the CPU thread
+    private int nextPage;
+
+    @Override
+    protected void setUp() throws Throwable
+    {
+        cpu = cpus.get(0);
+        path = java.io.File.createTempFile("page-cache-", ".db");
+
+        file = new RandomAccessFile(path, "rw");
+        file.setLength((long) PAGES * Page.PAGE_SIZE);
+
+        cache = new PageCache(cpu, file.getChannel());
+
+        // populate the cache with every page of the file
+        Futures.await(cpu.schedule(() -> {
+            List<Future<Page>> pages = new ArrayList<>(PAGES);
+            for (int i = 0; i < PAGES; i++)
+                pages.add(cache.getOrCreate(i));
+
+            return cpu.sequence(pages);
+        }).flatMap((pages) -> pages));
+    }
+
+    @Override
+    protected void tearDown() throws Throwable
+    {
+        file.close();
+        path.delete();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public Page hit() throws Throwable
+    {
+        return Futures.await(cpu.schedule(() -> {
+            Future<Page> last = null;
+            for (int i = 0; i < BATCH_SIZE; i++)
+                last = cache.getOrCreate(nextPage());
+
+            return last;
+        }).flatMap((last) -> last));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public List<Page> miss() throws Throwable
+    {
+        return Futures.await(cpu.schedule(() -> {
+            List<Future<Page>> pages = new ArrayList<>(BATCH_SIZE);
+            for (int i = 0; i < BATCH_SIZE; i++)
+            {
+                int page = nextPage();
+
+                // pages are clean, so eviction is immediate
+                cache.evictPage(page);
+                pages.add(cache.getOrCreate(page));
+            }
+
+            return cpu.sequence(pages);
+        }).flatMap((pages) -> pages));
+    }
+
+    private int nextPage()
+    {
+        return nextPage++ & (PAGES - 1);
+    }
+}
@@ -0,0 +1,81 @@
+package io.windmill.benchmarks;
+
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import io.windmill.core.CPU;
+import io.windmill.core.Future;
+import io.windmill.disk.cache.Page;
+import io.windmill.disk.cache.PageCache;
+import io.windmill.utils.Futures;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Throughput of the page loads done by the I/O threads of a single CPU, every invocation faults in
+ * {@link #BATCH_SIZE} random (previously evicted) pages of the same file, each one by a separate I/O task,
+ * so they are read concurrently by all of the I/O threads of the CPU.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class PageIOBenchmark extends CPUSetBenchmark
+{
+    private static final int PAGES = 4096;
+    private static final int BATCH_SIZE = 64;
+
+    @Param({ "1", "4" })
+    public int ioThreads;
+
+    private CPU cpu;
+    private java.io.File path;
+    private RandomAccessFile file;
+    private PageCache cache;
+
+    @Override
+    protected void configure()
+    {
+        // benchmark is forked for every combination of parameters, so the property is read by a fresh JVM
+        System.setProperty("windmill.cpu.io_threads", Integer.toString(ioThreads));
+    }
+
+    @Override
+    protected void setUp() throws Throwable
+    {
+        cpu = cpus.get(0);
+        path = java.io.File.createTempFile("page-io-", ".db");
+
+        file = new RandomAccessFile(path, "rw");
+        file.setLength((long) PAGES * Page.PAGE_SIZE);
+
+        cache = new PageCache(cpu, file.getChannel());
+    }
+
+    @Override
+    protected void tearDown() throws Throwable
+    {
+        file.close();
+        path.delete();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public List<Page> load() throws Throwable
+    {
+        return Futures.await(cpu.schedule(() -> {
+            List<Future<Page>> pages = new ArrayList<>(BATCH_SIZE);
+            for (int i = 0; i < BATCH_SIZE; i++)
+            {
+                int page = ThreadLocalRandom.current().nextInt(PAGES);
+
+                // pages are clean, so eviction is immediate
+                cache.evictPage(page);
+                pages.add(cache.getOrCreate(page));
+            }
+
+            return cpu.sequence(pages);
+        }).flatMap((pages) -> pages));
+    }
+}
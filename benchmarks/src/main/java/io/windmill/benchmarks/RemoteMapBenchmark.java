@@ -0,0 +1,43 @@
+package io.windmill.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import io.windmill.core.CPU;
+import io.windmill.core.Future;
+import io.windmill.utils.Futures;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Latency of {@link Future#map(CPU, io.windmill.core.tasks.Task1)} hand-off between two CPUs,
+ * each invocation ping-pongs a value between CPU 0 and CPU 1 {@link #HOPS} times,
+ * so the result is the cost of a single cross-CPU hop.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RemoteMapBenchmark extends CPUSetBenchmark
+{
+    private static final int HOPS = 256;
+
+    private CPU a, b;
+
+    @Override
+    protected void setUp()
+    {
+        a = cpus.get(0);
+        b = cpus.get(1);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(HOPS)
+    public Integer pingPong() throws Throwable
+    {
+        return Futures.await(a.schedule(() -> {
+            Future<Integer> last = Futures.constantFuture(a, 0);
+            for (int i = 0; i < HOPS; i++)
+                last = last.map((i & 1) == 0 ? b : a, (v) -> v + 1);
+
+            return last;
+        }).flatMap((last) -> last));
+    }
+}
@@ -0,0 +1,72 @@
+package io.windmill.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import io.windmill.core.CPU;
+import io.windmill.core.Future;
+import io.windmill.core.tasks.Task0;
+import io.windmill.utils.Futures;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Throughput of {@link CPU#schedule(Task0)} from the threads outside of the CPU,
+ * with one and multiple producers competing for the run queue, and from the CPU thread itself.
+ * Every invocation publishes {@link #BATCH_SIZE} tasks and waits for the last one to complete.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ScheduleBenchmark extends CPUSetBenchmark
+{
+    private static final int BATCH_SIZE = 1024;
+
+    private static final Task0<Integer> TASK = () -> 42;
+
+    private CPU cpu;
+
+    @Override
+    protected void setUp()
+    {
+        cpu = cpus.get(0);
+    }
+
+    @Benchmark
+    @Threads(1)
+    @OperationsPerInvocation(BATCH_SIZE)
+    public Integer singleProducer() throws Throwable
+    {
+        return produce();
+    }
+
+    @Benchmark
+    @Threads(4)
+    @OperationsPerInvocation(BATCH_SIZE)
+    public Integer multiProducer() throws Throwable
+    {
+        return produce();
+    }
+
+    @Benchmark
+    @Threads(1)
+    @OperationsPerInvocation(BATCH_SIZE)
+    public Integer selfSchedule() throws Throwable
+    {
+        // tasks scheduled by the CPU thread onto its own CPU, e.g. continuations
+        return Futures.await(cpu.schedule(() -> {
+            Future<Integer> last = null;
+            for (int i = 0; i < BATCH_SIZE; i++)
+                last = cpu.schedule(TASK);
+
+            return last;
+        }).flatMap((last) -> last));
+    }
+
+    private Integer produce() throws Throwable
+    {
+        Future<Integer> last = null;
+        for (int i = 0; i < BATCH_SIZE; i++)
+            last = cpu.schedule(TASK);
+
+        return Futures.await(last);
+    }
+}
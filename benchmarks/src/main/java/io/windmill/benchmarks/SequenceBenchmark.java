@@ -0,0 +1,42 @@
+package io.windmill.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import io.windmill.core.CPU;
+import io.windmill.core.Future;
+import io.windmill.utils.Futures;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Cost of {@link CPU#sequence(List)} fan-in on CPU 0 of {@link #size} complete futures,
+ * half of which belong to CPU 0 and the other half to CPU 1.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SequenceBenchmark extends CPUSetBenchmark
+{
+    @Param({ "16", "256" })
+    public int size;
+
+    private CPU cpu;
+    private List<Future<Integer>> futures;
+
+    @Override
+    protected void setUp()
+    {
+        cpu = cpus.get(0);
+        futures = new ArrayList<>(size);
+
+        for (int i = 0; i < size; i++)
+            futures.add(Futures.constantFuture(cpus.get(i & 1), i));
+    }
+
+    @Benchmark
+    public List<Integer> sequence() throws Throwable
+    {
+        return Futures.await(cpu.sequence(futures));
+    }
+}
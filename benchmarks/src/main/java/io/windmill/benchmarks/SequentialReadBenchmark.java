@@ -0,0 +1,74 @@
+package io.windmill.benchmarks;
+
+import java.io.RandomAccessFile;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import io.windmill.core.CPU;
+import io.windmill.core.Future;
+import io.windmill.disk.File;
+import io.windmill.utils.Futures;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Cost of scanning the whole file sequentially with reads of the given size, every invocation opens the file,
+ * so all of the pages have to be loaded into the page cache (the data is most likely in the OS page cache though).
+ * Read-ahead could be disabled with {@code -jvmArgsAppend -Dwindmill.disk.max_read_ahead_pages=0} for comparison.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SequentialReadBenchmark extends CPUSetBenchmark
+{
+    private static final int FILE_SIZE = 4 * 1024 * 1024;
+
+    @Param({ "4096", "65536" })
+    public int size;
+
+    private CPU cpu;
+    private java.io.File path;
+
+    @Override
+    protected void setUp() throws Throwable
+    {
+        cpu = cpus.get(0);
+        path = java.io.File.createTempFile("sequential-read-", ".db");
+
+        byte[] data = new byte[FILE_SIZE];
+        ThreadLocalRandom.current().nextBytes(data);
+
+        try (RandomAccessFile file = new RandomAccessFile(path, "rw"))
+        {
+            file.write(data);
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Throwable
+    {
+        path.delete();
+    }
+
+    @Benchmark
+    public long scan() throws Throwable
+    {
+        File file = Futures.await(cpu.open(path, "r"));
+
+        try
+        {
+            return Futures.await(scan(file, 0, 0L));
+        }
+        finally
+        {
+            Futures.await(file.close());
+        }
+    }
+
+    private Future<Long> scan(File file, long position, long checksum)
+    {
+        if (position >= FILE_SIZE)
+            return Futures.constantFuture(cpu, checksum);
+
+        return file.read(position, size).flatMap((buffer) -> scan(file, position + size, checksum + buffer.getByte(0)));
+    }
+}
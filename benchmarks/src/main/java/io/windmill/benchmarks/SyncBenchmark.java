@@ -0,0 +1,95 @@
+package io.windmill.benchmarks;
+
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import io.windmill.core.CPU;
+import io.windmill.core.Future;
+import io.windmill.disk.cache.Page;
+import io.windmill.disk.cache.PageCache;
+import io.windmill.utils.Futures;
+
+import io.netty.buffer.Unpooled;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Latency of the page cache write-back, every invocation dirties {@link #pages} contiguous cached pages
+ * of the file (starting at the random page) and either syncs them or evicts them (and loads them back).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SyncBenchmark extends CPUSetBenchmark
+{
+    private static final int PAGES = 1024;
+
+    @Param({ "16", "256" })
+    public int pages;
+
+    private CPU cpu;
+    private java.io.File path;
+    private RandomAccessFile file;
+    private PageCache cache;
+    private List<Page> cached;
+    private byte[] data;
+
+    @Override
+    protected void setUp() throws Throwable
+    {
+        cpu = cpus.get(0);
+        path = java.io.File.createTempFile("sync-", ".db");
+
+        file = new RandomAccessFile(path, "rw");
+        file.setLength((long) PAGES * Page.PAGE_SIZE);
+
+        cache = new PageCache(cpu, file.getChannel());
+        cached = Futures.await(cpu.schedule(() -> cache.getOrCreate(0, PAGES)).flatMap((f) -> f));
+
+        data = new byte[Page.PAGE_SIZE];
+        ThreadLocalRandom.current().nextBytes(data);
+    }
+
+    @Override
+    protected void tearDown() throws Throwable
+    {
+        file.close();
+        path.delete();
+    }
+
+    @Benchmark
+    public int sync() throws Throwable
+    {
+        return Futures.await(cpu.schedule(() -> {
+            int first = ThreadLocalRandom.current().nextInt(PAGES - pages + 1);
+            for (int i = first; i < first + pages; i++)
+                cached.get(i).write((short) 0, Unpooled.wrappedBuffer(data));
+
+            return cache.sync();
+        }).flatMap((flushed) -> flushed));
+    }
+
+    @Benchmark
+    public List<Page> evict() throws Throwable
+    {
+        return Futures.await(cpu.schedule(() -> {
+            int first = ThreadLocalRandom.current().nextInt(PAGES - pages + 1);
+            List<Future<Void>> evictions = new ArrayList<>(pages);
+
+            for (int i = first; i < first + pages; i++)
+            {
+                cached.get(i).write((short) 0, Unpooled.wrappedBuffer(data));
+                evictions.add(cache.evictPage(i));
+            }
+
+            return cpu.sequence(evictions).flatMap((evicted) -> cache.getOrCreate(first, pages)).map((loaded) -> {
+                for (int i = 0; i < loaded.size(); i++)
+                    cached.set(first + i, loaded.get(i));
+
+                return loaded;
+            });
+        }).flatMap((loaded) -> loaded));
+    }
+}
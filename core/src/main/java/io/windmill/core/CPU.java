@@ -1,29 +1,42 @@
 package io.windmill.core;
 
+import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.channels.Selector;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
+import java.util.IdentityHashMap;
 import java.util.List;
-import java.util.concurrent.DelayQueue;
-import java.util.concurrent.Delayed;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedDeque;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 import io.windmill.core.tasks.*;
 import io.windmill.core.Status.Flag;
+import io.windmill.core.metrics.CPUMetrics;
 import io.windmill.disk.File;
 import io.windmill.disk.IOService;
 import io.windmill.disk.IOTask;
-import io.windmill.disk.PageRef;
+import io.windmill.disk.cache.PageArena;
+import io.windmill.disk.cache.PageReplacer;
 import io.windmill.net.Channel;
 import io.windmill.net.Network;
+import io.windmill.utils.Futures;
 import io.windmill.utils.IOUtils;
 
-import com.github.benmanes.caffeine.cache.Cache;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
 
 import com.lmax.disruptor.BusySpinWaitStrategy;
 import com.lmax.disruptor.EventPoller;
 import com.lmax.disruptor.EventPoller.PollState;
+import com.lmax.disruptor.InsufficientCapacityException;
 import com.lmax.disruptor.RingBuffer;
 import com.lmax.disruptor.dsl.ProducerType;
 
@@ -53,30 +66,113 @@ public class CPU
     // default number of I/O threads per CPU
     private static final int DEFAULT_IO_THREADS = Integer.getInteger("windmill.cpu.io_threads", 4);
 
-    private static final EventPoller.Handler<WorkEvent> HANDLER = (event, sequence, endOfBatch) -> {
-        event.run();
-        return false;
-    };
+    // default resolution of the timers
+    public static final long DEFAULT_TIMER_TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    // page size and max order of the per-CPU buffer pool, chunks are 8KB << 9 = 4MB
+    private static final int ALLOCATOR_PAGE_SIZE = 8192;
+    private static final int ALLOCATOR_MAX_ORDER = 9;
+
+    // default capacity of the run queue
+    public static final int DEFAULT_RUN_QUEUE_SIZE = 1 << 20;
+
+    // how long producer waits before checking if full run queue has some space again
+    private static final long OVERLOAD_BACKOFF_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    // minimal interval between warnings about the full run queue
+    private static final long OVERLOAD_WARNING_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    // CPU which owns the current thread, if any, only used on the slow path when run queue of another CPU is full
+    private static final ThreadLocal<CPU> CURRENT = new ThreadLocal<>();
 
     private volatile boolean isHalted = false;
 
+    // set to false only while CPU is blocked (or about to block) in the selector or parked,
+    // producers use it to decide if CPU has to be woken up after publishing new work.
+    private final AtomicBoolean isAwake = new AtomicBoolean(true);
+
+    // the thread executing run loop of this CPU
+    private volatile Thread thread;
+
+    // idle/busy iterations of the run loop, updated only by the CPU thread
+    private long idleCycles, busyCycles;
+
+    // number of nested Future continuations currently executing inline on the CPU thread (see Future#map(CPU, Task1))
+    int inlineDepth;
+
+    // last time the warning about full run queue has been logged (see #publish(Promise))
+    private final AtomicLong lastOverloadWarning = new AtomicLong(System.nanoTime() - OVERLOAD_WARNING_INTERVAL_NANOS);
+
     protected final CpuLayout layout;
     protected final int id;
     protected final CPUSet.Socket socket;
+    // work scheduled by other threads (e.g. other CPUs, I/O threads)
     protected final RingBuffer<WorkEvent> runQueue;
+    protected final EventPoller<WorkEvent> poller;
+
+    // work scheduled by the thread of this CPU on itself (e.g. continuations),
+    // only ever accessed by the CPU thread, so it doesn't need any synchronization.
+    protected final Queue<Promise<?>> localQueue = new ArrayDeque<>();
+
+    // size of the local queue published by the CPU thread (lazily), so it could be read by
+    // other threads (e.g. metrics and placement) without touching the queue itself.
+    protected final AtomicInteger localQueueDepth = new AtomicInteger();
+
+    // work scheduled by this CPU on other CPUs whose run queues were full at the time, queued separately
+    // for every target CPU, so one overloaded CPU doesn't hold back the work for the rest of them,
+    // re-published by the run loop, so CPU never blocks waiting for another one (which could deadlock).
+    protected final Map<CPU, Queue<Promise<?>>> spillQueues = new IdentityHashMap<>();
+    // total number of tasks waiting in the spill queues, only ever accessed by the CPU thread
+    protected int spilledTasks;
+
+    // work which could be executed by any CPU of the same socket (see #scheduleStealable(Task0)),
+    // owner takes tasks from the head and thieves from the tail, so they rarely contend on the same task.
+    protected final Deque<StealableTask<?>> stealableQueue = new ConcurrentLinkedDeque<>();
+    // size of the stealable queue, maintained separately because ConcurrentLinkedDeque#size() is O(n)
+    protected final AtomicInteger stealableBacklog = new AtomicInteger();
+
+    // pool of direct buffers used by the network receive path, each CPU gets its own arena
+    // and thread cache, so allocation and release by the CPU thread are uncontended.
+    protected final ByteBufAllocator allocator;
+
+    // off-heap memory of the pages cached by the files of the CPUs of the socket, sized by CPUSet.Builder#setPageCacheSize
+    protected final PageArena pageArena;
+    // decides which pages of the files of this CPU to evict, budget is rebalanced between CPUs of the socket
+    protected final PageReplacer pageReplacer;
+
     protected final IOService io;
     protected final Network network;
-    protected final DelayQueue<TimerTask> timers;
-
-    CPU(CpuLayout layout, int cpuId, CPUSet.Socket socket, Cache<PageRef, Boolean> pageTracker)
+    protected final TimerWheel timers;
+    protected final IdleStrategy idleStrategy;
+    protected final CPUMetrics metrics;
+
+    private final EventPoller.Handler<WorkEvent> handler = this::execute;
+
+    CPU(CpuLayout layout,
+        int cpuId,
+        CPUSet.Socket socket,
+        IdleStrategy idleStrategy,
+        long timerTickNanos,
+        int runQueueSize,
+        PageArena pageArena,
+        int pageBudget)
     {
         this.layout = layout;
         this.id = cpuId;
         this.socket = socket;
-        this.runQueue = RingBuffer.create(ProducerType.MULTI, WorkEvent::new, 1 << 20, new BusySpinWaitStrategy());
-        this.io = new IOService(this, pageTracker, DEFAULT_IO_THREADS);
+        // waiting is handled by the idle strategy of the run loop, so ring buffer itself never has to signal anybody
+        this.runQueue = RingBuffer.create(ProducerType.MULTI, WorkEvent::new, runQueueSize, new BusySpinWaitStrategy());
+        this.poller = runQueue.newPoller();
+        // producers must never overwrite work which hasn't been processed by the CPU yet
+        this.runQueue.addGatingSequences(poller.getSequence());
+        this.allocator = new PooledByteBufAllocator(true, 0, 1, ALLOCATOR_PAGE_SIZE, ALLOCATOR_MAX_ORDER);
+        this.pageArena = pageArena;
+        this.pageReplacer = new PageReplacer(this, pageBudget);
+        this.io = new IOService(this, DEFAULT_IO_THREADS);
         this.network = new Network(this);
-        this.timers = new DelayQueue<>();
+        this.timers = new TimerWheel(timerTickNanos, System.nanoTime());
+        this.idleStrategy = idleStrategy;
+        this.metrics = new CPUMetrics(this, runQueue, localQueueDepth::get, timers::size, io);
     }
 
     /**
@@ -87,6 +183,32 @@ public class CPU
         return id;
     }
 
+    /**
+     * @return the number of run loop iterations which didn't find any work to do,
+     *         the value is updated by the CPU thread without any synchronization so it's approximate.
+     */
+    public long getIdleCycles()
+    {
+        return idleCycles;
+    }
+
+    /**
+     * @return the number of run loop iterations which performed some work,
+     *         the value is updated by the CPU thread without any synchronization so it's approximate.
+     */
+    public long getBusyCycles()
+    {
+        return busyCycles;
+    }
+
+    /**
+     * @return the current state of the runtime metrics of this CPU, safe to be called from any thread.
+     */
+    public CPUMetrics.Snapshot getMetrics()
+    {
+        return metrics.snapshot();
+    }
+
     /**
      * @return the {@link CpuLayout} this {@link CPU} belongs to
      */
@@ -108,6 +230,15 @@ public class CPU
         network.listen(address, onAccept, onFailure);
     }
 
+    /**
+     * Bind a socket with SO_REUSEPORT to a given address, so that other CPUs could listen on the same address,
+     * connections are accepted by, and assigned to, this CPU (see {@link CPUSet#listen(InetSocketAddress, VoidTask1, VoidTask1)}).
+     */
+    void listenReusePort(InetSocketAddress address, VoidTask1<Channel> onAccept, VoidTask1<Throwable> onFailure)
+    {
+        network.listen(address, onAccept, onFailure, true);
+    }
+
     /**
      * Try to make a connection to the given {@link InetSocketAddress}.
      *
@@ -145,6 +276,133 @@ public class CPU
         return schedule(new Promise<>(this, task));
     }
 
+    /**
+     * Schedule arbitrary work, which does not return a value, on this CPU unless its run queue is full,
+     * see {@link #trySchedule(Task0)}.
+     *
+     * @param task the work to execute
+     * @return a {@link Future} that can be used to interact with the completion of the work, failed with
+     * {@link OverloadedException} if the work has been rejected.
+     */
+    public Future<Void> trySchedule(VoidTask0 task)
+    {
+        return trySchedule(() -> { task.compute(); return null; });
+    }
+
+    /**
+     * Schedule work on this CPU unless its run queue is full. Unlike {@link #schedule(Task0)}, which
+     * waits for the space in the run queue to become available, work is rejected right away if
+     * the CPU is overloaded, which allows callers to shed the load gracefully.
+     *
+     * @param task the work to execute
+     * @param <O> the type of value the work returns
+     * @return a {@link Future} that can be used to schedule more work based on the result, failed with
+     * {@link OverloadedException} if the work has been rejected.
+     */
+    public <O> Future<O> trySchedule(Task0<O> task)
+    {
+        Promise<O> promise = new Promise<>(this, task);
+
+        if (isCurrent() ? localQueue.size() < runQueue.getBufferSize() : tryPublish(promise))
+        {
+            if (isCurrent())
+                enqueueLocal(promise);
+
+            return promise.getFuture();
+        }
+
+        if (CPUMetrics.ENABLED)
+            metrics.recordRejected();
+
+        return Futures.failedFuture(this, new OverloadedException(id, runQueue.getBufferSize()));
+    }
+
+    /**
+     * Schedule work which is allowed to be executed by any idle CPU of the same socket (see {@link StealableTask}),
+     * as decided by the {@link StealingPolicy} of the {@link CPUSet}. The result is always delivered to,
+     * and continuations executed by, this CPU. Stealable tasks are not ordered in respect to each other
+     * or any other work scheduled on the CPU.
+     *
+     * @param task the self-contained work to execute, it must not access any CPU-affine state (channels, files, page cache)
+     * @param <O> the type of value the work returns
+     * @return a {@link Future} that can be used to schedule more work based on the result, or to handle
+     * any exceptions that occurred during execution.
+     */
+    public <O> Future<O> scheduleStealable(Task0<O> task)
+    {
+        StealableTask<O> stealable = new StealableTask<>(this, task);
+
+        stealableQueue.addLast(stealable);
+        int backlog = stealableBacklog.incrementAndGet();
+
+        if (!isCurrent())
+            wakeup();
+
+        // there is more work than this CPU could start right away, let idle siblings know about it
+        if (backlog > 1)
+            socket.wakeupThieves(this);
+
+        return stealable.getFuture();
+    }
+
+    /**
+     * @return the pooled allocator of direct buffers owned by this CPU, buffers should be allocated
+     *         by the CPU thread, but could be released by any thread.
+     */
+    public ByteBufAllocator getAllocator()
+    {
+        return allocator;
+    }
+
+    /**
+     * @return the off-heap storage for the pages of the files opened by this CPU, shared by the CPUs of its socket.
+     */
+    public PageArena getPageArena()
+    {
+        return pageArena;
+    }
+
+    /**
+     * @return the page replacement policy of the pages of the files opened by this CPU.
+     */
+    public PageReplacer getPageReplacer()
+    {
+        return pageReplacer;
+    }
+
+    /**
+     * @return the number of tasks waiting in the run queue and the local queue of this CPU (approximate).
+     */
+    public int getRunQueueDepth()
+    {
+        return (int) (runQueue.getBufferSize() - runQueue.remainingCapacity()) + localQueueDepth.get();
+    }
+
+    /**
+     * @return the number of channels (including listening sockets) currently assigned to this CPU (approximate).
+     */
+    public int getOpenChannels()
+    {
+        return network.getRegisteredChannels();
+    }
+
+    /**
+     * @return the load of this CPU used for placement decisions (see {@link PlacementStrategy#powerOfTwoChoices()}),
+     *         which is the number of queued tasks plus the number of open channels.
+     */
+    public int getLoad()
+    {
+        return getRunQueueDepth() + getOpenChannels();
+    }
+
+    /**
+     * @return the number of stealable tasks (see {@link #scheduleStealable(Task0)}) waiting to be executed (approximate).
+     */
+    public int getStealableBacklog()
+    {
+        return stealableBacklog.get();
+    }
+
     /**
      * Schedule work on one of the IO threads managed by this CPU. This is intended for work that
      * performs IO, enabling asynchronous IO
@@ -242,21 +500,29 @@ public class CPU
      * @param unit the unit of {@code duration}
      * @param then the work to execute after the given delay
      * @param <O> the type of value the work returns
-     * @return a {@link Future} allow work to be scheduled based on the result
-     * of the work executing after the given delay
+     * @return a {@link Timer} allow work to be scheduled based on the result
+     * of the work executing after the given delay, or to cancel the work before delay expires.
      */
-    public <O> Future<O> sleep(long duration, TimeUnit unit, Task0<O> then)
+    public <O> Timer<O> sleep(long duration, TimeUnit unit, Task0<O> then)
     {
-        Promise<O> promise = new Promise<>(this, then);
-        timers.add(new TimerTask<>(unit.toNanos(duration), promise));
-        return promise.getFuture();
+        Timer<O> timer = new Timer<>(this, then);
+        // deadline is based on the time of the call, not the time timer is handed off to the CPU thread
+        long deadline = System.nanoTime() + unit.toNanos(duration);
+
+        if (isCurrent())
+            timers.schedule(timer, deadline);
+        else
+            schedule(() -> timers.schedule(timer, deadline));
+
+        return timer;
     }
 
     /**
      * Open a file asynchronously
      *
      * @param path the absolute or relative path to the file
-     * @param mode see {@link java.io.RandomAccessFile} for a description of this argument
+     * @param mode see {@link java.io.RandomAccessFile} for a description of this argument,
+     *             or {@link io.windmill.disk.MappedFile#MODE} to memory map the file for reading
      * @return a {@link Future} that can be used to perform operations on the file,
      * if successfully opened, or handle any exceptions that may have occurred
      */
@@ -269,7 +535,8 @@ public class CPU
      * Open a file asynchronously
      *
      * @param file the file to open
-     * @param mode see {@link java.io.RandomAccessFile} for a description of this argument
+     * @param mode see {@link java.io.RandomAccessFile} for a description of this argument,
+     *             or {@link io.windmill.disk.MappedFile#MODE} to memory map the file for reading
      * @return a {@link Future} that can be used to perform operations on the file,
      * if successfully opened, or handle any exceptions that may have occurred
      */
@@ -278,9 +545,75 @@ public class CPU
         return io.open(file.getAbsolutePath(), mode);
     }
 
+    private void enqueueLocal(Promise<?> promise)
+    {
+        localQueue.add(promise);
+        localQueueDepth.lazySet(localQueue.size());
+    }
+
     protected <O> Future<O> schedule(Promise<O> promise)
     {
-        long sequence = runQueue.next();
+        // CPU is the only producer for its own local queue, no need for synchronization or wakeup
+        if (isCurrent())
+        {
+            enqueueLocal(promise);
+            return promise.getFuture();
+        }
+
+        publish(promise);
+        return promise.getFuture();
+    }
+
+    private void publish(Promise<?> promise)
+    {
+        CPU producer = CURRENT.get();
+
+        // once some of the work for this CPU has been spilled, the rest has to queue up behind it,
+        // otherwise it could overtake the spilled work as soon as there is space in the run queue
+        Queue<Promise<?>> spillQueue = producer == null ? null : producer.spillQueues.get(this);
+        if (spillQueue != null && !spillQueue.isEmpty())
+        {
+            producer.spill(this, promise);
+            return;
+        }
+
+        while (!tryPublish(promise))
+        {
+            // other CPUs never wait, work is going to be re-published by their run loop
+            if (producer != null)
+            {
+                producer.spill(this, promise);
+                return;
+            }
+
+            long now = System.nanoTime();
+            long lastWarning = lastOverloadWarning.get();
+
+            if (now - lastWarning >= OVERLOAD_WARNING_INTERVAL_NANOS && lastOverloadWarning.compareAndSet(lastWarning, now))
+                logger.warn("run queue of CPU {} is full (capacity {}), {} is waiting for it to drain...", new Object[] { id, runQueue.getBufferSize(), Thread.currentThread().getName() });
+
+            LockSupport.parkNanos(this, OVERLOAD_BACKOFF_NANOS);
+        }
+    }
+
+    private void spill(CPU target, Promise<?> promise)
+    {
+        spillQueues.computeIfAbsent(target, (cpu) -> new ArrayDeque<>()).add(promise);
+        spilledTasks++;
+    }
+
+    private boolean tryPublish(Promise<?> promise)
+    {
+        long sequence;
+
+        try
+        {
+            sequence = runQueue.tryNext();
+        }
+        catch (InsufficientCapacityException e)
+        {
+            return false;
+        }
 
         try
         {
@@ -292,7 +625,108 @@ public class CPU
             runQueue.publish(sequence);
         }
 
-        return promise.getFuture();
+        wakeup();
+        return true;
+    }
+
+    /**
+     * Wake up CPU thread if it's blocked in the selector waiting for work.
+     */
+    protected void wakeup()
+    {
+        if (!isAwake.get() && isAwake.compareAndSet(false, true))
+        {
+            network.wakeup();
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * @return True if CPU thread is blocked (or about to block) waiting for work.
+     */
+    boolean isIdle()
+    {
+        return !isAwake.get();
+    }
+
+    /**
+     * Park CPU thread until new work is scheduled or given timeout expires,
+     * unlike {@link #block(long)} this doesn't wait for network events.
+     *
+     * @param timeoutNanos The maximum amount of time to park for.
+     */
+    protected void park(long timeoutNanos)
+    {
+        isAwake.set(false);
+
+        try
+        {
+            if (!hasPendingWork())
+                LockSupport.parkNanos(this, timeoutNanos);
+        }
+        finally
+        {
+            isAwake.set(true);
+        }
+    }
+
+    /**
+     * Block CPU thread in the network selector until new work is scheduled,
+     * network becomes ready or given timeout expires.
+     *
+     * @param timeoutNanos The maximum amount of time to block for.
+     */
+    protected void block(long timeoutNanos)
+    {
+        isAwake.set(false);
+
+        try
+        {
+            // work could have been published before awake flag was reset,
+            // in such case producer is not going to wake selector up.
+            if (hasPendingWork())
+                return;
+
+            int selectedKeys = network.poll(timeoutNanos);
+
+            if (CPUMetrics.ENABLED)
+                metrics.recordSelectedKeys(selectedKeys);
+        }
+        catch (IOException e)
+        {
+            logger.error("failed to poll network", e);
+        }
+        finally
+        {
+            isAwake.set(true);
+        }
+    }
+
+    /**
+     * @return True if this method is called by the thread running this CPU.
+     */
+    public boolean isCurrent()
+    {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * @return True if run queue has work which has not been processed yet.
+     */
+    protected boolean hasPendingWork()
+    {
+        return !localQueue.isEmpty() || !stealableQueue.isEmpty() || runQueue.getCursor() > poller.getSequence().get();
+    }
+
+    /**
+     * @return The amount of nanoseconds until the earliest timer expires or spilled work has to be re-published,
+     *         or {@link Long#MAX_VALUE} if there is nothing to wait for.
+     */
+    protected long nextWakeupDelayNanos()
+    {
+        long timerDelay = timers.nextDelayNanos(System.nanoTime());
+        // spilled work is waiting for space in the run queues of other CPUs, nobody is going to signal that
+        return spilledTasks == 0 ? timerDelay : Math.min(timerDelay, OVERLOAD_BACKOFF_NANOS);
     }
 
     /**
@@ -321,18 +755,67 @@ public class CPU
 
     protected void run()
     {
+        thread = Thread.currentThread();
+        CURRENT.set(this);
         setAffinity();
 
-        EventPoller<WorkEvent> poller = runQueue.newPoller();
-
         while (!isHalted)
         {
             try
             {
-                if (poller.poll(HANDLER) != PollState.PROCESSING)
-                    network.poll();
-
-                processTimers();
+                int workCount = 0;
+
+                // both queues are drained fairly, one task from each on every iteration,
+                // so neither local nor remote work could starve the other one.
+                if (!localQueue.isEmpty())
+                {
+                    Promise<?> promise = localQueue.poll();
+                    localQueueDepth.lazySet(localQueue.size());
+                    execute(promise);
+                    workCount++;
+                }
+
+                if (poller.poll(handler) == PollState.PROCESSING)
+                    workCount++;
+
+                if (spilledTasks > 0)
+                    workCount += drainSpillQueues();
+
+                if (!stealableQueue.isEmpty())
+                {
+                    StealableTask<?> task = pollStealable(false);
+                    if (task != null)
+                    {
+                        execute(task);
+                        workCount++;
+                    }
+                }
+
+                if (workCount == 0)
+                {
+                    int selectedKeys = network.poll();
+
+                    if (CPUMetrics.ENABLED)
+                        metrics.recordSelectedKeys(selectedKeys);
+
+                    workCount += selectedKeys;
+                }
+
+                workCount += processTimers();
+
+                if (workCount == 0)
+                    workCount += steal();
+
+                if (workCount > 0)
+                {
+                    busyCycles++;
+                    idleStrategy.reset();
+                }
+                else
+                {
+                    idleCycles++;
+                    idleStrategy.idle(this);
+                }
             }
             catch (Exception e)
             {
@@ -344,16 +827,107 @@ public class CPU
         IOUtils.closeQuietly(network);
     }
 
-    protected void processTimers()
+    private boolean execute(WorkEvent event, long sequence, boolean endOfBatch)
+    {
+        Promise<?> promise = event.promise;
+        event.promise = null; // release a reference to already processed promise
+
+        execute(promise);
+        return false;
+    }
+
+    private void execute(Promise<?> promise)
     {
-        for (;;)
+        if (!CPUMetrics.ENABLED)
         {
-            TimerTask<?> task = timers.poll();
-            if (task == null)
-                break;
+            promise.fulfil();
+            return;
+        }
+
+        long start = System.nanoTime();
 
-            schedule(task.promise);
+        try
+        {
+            promise.fulfil();
+        }
+        finally
+        {
+            metrics.recordTask(System.nanoTime() - start);
+        }
+    }
+
+    private int drainSpillQueues()
+    {
+        int published = 0;
+
+        for (Map.Entry<CPU, Queue<Promise<?>>> e : spillQueues.entrySet())
+        {
+            CPU target = e.getKey();
+            Queue<Promise<?>> spillQueue = e.getValue();
+
+            while (!spillQueue.isEmpty() && target.tryPublish(spillQueue.peek()))
+            {
+                spillQueue.poll();
+                published++;
+            }
         }
+
+        spilledTasks -= published;
+        return published;
+    }
+
+    private StealableTask<?> pollStealable(boolean isThief)
+    {
+        StealableTask<?> task = isThief ? stealableQueue.pollLast() : stealableQueue.pollFirst();
+
+        if (task != null)
+            stealableBacklog.decrementAndGet();
+
+        return task;
+    }
+
+    /**
+     * Steal one task from the sibling selected by the stealing policy of the socket.
+     *
+     * @return The number of tasks stolen and executed.
+     */
+    private int steal()
+    {
+        CPU victim = socket.getStealingPolicy().selectVictim(this, socket);
+        if (victim == null || victim == this)
+            return 0;
+
+        StealableTask<?> task = victim.pollStealable(true);
+        if (task == null)
+            return 0;
+
+        if (!CPUMetrics.ENABLED)
+        {
+            task.steal(this);
+            return 1;
+        }
+
+        metrics.recordStolen();
+        victim.metrics.recordStolenByOthers();
+
+        long start = System.nanoTime();
+
+        try
+        {
+            task.steal(this);
+        }
+        finally
+        {
+            metrics.recordTask(System.nanoTime() - start);
+        }
+
+        return 1;
+    }
+
+    protected int processTimers()
+    {
+        // avoid reading the clock when there is nothing to expire
+        return timers.isEmpty() ? 0 : timers.advance(System.nanoTime());
     }
 
     /**
@@ -363,6 +937,12 @@ public class CPU
     public void halt()
     {
         isHalted = true;
+        // in case CPU is blocked waiting for work, either in the selector or parked by the idle strategy
+        network.wakeup();
+
+        Thread thread = this.thread;
+        if (thread != null)
+            LockSupport.unpark(thread);
     }
 
     public void setAffinity()
@@ -378,49 +958,13 @@ public class CPU
         }
     }
 
-    private class WorkEvent implements Runnable
+    private class WorkEvent
     {
-        private Promise promise;
+        private Promise<?> promise;
 
-        public void setWork(Promise promise)
+        public void setWork(Promise<?> promise)
         {
             this.promise = promise;
         }
-
-        public void run()
-        {
-            promise.fulfil();
-            promise = null; // release a reference to already processed promise
-        }
-    }
-
-    private static class TimerTask<O> implements Delayed
-    {
-        private final long startTime;
-        private final Promise<O> promise;
-
-        public TimerTask(long delayNanos, Promise<O> promise)
-        {
-            this.startTime = System.nanoTime() + delayNanos;
-            this.promise = promise;
-        }
-
-        @Override
-        public long getDelay(TimeUnit unit)
-        {
-            return unit.convert(startTime - System.nanoTime(), TimeUnit.NANOSECONDS);
-        }
-
-        @Override
-        public int compareTo(Delayed other)
-        {
-            if (other == null || !(other instanceof TimerTask))
-                return -1;
-
-            if (other == this)
-                return 0;
-
-            return Long.compare(startTime, ((TimerTask) other).startTime);
-        }
     }
 }
@@ -1,19 +1,21 @@
 package io.windmill.core;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.*;
-import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
+import java.util.function.Supplier;
 
+import io.windmill.core.metrics.CPUMetrics;
 import io.windmill.core.tasks.VoidTask1;
-import io.windmill.disk.PageRef;
-import io.windmill.disk.cache.Page;
+import io.windmill.disk.cache.PageArena;
+import io.windmill.disk.cache.PageReplacer;
 import io.windmill.net.Channel;
-
-import com.github.benmanes.caffeine.cache.Cache;
-import com.github.benmanes.caffeine.cache.Caffeine;
-import com.github.benmanes.caffeine.cache.RemovalCause;
+import io.windmill.net.ServerSocket;
+import io.windmill.utils.IOUtils;
 
 import net.openhft.affinity.CpuLayout;
 import net.openhft.affinity.impl.VanillaCpuLayout;
@@ -29,8 +31,9 @@ public class CPUSet
 
     private final Map<Integer, Socket> sockets;
     private final Map<Integer, CPU> cpus;
+    private final boolean isJmxEnabled;
 
-    private CPUSet(Map<Integer, Socket> sockets)
+    private CPUSet(Map<Integer, Socket> sockets, boolean isJmxEnabled)
     {
         Map<Integer, CPU> cpus = new HashMap<>();
         for (Socket socket : sockets.values())
@@ -41,6 +44,7 @@ public class CPUSet
 
         this.sockets = sockets;
         this.cpus = Collections.unmodifiableMap(cpus);
+        this.isJmxEnabled = isJmxEnabled;
     }
 
     public CPU get(int cpuId)
@@ -53,19 +57,58 @@ public class CPUSet
         return sockets.get(id);
     }
 
+    /**
+     * Bind a socket to a given address on every CPU of the set with SO_REUSEPORT, so kernel balances incoming
+     * connections between CPUs and each of them accepts, and owns, its connections without any cross-thread handoff.
+     * If SO_REUSEPORT is not supported by the JDK or the platform, falls back to a single listener on the
+     * CPU with the lowest id (see {@link CPU#listen(InetSocketAddress, VoidTask1, VoidTask1)}), which assigns
+     * accepted connections to the CPUs of its socket according to the placement strategy.
+     *
+     * @param address the address to listen for connections on
+     * @param onAccept executed when each new connection is accepted, on the CPU the connection is assigned to
+     * @param onFailure executed if there was an exception while binding to the given address (once per CPU)
+     */
+    public void listen(InetSocketAddress address, VoidTask1<Channel> onAccept, VoidTask1<Throwable> onFailure)
+    {
+        if (ServerSocket.isReusePortSupported())
+        {
+            cpus.forEach((id, cpu) -> cpu.listenReusePort(address, onAccept, onFailure));
+            return;
+        }
+
+        logger.info("SO_REUSEPORT is not supported, {} is going to be served by a single CPU.", address);
+        cpus.get(Collections.min(cpus.keySet())).listen(address, onAccept, onFailure);
+    }
+
     public void forEach(Consumer<CPU> consumer)
     {
         cpus.forEach((id, cpu) -> consumer.accept(cpu));
     }
 
+    /**
+     * @return The current state of the runtime metrics of every CPU in the set, keyed by CPU id.
+     */
+    public Map<Integer, CPUMetrics.Snapshot> getMetrics()
+    {
+        Map<Integer, CPUMetrics.Snapshot> metrics = new HashMap<>();
+        cpus.forEach((id, cpu) -> metrics.put(id, cpu.getMetrics()));
+        return Collections.unmodifiableMap(metrics);
+    }
+
     public void start()
     {
         sockets.values().stream().forEach(Socket::start);
+
+        if (isJmxEnabled)
+            cpus.values().forEach((cpu) -> cpu.metrics.registerMBean());
     }
 
     public void halt()
     {
         sockets.values().stream().forEach(Socket::halt);
+
+        if (isJmxEnabled)
+            cpus.values().forEach((cpu) -> cpu.metrics.unregisterMBean());
     }
 
     public static Builder builder()
@@ -81,6 +124,12 @@ public class CPUSet
         private final CpuLayout layout;
 
         protected long pageCacheSize = DEFAULT_PAGE_CACHE_SIZE;
+        protected Supplier<IdleStrategy> idleStrategy = IdleStrategy::busySpin;
+        protected long timerTickNanos = CPU.DEFAULT_TIMER_TICK_NANOS;
+        protected int runQueueSize = CPU.DEFAULT_RUN_QUEUE_SIZE;
+        protected StealingPolicy stealingPolicy = StealingPolicy.DEFAULT;
+        protected PlacementStrategy placementStrategy = PlacementStrategy.powerOfTwoChoices();
+        protected boolean isJmxEnabled = false;
 
         public Builder()
         {
@@ -129,30 +178,156 @@ public class CPUSet
             return this;
         }
 
+        /**
+         * Set the strategy each CPU run loop is going to use when there is no work to do,
+         * by default every CPU is going to busy spin (see {@link IdleStrategy#busySpin()}).
+         *
+         * @param idleStrategy The factory of idle strategies, called once per CPU.
+         *
+         * @return this builder.
+         */
+        public Builder setIdleStrategy(Supplier<IdleStrategy> idleStrategy)
+        {
+            if (idleStrategy == null)
+                throw new IllegalArgumentException("idle strategy can't be null");
+
+            this.idleStrategy = idleStrategy;
+            return this;
+        }
+
+        /**
+         * Set the resolution of the per-CPU timer wheels, timers never expire earlier than requested
+         * but could expire up to one tick later. Default tick is 1 millisecond.
+         *
+         * @param tick The duration of a single tick.
+         * @param unit The unit of the {@code tick}.
+         *
+         * @return this builder.
+         */
+        public Builder setTimerTick(long tick, TimeUnit unit)
+        {
+            if (tick <= 0)
+                throw new IllegalArgumentException("timer tick should be positive");
+
+            this.timerTickNanos = unit.toNanos(tick);
+            return this;
+        }
+
+        /**
+         * Set the capacity of the run queue of every CPU, once queue is full {@link CPU#trySchedule(io.windmill.core.tasks.Task0)}
+         * rejects new work with {@link OverloadedException} and {@link CPU#schedule(io.windmill.core.tasks.Task0)} waits for
+         * the space to become available. Default size is 1M entries.
+         *
+         * @param size The number of entries in the run queue, has to be a power of 2.
+         *
+         * @return this builder.
+         */
+        public Builder setRunQueueSize(int size)
+        {
+            if (size <= 0 || Integer.bitCount(size) != 1)
+                throw new IllegalArgumentException("run queue size should be a positive power of 2");
+
+            this.runQueueSize = size;
+            return this;
+        }
+
+        /**
+         * Set the policy idle CPUs use to steal {@link StealableTask}s from the other CPUs of the same socket,
+         * default is {@link StealingPolicy#DEFAULT}, use {@link StealingPolicy#NEVER} to disable stealing.
+         *
+         * @param policy The stealing policy.
+         *
+         * @return this builder.
+         */
+        public Builder setStealingPolicy(StealingPolicy policy)
+        {
+            if (policy == null)
+                throw new IllegalArgumentException("stealing policy can't be null");
+
+            this.stealingPolicy = policy;
+            return this;
+        }
+
+        /**
+         * Set the strategy used to assign accepted connections (and any other work scheduled via {@link Socket#getCPU()})
+         * to the CPUs of the socket, default is {@link PlacementStrategy#powerOfTwoChoices()}.
+         *
+         * @param strategy The placement strategy.
+         *
+         * @return this builder.
+         */
+        public Builder setPlacementStrategy(PlacementStrategy strategy)
+        {
+            if (strategy == null)
+                throw new IllegalArgumentException("placement strategy can't be null");
+
+            this.placementStrategy = strategy;
+            return this;
+        }
+
+        /**
+         * Expose runtime metrics of every CPU (see {@link CPUMetrics}) as MXBeans named {@code io.windmill:type=CPU,id=<cpu id>},
+         * beans are registered when CPU set is started and unregistered when it's halted. Disabled by default.
+         *
+         * @param isEnabled True if metrics should be exposed via JMX.
+         *
+         * @return this builder.
+         */
+        public Builder setJmxEnabled(boolean isEnabled)
+        {
+            this.isJmxEnabled = isEnabled;
+            return this;
+        }
+
         public CPUSet build()
         {
-            Cache<PageRef, Boolean> pageTracker = Caffeine.<PageRef, Boolean>newBuilder()
-                                                          .maximumSize(pageCacheSize / Page.PAGE_SIZE)
-                                                          .removalListener((PageRef page, Boolean v, RemovalCause cause) -> page.evict())
-                                                          .build();
+            int numCPUs = 0;
+            for (int[] cpuIds : sockets.values())
+                numCPUs += cpuIds.length;
+
+            // page cache is split between sockets according to the number of their CPUs, every socket keeps
+            // the pages of its CPUs in the shared off-heap arena, so page budgets could move between them
+            long pageCacheSizePerCPU = numCPUs == 0 ? 0 : pageCacheSize / numCPUs;
 
             Map<Integer, Socket> cpuSet = new HashMap<>();
             for (Map.Entry<Integer, int[]> socket : sockets.entrySet())
-                cpuSet.put(socket.getKey(), new Socket(layout, pageTracker, socket.getValue()));
+            {
+                long pageArenaSize = pageCacheSizePerCPU * socket.getValue().length;
+                cpuSet.put(socket.getKey(), new Socket(layout, idleStrategy, timerTickNanos, runQueueSize, pageArenaSize, stealingPolicy, placementStrategy, socket.getValue()));
+            }
 
-            return new CPUSet(Collections.unmodifiableMap(cpuSet));
+            return new CPUSet(Collections.unmodifiableMap(cpuSet), isJmxEnabled);
         }
     }
 
     public static class Socket
     {
-        private final List<CPU> cpus;
+        // how often page budgets are rebalanced between CPUs of the socket (see PageReplacer#rebalance)
+        private static final long PAGE_REBALANCE_INTERVAL_MS = Long.getLong("windmill.disk.page_rebalance_interval_ms", 1000);
 
-        private Socket(CpuLayout layout, Cache<PageRef, Boolean> pageTracker, int... cpuIds)
+        private final List<CPU> cpus;
+        private final StealingPolicy stealingPolicy;
+        private final PlacementStrategy placementStrategy;
+
+        private Socket(CpuLayout layout,
+                       Supplier<IdleStrategy> idleStrategy,
+                       long timerTickNanos,
+                       int runQueueSize,
+                       long pageArenaSize,
+                       StealingPolicy stealingPolicy,
+                       PlacementStrategy placementStrategy,
+                       int... cpuIds)
         {
+            this.stealingPolicy = stealingPolicy;
+            this.placementStrategy = placementStrategy;
+
+            // every CPU starts with the same share of the arena, rebalancing never grows the total
+            PageArena pageArena = new PageArena(pageArenaSize);
+            int pageBudget = cpuIds.length == 0 ? 0 : pageArena.getMaxSlots() / cpuIds.length;
+
             List<CPU> cpus = new ArrayList<>(cpuIds.length);
             for (int cpuId : cpuIds)
-                cpus.add(new CPU(layout, cpuId, this, pageTracker));
+                cpus.add(new CPU(layout, cpuId, this, idleStrategy.get(), timerTickNanos, runQueueSize, pageArena, pageBudget));
 
             this.cpus = Collections.unmodifiableList(cpus);
         }
@@ -160,6 +335,9 @@ public class CPUSet
         public void start()
         {
             cpus.stream().forEach(CPU::start);
+
+            if (cpus.size() > 1)
+                rebalancePages(cpus.get(0), new long[cpus.size()]);
         }
 
         public void halt()
@@ -167,10 +345,12 @@ public class CPUSet
             cpus.stream().forEach(CPU::halt);
         }
 
+        /**
+         * @return The CPU selected by the placement strategy of this socket (see {@link Builder#setPlacementStrategy(PlacementStrategy)}).
+         */
         public CPU getCPU()
         {
-            int size = size();
-            return size == 1 ? cpus.get(0) : cpus.get(ThreadLocalRandom.current().nextInt(0, size - 1));
+            return placementStrategy.select(this, null);
         }
 
         public CPU getCPU(int id)
@@ -183,16 +363,142 @@ public class CPUSet
             return cpus.size();
         }
 
+        public StealingPolicy getStealingPolicy()
+        {
+            return stealingPolicy;
+        }
+
+        /**
+         * Periodically move page budget from CPUs which rarely evict pages to the ones which are short of them.
+         * Coordinator collects replacement stats from every CPU and sends new budgets back, so replacement
+         * state itself is only ever accessed by the thread of its CPU.
+         *
+         * @param coordinator The CPU which runs the rebalancing.
+         * @param lastEvictions The total number of evictions of every CPU as of the previous rebalance.
+         */
+        private void rebalancePages(CPU coordinator, long[] lastEvictions)
+        {
+            coordinator.sleep(PAGE_REBALANCE_INTERVAL_MS, TimeUnit.MILLISECONDS, () -> {
+                List<Future<long[]>> samples = new ArrayList<>(cpus.size());
+                for (CPU cpu : cpus)
+                    samples.add(cpu.schedule(() -> new long[] { cpu.pageReplacer.getBudget(), cpu.pageReplacer.getEvictions() }));
+
+                coordinator.sequence(samples).onSuccess((sampled) -> {
+                    int[] budgets = new int[cpus.size()];
+                    long[] evictions = new long[cpus.size()];
+
+                    for (int i = 0; i < cpus.size(); i++)
+                    {
+                        budgets[i] = (int) sampled.get(i)[0];
+                        evictions[i] = sampled.get(i)[1] - lastEvictions[i];
+                        lastEvictions[i] = sampled.get(i)[1];
+                    }
+
+                    int[] newBudgets = PageReplacer.rebalance(budgets, evictions);
+
+                    // budgets are only raised once the CPUs which lost some of theirs have evicted the pages
+                    // over their new budgets, so the shared arena has slots for the pages of the CPUs which gained some
+                    List<Future<Void>> shrunk = new ArrayList<>();
+                    for (int i = 0; i < cpus.size(); i++)
+                    {
+                        if (newBudgets[i] < budgets[i])
+                            shrunk.add(setPageBudget(cpus.get(i), newBudgets[i]));
+                    }
+
+                    coordinator.sequence(shrunk).onSuccess((ignored) -> {
+                        for (int i = 0; i < cpus.size(); i++)
+                        {
+                            if (newBudgets[i] > budgets[i])
+                                setPageBudget(cpus.get(i), newBudgets[i]);
+                        }
+
+                        rebalancePages(coordinator, lastEvictions);
+                    });
+                });
+
+                return null;
+            });
+        }
+
+        private static Future<Void> setPageBudget(CPU cpu, int budget)
+        {
+            return cpu.schedule(() -> { cpu.pageReplacer.setBudget(budget); });
+        }
+
+        /**
+         * Wake up one of the idle siblings of the given CPU, if any, so it could steal some of its work.
+         *
+         * @param cpu The CPU which has more stealable work than it could handle right away.
+         */
+        void wakeupThieves(CPU cpu)
+        {
+            if (stealingPolicy == StealingPolicy.NEVER)
+                return;
+
+            for (CPU sibling : cpus)
+            {
+                if (sibling != cpu && sibling.isIdle())
+                {
+                    sibling.wakeup();
+                    return;
+                }
+            }
+        }
+
         public void register(ServerSocketChannel channel, VoidTask1<Channel> onAccept, VoidTask1<Throwable> onFailure)
         {
             if (channel == null)
                 return;
 
-            CPU cpu = getCPU();
+            try
+            {
+                SocketChannel client = channel.accept();
+
+                // connection could have been dropped by the client between selection and accept
+                if (client == null)
+                    return;
+
+                CPU cpu = placementStrategy.select(this, client.getRemoteAddress());
+
+                if (cpu.isCurrent())
+                {
+                    accept(cpu, client, onAccept, onFailure);
+                    return;
+                }
+
+                // selector is owned by the target CPU, so registration, as well as onAccept, has to happen on its thread
+                long acceptedAt = System.nanoTime();
+                cpu.schedule(() -> {
+                    if (CPUMetrics.ENABLED)
+                        cpu.metrics.recordAcceptHandoff(System.nanoTime() - acceptedAt);
+
+                    accept(cpu, client, onAccept, onFailure);
+                });
+            }
+            catch (Exception | Error e)
+            {
+                onFailure.compute(e);
+            }
+        }
+
+        private static void accept(CPU cpu, SocketChannel client, VoidTask1<Channel> onAccept, VoidTask1<Throwable> onFailure)
+        {
+            Channel channel;
+
+            try
+            {
+                channel = new Channel(cpu, cpu.getSelector(), client);
+            }
+            catch (Exception | Error e)
+            {
+                IOUtils.closeQuietly(client);
+                onFailure.compute(e);
+                return;
+            }
 
             try
             {
-                onAccept.compute(new Channel(cpu, cpu.getSelector(), channel.accept()));
+                onAccept.compute(channel);
             }
             catch (Exception | Error e)
             {
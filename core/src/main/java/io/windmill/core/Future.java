@@ -2,6 +2,9 @@ package io.windmill.core;
 
 import java.util.ArrayDeque;
 import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import io.windmill.core.tasks.Task1;
 import io.windmill.core.tasks.VoidTask0;
@@ -25,22 +28,39 @@ public class Future<O>
         WAITING, SUCCESS, FAILURE
     }
 
+    // maximum number of nested continuations executed inline (see #map(CPU, Task1)) before
+    // falling back to the run queue, protects the stack of the CPU thread from long chains
+    private static final int MAX_INLINE_DEPTH = 64;
+
     protected final CPU cpu;
-    protected final Future<Throwable> onFailure;
-    protected final Queue<Promise<?>> continuations = new ArrayDeque<>();
+
+    // allocated lazily, only when the work fails or somebody is interested in the failure
+    protected Future<Throwable> onFailure;
+
+    // most of the futures have a single continuation, so the queue is only allocated for the rest
+    private Promise<?> continuation;
+    private Queue<Promise<?>> continuations;
 
     private State state = State.WAITING;
     private O value;
 
-    public Future(CPU cpu)
-    {
-        this(cpu, new Future<>(cpu, null));
-    }
+    // set when future has been failed by cancel(), any late attempts to complete it are ignored
+    private boolean isCancelled = false;
+
+    // releases resources held by the producer of the value (if any) when future gets cancelled
+    private VoidTask0 canceller;
 
-    protected Future(CPU cpu, Future<Throwable> onFailure)
+    // executed once the future completes either way, unlike continuations these don't wait
+    // for the result, so they don't keep abandoned future from being cancelled (see #detach(Promise))
+    private VoidTask0 completionHook;
+
+    // set by producers which hand the future to a single consumer (see #cancelWhenAbandoned()),
+    // inherited by the futures derived from it, so cancellation could travel up the whole chain
+    private boolean isCancelledWhenAbandoned = false;
+
+    public Future(CPU cpu)
     {
         this.cpu = cpu;
-        this.onFailure = onFailure;
     }
 
     /**
@@ -68,6 +88,15 @@ public class Future<O>
         return state == State.FAILURE;
     }
 
+    /**
+     * @return true when the work has been cancelled (or timed out) before it could complete,
+     *         cancelled {@link Future} is always a failure.
+     */
+    public boolean isCancelled()
+    {
+        return isCancelled;
+    }
+
     protected O get()
     {
         if (!isAvailable())
@@ -89,13 +118,18 @@ public class Future<O>
 
     protected void setValue(State newState, O newValue)
     {
+        if (isCancelled)
+            return; // result arrived too late, nobody is interested in it anymore
+
         checkState(State.WAITING);
 
         state = newState;
         value = newValue;
 
-        while (!continuations.isEmpty())
-            continuations.poll().schedule();
+        runCompletionHook();
+
+        for (Promise<?> promise = pollContinuation(); promise != null; promise = pollContinuation())
+            promise.schedule();
     }
 
     /**
@@ -107,13 +141,116 @@ public class Future<O>
      */
     public void setFailure(Throwable e)
     {
+        if (isCancelled)
+            return;
+
         checkState(State.WAITING);
 
         state = State.FAILURE;
-        onFailure.setValue(e);
+        failure().setValue(e);
+
+        runCompletionHook();
 
-        while (!continuations.isEmpty())
-            continuations.poll().scheduleFailure(e);
+        for (Promise<?> promise = pollContinuation(); promise != null; promise = pollContinuation())
+            promise.scheduleFailure(e);
+    }
+
+    /**
+     * Cancel the work represented by this {@link Future}, if it's not yet complete
+     * it is going to be failed with {@link CancellationException}. Cancellation is propagated
+     * to the producer of the value (see {@link #onCancel(VoidTask0)}), so pending network and disk operations
+     * release their resources early, and upstream through {@link #map(Task1)} and {@link #flatMap(Task1)} chains
+     * to {@link Future}s which allow it (see {@link #cancelWhenAbandoned()}) and have no other work waiting for their result.
+     *
+     * Cancellation is always performed on the {@link CPU} this {@link Future} belongs to.
+     */
+    public void cancel()
+    {
+        cancel(new CancellationException());
+    }
+
+    protected void cancel(Throwable reason)
+    {
+        if (cpu != null && !cpu.isCurrent())
+        {
+            cpu.schedule(() -> cancel(reason));
+            return;
+        }
+
+        if (state != State.WAITING)
+            return;
+
+        VoidTask0 hook = canceller;
+        canceller = null;
+
+        setFailure(reason);
+        isCancelled = true;
+
+        if (hook != null)
+            hook.compute();
+    }
+
+    /**
+     * Register a hook to be executed (on the {@link CPU} of this {@link Future}) if this {@link Future}
+     * gets cancelled before it is complete. This is intended for the producers of the value to stop
+     * the work and release any associated resources. Hook registered after the cancellation is executed right away.
+     *
+     * Has to be called on the {@link CPU} of this {@link Future}, or before it is shared with any other thread.
+     *
+     * @param hook The function to execute on cancellation.
+     */
+    public void onCancel(VoidTask0 hook)
+    {
+        if (isCancelled)
+        {
+            hook.compute();
+            return;
+        }
+
+        VoidTask0 previous = canceller;
+        canceller = previous == null ? hook : () -> { previous.compute(); hook.compute(); };
+    }
+
+    /**
+     * Allow cancellation of the work waiting for the result of this {@link Future} to propagate to it, once all
+     * of its continuations are cancelled this {@link Future} is cancelled as well. {@link Future}s derived from it
+     * by {@link #map(Task1)} and {@link #flatMap(Task1)} inherit this behaviour. Should only be used by the producers
+     * which hand the {@link Future} to a single consumer, {@link Future}s shared between multiple consumers
+     * (e.g. loads of the cached pages) must not be cancelled just because one of the consumers has given up.
+     *
+     * @return this {@link Future}
+     */
+    public Future<O> cancelWhenAbandoned()
+    {
+        isCancelledWhenAbandoned = true;
+        return this;
+    }
+
+    /**
+     * Fail this {@link Future} with {@link TimeoutException} (see {@link #cancel()})
+     * if it's not complete within the given amount of time. Timeout is tracked by the timers
+     * of the {@link CPU} this {@link Future} belongs to.
+     *
+     * @param duration The amount of time given for the work to complete.
+     * @param unit The unit of the {@code duration}.
+     *
+     * @return this {@link Future}
+     */
+    public Future<O> within(long duration, TimeUnit unit)
+    {
+        Timer<Void> timeout = cpu.sleep(duration, unit, () -> {
+            cancel(new TimeoutException(String.format("timed out after %d %s", duration, unit)));
+            return null;
+        });
+
+        // no need to keep the timer around once the work is complete, but that is not waiting
+        // for the result, so it mustn't count as a continuation when the future is abandoned
+        if (cpu.isCurrent())
+            addCompletionHook(timeout::cancel);
+        else
+            cpu.schedule(() -> addCompletionHook(timeout::cancel));
+
+        return this;
     }
 
     protected void checkState(State requiredState)
@@ -147,12 +284,30 @@ public class Future<O>
      */
     public <T> Future<T> map(CPU remoteCPU, Task1<O, T> continuation)
     {
+        boolean isCurrent = cpu != null && cpu.isCurrent();
+
+        // fast path: result is already available on this CPU, so there is no need
+        // to go through the run queue, transformation could be applied right away.
+        if (isCurrent && remoteCPU == cpu && isAvailable() && cpu.inlineDepth < MAX_INLINE_DEPTH)
+            return mapInline(continuation);
+
         Promise<T> promise = new Promise<>(remoteCPU, () -> continuation.compute(get()));
 
-        cpu.schedule(() -> {
+        // set up before the promise gets published to the other CPU
+        promise.getFuture().isCancelledWhenAbandoned = isCancelledWhenAbandoned;
+        promise.getFuture().onCancel(() -> detach(promise));
+
+        if (isCurrent)
+        {
             attach(promise);
-            return null;
-        });
+        }
+        else
+        {
+            cpu.schedule(() -> {
+                attach(promise);
+                return null;
+            });
+        }
 
         return promise.getFuture();
     }
@@ -185,12 +340,21 @@ public class Future<O>
     public <T> Future<T> flatMap(CPU remoteCPU, Task1<O, Future<T>> continuation)
     {
         Future<T> sink = new Future<>(cpu);
-        map(remoteCPU, (o) -> {
+        sink.isCancelledWhenAbandoned = isCancelledWhenAbandoned;
+
+        Future<Void> mapping = map(remoteCPU, (o) -> {
             Future<T> future = continuation.compute(o);
-            future.onSuccess(sink::setValue);
+            // future could be shared, so it's only cancelled if nothing else is waiting for it and it allows that
+            Future<Void> forwarding = future.map((v) -> { sink.setValue(v); return null; });
+            // mapping runs on the remote CPU, but sink could only be touched by the CPU it belongs to
+            if (sink.cpu == null || sink.cpu.isCurrent())
+                sink.onCancel(forwarding::cancel);
+            else
+                sink.cpu.schedule(() -> sink.onCancel(forwarding::cancel));
             future.onFailure(sink::setFailure);
             return null;
         });
+        sink.onCancel(mapping::cancel);
         return sink;
     }
 
@@ -225,7 +389,11 @@ public class Future<O>
      */
     public void onFailure(VoidTask1<Throwable> continuation)
     {
-        onFailure.onSuccess(continuation);
+        // failure future is allocated lazily by the CPU thread, so registration has to happen there too
+        if (cpu == null || cpu.isCurrent())
+            failure().onSuccess(continuation);
+        else
+            cpu.schedule(() -> failure().onSuccess(continuation));
     }
 
     /**
@@ -238,6 +406,49 @@ public class Future<O>
         onFailure((e) -> continuation.compute());
     }
 
+    /**
+     * Remove continuation which is no longer interested in the result of this {@link Future}
+     * (e.g. because it was cancelled), if there are no continuations left and this {@link Future}
+     * allows it (see {@link #cancelWhenAbandoned()}), cancel this {@link Future} too.
+     */
+    private void detach(Promise<?> continuation)
+    {
+        if (cpu != null && !cpu.isCurrent())
+        {
+            cpu.schedule(() -> detach(continuation));
+            return;
+        }
+
+        if (this.continuation == continuation)
+            this.continuation = null;
+        else if (continuations != null)
+            continuations.remove(continuation);
+
+        if (isCancelledWhenAbandoned && this.continuation == null && (continuations == null || continuations.isEmpty()))
+            cancel();
+    }
+
+    private void addCompletionHook(VoidTask0 hook)
+    {
+        if (isAvailable())
+        {
+            hook.compute();
+            return;
+        }
+
+        VoidTask0 previous = completionHook;
+        completionHook = previous == null ? hook : () -> { previous.compute(); hook.compute(); };
+    }
+
+    private void runCompletionHook()
+    {
+        VoidTask0 hook = completionHook;
+        completionHook = null;
+
+        if (hook != null)
+            hook.compute();
+    }
+
     private void attach(Promise<?> continuation)
     {
         if (isSuccess())
@@ -245,6 +456,69 @@ public class Future<O>
         else if (isFailure())
             continuation.scheduleFailure(onFailure.get());
         else
-            continuations.add(continuation);
+            addContinuation(continuation);
+    }
+
+    private <T> Future<T> mapInline(Task1<O, T> continuation)
+    {
+        Future<T> future = new Future<>(cpu);
+
+        if (isFailure())
+        {
+            future.setFailure(onFailure.get());
+            return future;
+        }
+
+        cpu.inlineDepth++;
+
+        try
+        {
+            future.setValue(continuation.compute(value));
+        }
+        catch (Throwable e)
+        {
+            future.setFailure(e);
+        }
+        finally
+        {
+            cpu.inlineDepth--;
+        }
+
+        return future;
+    }
+
+    private Future<Throwable> failure()
+    {
+        if (onFailure == null)
+            onFailure = new Future<>(cpu);
+
+        return onFailure;
+    }
+
+    private void addContinuation(Promise<?> promise)
+    {
+        // preserve the order of continuations, slot could only be used if there is nothing queued
+        if (continuation == null && (continuations == null || continuations.isEmpty()))
+        {
+            continuation = promise;
+            return;
+        }
+
+        if (continuations == null)
+            continuations = new ArrayDeque<>();
+
+        continuations.add(promise);
+    }
+
+    private Promise<?> pollContinuation()
+    {
+        if (continuation != null)
+        {
+            Promise<?> promise = continuation;
+            continuation = null;
+            return promise;
+        }
+
+        return continuations == null ? null : continuations.poll();
     }
 }
\ No newline at end of file
@@ -0,0 +1,164 @@
+package io.windmill.core;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Strategy used by the {@link CPU} run loop to decide what to do when an iteration
+ * of the loop found no work to perform (no tasks in the run queue, no ready network keys
+ * and no expired timers).
+ *
+ * Each {@link CPU} gets its own instance of the strategy (see {@link CPUSet.Builder#setIdleStrategy(java.util.function.Supplier)}),
+ * so implementations are free to keep mutable state without any synchronization.
+ *
+ * Available strategies trade latency for CPU usage:
+ * <ul>
+ *     <li>{@link #busySpin()} - never gives up the core, lowest latency, 100% CPU usage;</li>
+ *     <li>{@link #spinYield(int)} - spins for a while then starts yielding the core to other threads;</li>
+ *     <li>{@link #backoff(int, int, long, long, TimeUnit)} - spin, then yield, then park with exponential back-off,
+ *         parked CPU is woken up as soon as new work is scheduled on it;</li>
+ *     <li>{@link #blocking(long, TimeUnit)} - blocks in {@link java.nio.channels.Selector#select(long)} until
+ *         network activity, new work or expiration of the timeout, whichever comes first.</li>
+ * </ul>
+ */
+public interface IdleStrategy
+{
+    /**
+     * Called by the run loop every time an iteration didn't find any work to do.
+     *
+     * @param cpu The CPU which is idle.
+     */
+    void idle(CPU cpu);
+
+    /**
+     * Called by the run loop every time an iteration did some work,
+     * which means that strategy should reset its state back to the most aggressive polling.
+     */
+    void reset();
+
+    /**
+     * @return strategy which constantly spins the core while waiting for work.
+     */
+    static IdleStrategy busySpin()
+    {
+        return new BusySpin();
+    }
+
+    /**
+     * @param maxSpins The number of idle iterations to spin before starting to yield.
+     *
+     * @return strategy which spins for {@code maxSpins} idle iterations and then yields on every idle iteration.
+     */
+    static IdleStrategy spinYield(int maxSpins)
+    {
+        return new Backoff(maxSpins, Integer.MAX_VALUE, 0, 0);
+    }
+
+    /**
+     * @param maxSpins The number of idle iterations to spin before starting to yield.
+     * @param maxYields The number of idle iterations to yield before starting to park.
+     * @param minPark The minimal park period.
+     * @param maxPark The maximum park period, park period doubles on every idle iteration until it reaches this value.
+     * @param unit The unit of both {@code minPark} and {@code maxPark}.
+     *
+     * @return strategy which progressively backs off from spinning to yielding and then parking the thread.
+     */
+    static IdleStrategy backoff(int maxSpins, int maxYields, long minPark, long maxPark, TimeUnit unit)
+    {
+        if (minPark <= 0 || maxPark < minPark)
+            throw new IllegalArgumentException("park period should be positive and min park should be <= max park");
+
+        return new Backoff(maxSpins, maxYields, unit.toNanos(minPark), unit.toNanos(maxPark));
+    }
+
+    /**
+     * @param timeout The maximum amount of time to block for, might be shorter if CPU has pending timers (or spilled work).
+     * @param unit The unit of the {@code timeout}.
+     *
+     * @return strategy which blocks CPU in the network selector until there is more work to do.
+     */
+    static IdleStrategy blocking(long timeout, TimeUnit unit)
+    {
+        if (timeout <= 0)
+            throw new IllegalArgumentException("timeout should be positive");
+
+        return new Blocking(unit.toNanos(timeout));
+    }
+
+    class BusySpin implements IdleStrategy
+    {
+        @Override
+        public void idle(CPU cpu)
+        {}
+
+        @Override
+        public void reset()
+        {}
+    }
+
+    class Backoff implements IdleStrategy
+    {
+        private final int maxSpins, maxYields;
+        private final long minParkNanos, maxParkNanos;
+
+        private int spins, yields;
+        private long parkNanos;
+
+        public Backoff(int maxSpins, int maxYields, long minParkNanos, long maxParkNanos)
+        {
+            this.maxSpins = maxSpins;
+            this.maxYields = maxYields;
+            this.minParkNanos = minParkNanos;
+            this.maxParkNanos = maxParkNanos;
+
+            reset();
+        }
+
+        @Override
+        public void idle(CPU cpu)
+        {
+            if (spins < maxSpins)
+            {
+                spins++;
+            }
+            else if (yields < maxYields)
+            {
+                yields++;
+                Thread.yield();
+            }
+            else
+            {
+                // never park for longer than it takes for the next timer to expire (or spilled work to be retried)
+                cpu.park(Math.min(parkNanos, cpu.nextWakeupDelayNanos()));
+                parkNanos = Math.min(parkNanos << 1, maxParkNanos);
+            }
+        }
+
+        @Override
+        public void reset()
+        {
+            spins = 0;
+            yields = 0;
+            parkNanos = minParkNanos;
+        }
+    }
+
+    class Blocking implements IdleStrategy
+    {
+        private final long timeoutNanos;
+
+        public Blocking(long timeoutNanos)
+        {
+            this.timeoutNanos = timeoutNanos;
+        }
+
+        @Override
+        public void idle(CPU cpu)
+        {
+            cpu.block(Math.min(timeoutNanos, cpu.nextWakeupDelayNanos()));
+        }
+
+        @Override
+        public void reset()
+        {}
+    }
+}
@@ -0,0 +1,27 @@
+package io.windmill.core;
+
+/**
+ * Signals that work couldn't be accepted by the {@link CPU} because its run queue is full,
+ * see {@link CPU#trySchedule(io.windmill.core.tasks.Task0)}. Callers are expected to shed the load
+ * (e.g. reject the request) or retry later.
+ */
+public class OverloadedException extends RuntimeException
+{
+    private static final long serialVersionUID = 1L;
+
+    private final int cpuId;
+
+    public OverloadedException(int cpuId, int capacity)
+    {
+        super(String.format("run queue of CPU %d is full (capacity %d)", cpuId, capacity));
+        this.cpuId = cpuId;
+    }
+
+    /**
+     * @return The id of the {@link CPU} which rejected the work.
+     */
+    public int getCpuId()
+    {
+        return cpuId;
+    }
+}
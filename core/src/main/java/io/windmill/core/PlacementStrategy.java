@@ -0,0 +1,114 @@
+package io.windmill.core;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides which {@link CPU} of the {@link CPUSet.Socket} new work, most importantly accepted connections
+ * (see {@link CPUSet.Socket#register(java.nio.channels.ServerSocketChannel, io.windmill.core.tasks.VoidTask1, io.windmill.core.tasks.VoidTask1)}),
+ * should be assigned to. Since channels never migrate between CPUs, placement directly determines how
+ * evenly the load is spread across the socket.
+ *
+ * Strategy could be called concurrently by multiple threads, so it has to be thread-safe.
+ */
+@FunctionalInterface
+public interface PlacementStrategy
+{
+    /**
+     * @param socket The socket to select CPU from.
+     * @param remoteAddress The address of the remote peer, or null if placement is not related to any connection.
+     *
+     * @return One of the CPUs of the given socket.
+     */
+    CPU select(CPUSet.Socket socket, SocketAddress remoteAddress);
+
+    /**
+     * Uniformly random placement.
+     *
+     * @return The placement strategy.
+     */
+    static PlacementStrategy random()
+    {
+        return (socket, remoteAddress) -> socket.getCPU(ThreadLocalRandom.current().nextInt(socket.size()));
+    }
+
+    /**
+     * Assign CPUs one after another in order.
+     *
+     * @return The placement strategy.
+     */
+    static PlacementStrategy roundRobin()
+    {
+        AtomicInteger next = new AtomicInteger();
+        return (socket, remoteAddress) -> socket.getCPU((next.getAndIncrement() & Integer.MAX_VALUE) % socket.size());
+    }
+
+    /**
+     * Pick two CPUs at random and assign the one with the smaller load (see {@link CPU#getLoad()}).
+     * Avoids herding on the least loaded CPU when load information is stale, while still keeping maximum load close
+     * to the average.
+     *
+     * @return The placement strategy.
+     */
+    static PlacementStrategy powerOfTwoChoices()
+    {
+        return (socket, remoteAddress) -> {
+            int size = socket.size();
+            if (size == 1)
+                return socket.getCPU(0);
+
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+
+            int first = random.nextInt(size);
+            // second choice is always different from the first one
+            int second = (first + 1 + random.nextInt(size - 1)) % size;
+
+            CPU a = socket.getCPU(first), b = socket.getCPU(second);
+            return a.getLoad() <= b.getLoad() ? a : b;
+        };
+    }
+
+    /**
+     * Assign connections from the same remote host to the same CPU, as long as the socket is not resized,
+     * uses rendezvous (highest random weight) hashing so only connections of a removed CPU would move to the other ones.
+     * Placement which is not related to any connection falls back to {@link #random()}.
+     *
+     * @return The placement strategy.
+     */
+    static PlacementStrategy consistentHash()
+    {
+        PlacementStrategy fallback = random();
+
+        return (socket, remoteAddress) -> {
+            if (!(remoteAddress instanceof InetSocketAddress))
+                return fallback.select(socket, remoteAddress);
+
+            InetSocketAddress address = (InetSocketAddress) remoteAddress;
+            // port of the client is usually ephemeral, so only host is taken into account
+            long key = address.getAddress() == null ? address.getHostString().hashCode() : address.getAddress().hashCode();
+
+            CPU selected = null;
+            long maxWeight = Long.MIN_VALUE;
+
+            for (int i = 0; i < socket.size(); i++)
+            {
+                CPU cpu = socket.getCPU(i);
+                // finalization step of MurmurHash3, so weights of the neighbouring keys are not correlated
+                long weight = key * 31 + cpu.getId();
+                weight = (weight ^ (weight >>> 33)) * 0xff51afd7ed558ccdL;
+                weight = (weight ^ (weight >>> 33)) * 0xc4ceb9fe1a85ec53L;
+                weight ^= weight >>> 33;
+
+                if (selected == null || weight > maxWeight)
+                {
+                    selected = cpu;
+                    maxWeight = weight;
+                }
+            }
+
+            return selected;
+        };
+    }
+}
@@ -25,6 +25,9 @@ public class Promise<O>
 
     protected void fulfil()
     {
+        if (future.isCancelled())
+            return; // no need to do the work nobody is waiting for
+
         future.checkState(Future.State.WAITING);
 
         try
@@ -40,6 +43,9 @@ public class Promise<O>
     protected void scheduleFailure(Throwable e)
     {
         future.cpu.schedule(() -> {
+            if (future.isCancelled())
+                return null;
+
             future.checkState(Future.State.WAITING);
             future.setFailure(e);
             return null;
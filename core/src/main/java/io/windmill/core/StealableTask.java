@@ -0,0 +1,62 @@
+package io.windmill.core;
+
+import io.windmill.core.tasks.Task0;
+
+/**
+ * Work which is not bound to the {@link CPU} it has been scheduled on (see {@link CPU#scheduleStealable(Task0)}),
+ * so idle CPUs of the same {@link CPUSet.Socket} are allowed to steal and execute it (see {@link StealingPolicy}).
+ *
+ * Only the task itself could migrate, its {@link Future} always belongs to the original CPU, which means that
+ * the result is delivered, and all of the continuations are executed, by that CPU. As a consequence the task has
+ * to be self-contained: it must not touch any CPU-affine state such as channels, files or page cache, which is
+ * never stolen because it's always scheduled via regular {@link Promise}s.
+ *
+ * @param <O> the type of value the task produces
+ */
+public class StealableTask<O> extends Promise<O>
+{
+    StealableTask(CPU cpu, Task0<O> task)
+    {
+        super(cpu, task);
+    }
+
+    /**
+     * Execute the task on the thread of the given CPU, which is not the owner of the task,
+     * and deliver the result back to the owner.
+     *
+     * @param thief The CPU which has stolen the task.
+     */
+    void steal(CPU thief)
+    {
+        // racy read of the owner state, only used to skip the work which is most likely not needed anymore
+        if (future.isCancelled())
+            return;
+
+        O value = null;
+        Throwable failure = null;
+
+        try
+        {
+            value = task.compute();
+        }
+        catch (Throwable e)
+        {
+            failure = e;
+        }
+
+        O result = value;
+        Throwable error = failure;
+
+        future.cpu.schedule(() -> {
+            if (future.isCancelled())
+                return null;
+
+            if (error == null)
+                future.setValue(result);
+            else
+                future.setFailure(error);
+
+            return null;
+        });
+    }
+}
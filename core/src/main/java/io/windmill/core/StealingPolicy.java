@@ -0,0 +1,63 @@
+package io.windmill.core;
+
+/**
+ * Decides which {@link CPU} an idle CPU should steal {@link StealableTask}s from, victims are always
+ * from the same {@link CPUSet.Socket} as the thief, so stolen work never has to cross NUMA boundaries.
+ *
+ * Policy is consulted by the CPU thread every time its run loop doesn't find any work to do, so it should be cheap.
+ */
+@FunctionalInterface
+public interface StealingPolicy
+{
+    /**
+     * Policy which never steals any work.
+     */
+    StealingPolicy NEVER = (thief, socket) -> null;
+
+    /**
+     * Default policy, steals from the busiest sibling which has at least two stealable tasks queued.
+     */
+    StealingPolicy DEFAULT = busiest(2);
+
+    /**
+     * @param thief The idle CPU looking for work.
+     * @param socket The socket both thief and victim belong to.
+     *
+     * @return The CPU to steal work from, or null if nothing should be stolen.
+     */
+    CPU selectVictim(CPU thief, CPUSet.Socket socket);
+
+    /**
+     * Steal from the sibling with the largest backlog of stealable work (see {@link CPU#getStealableBacklog()}).
+     *
+     * @param minBacklog The minimal number of queued stealable tasks required for CPU to become a victim.
+     *
+     * @return The stealing policy.
+     */
+    static StealingPolicy busiest(int minBacklog)
+    {
+        if (minBacklog <= 0)
+            throw new IllegalArgumentException("minimal backlog should be positive");
+
+        return (thief, socket) -> {
+            CPU victim = null;
+            int maxBacklog = minBacklog - 1;
+
+            for (int i = 0; i < socket.size(); i++)
+            {
+                CPU cpu = socket.getCPU(i);
+                if (cpu == thief)
+                    continue;
+
+                int backlog = cpu.getStealableBacklog();
+                if (backlog > maxBacklog)
+                {
+                    victim = cpu;
+                    maxBacklog = backlog;
+                }
+            }
+
+            return victim;
+        };
+    }
+}
@@ -0,0 +1,40 @@
+package io.windmill.core;
+
+import io.windmill.core.tasks.Task0;
+
+/**
+ * A {@link Future} of the work delayed by {@link CPU#sleep(long, java.util.concurrent.TimeUnit, Task0)},
+ * which can be cancelled (see {@link #cancel()}) before the delay expires, in which case
+ * it fails with {@link java.util.concurrent.CancellationException}.
+ *
+ * @param <O> the type of value the delayed work produces
+ */
+public class Timer<O> extends Future<O>
+{
+    private final Promise<O> promise;
+
+    // intrusive state managed by the TimerWheel of the owning CPU
+    Timer<?> prev, next;
+    long deadline;
+    int level, slot;
+    boolean isScheduled;
+
+    Timer(CPU cpu, Task0<O> task)
+    {
+        super(cpu);
+        this.promise = new Promise<>(this, task);
+
+        // cancellation of the future (see Future#cancel()) removes timer from the wheel
+        cancelWhenAbandoned().onCancel(() -> cpu.timers.cancel(this));
+    }
+
+    boolean isScheduled()
+    {
+        return isScheduled;
+    }
+
+    void expire()
+    {
+        promise.schedule();
+    }
+}
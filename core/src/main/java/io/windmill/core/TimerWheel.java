@@ -0,0 +1,280 @@
+package io.windmill.core;
+
+/**
+ * Hierarchical hashed timing wheel (see "Hashed and Hierarchical Timing Wheels" by Varghese and Lauck),
+ * similar to the one used by Linux kernel for its timers.
+ *
+ * Wheel consists of {@link #NUM_LEVELS} levels of {@link #WHEEL_SIZE} slots each, slots of the first level
+ * are one tick wide and slots of every next level are {@link #WHEEL_SIZE} times wider than previous one.
+ * Timers are stored in the intrusive doubly-linked lists (see {@link Timer}) of the slots based on their deadline,
+ * which makes both insertion and cancellation O(1). Every time the lower level wheel completes a revolution,
+ * the current slot of the next level is "cascaded" - all of its timers are re-distributed to the lower levels.
+ *
+ * This class is not thread-safe and is only supposed to be used by the thread of the {@link CPU} which owns it.
+ */
+class TimerWheel
+{
+    private static final int WHEEL_BITS = 6;
+    private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+    private static final int NUM_LEVELS = 6; // 2^36 ticks, which is ~795 days with 1ms tick
+
+    private static final long MAX_DELTA = (1L << (WHEEL_BITS * NUM_LEVELS)) - 1;
+
+    private final long tickNanos;
+    private final long startNanos;
+
+    private final Timer<?>[][] slots = new Timer<?>[NUM_LEVELS][WHEEL_SIZE];
+
+    // each bit identifies if slot at that index of the given level has any timers (64-bits for 64 slots)
+    private final long[] occupiedSlots = new long[NUM_LEVELS];
+
+    // last tick processed by the wheel, every tick up to (and including) this one has been expired
+    private long currentTick;
+
+    // total number of timers in the wheel
+    private int size;
+
+    TimerWheel(long tickNanos, long nowNanos)
+    {
+        if (tickNanos <= 0)
+            throw new IllegalArgumentException("tick should be positive");
+
+        this.tickNanos = tickNanos;
+        this.startNanos = nowNanos;
+    }
+
+    /**
+     * Add timer to the wheel, timer is going to be expired once the first tick
+     * at or after the given deadline is processed by {@link #advance(long)}.
+     *
+     * @param timer The timer to add.
+     * @param deadlineNanos The deadline in terms of {@link System#nanoTime()}.
+     */
+    void schedule(Timer<?> timer, long deadlineNanos)
+    {
+        if (timer.isScheduled())
+            throw new IllegalStateException("timer is already scheduled");
+
+        long elapsed = Math.max(0, deadlineNanos - startNanos);
+        // round up to the tick boundary, timers should never expire early
+        timer.deadline = elapsed / tickNanos + (elapsed % tickNanos == 0 ? 0 : 1);
+
+        // already expired timers are going to be processed on the next tick
+        insert(timer, currentTick + 1);
+    }
+
+    /**
+     * Remove timer from the wheel without expiring it.
+     *
+     * @param timer The timer to remove.
+     *
+     * @return true if timer was removed, false if it wasn't scheduled (e.g. already expired or cancelled).
+     */
+    boolean cancel(Timer<?> timer)
+    {
+        if (!timer.isScheduled())
+            return false;
+
+        unlink(timer);
+        return true;
+    }
+
+    /**
+     * Process all of the ticks up to the given time, expiring timers along the way.
+     *
+     * @param nowNanos The current time in terms of {@link System#nanoTime()}.
+     *
+     * @return The number of timers expired.
+     */
+    int advance(long nowNanos)
+    {
+        long targetTick = (nowNanos - startNanos) / tickNanos;
+
+        int expired = 0;
+
+        while (currentTick < targetTick)
+        {
+            if (size == 0)
+            {
+                // nothing to cascade or expire, just catch up with the time
+                currentTick = targetTick;
+                break;
+            }
+
+            currentTick++;
+
+            // cascade timers from every higher level whose current slot boundary we've just crossed
+            for (int level = 1; level < NUM_LEVELS; level++)
+            {
+                int shift = level * WHEEL_BITS;
+                if ((currentTick & ((1L << shift) - 1)) != 0)
+                    break;
+
+                cascade(level, (int) ((currentTick >> shift) & WHEEL_MASK));
+            }
+
+            expired += expire((int) (currentTick & WHEEL_MASK));
+        }
+
+        return expired;
+    }
+
+    /**
+     * @param nowNanos The current time in terms of {@link System#nanoTime()}.
+     *
+     * @return The number of nanoseconds until the next tick which has to be processed by the wheel (either
+     *         expiring or cascading timers), or {@link Long#MAX_VALUE} if the wheel is empty.
+     */
+    long nextDelayNanos(long nowNanos)
+    {
+        if (size == 0)
+            return Long.MAX_VALUE;
+
+        long nextTick = Long.MAX_VALUE;
+
+        for (int level = 0; level < NUM_LEVELS; level++)
+        {
+            long occupied = occupiedSlots[level];
+            if (occupied == 0)
+                continue;
+
+            int shift = level * WHEEL_BITS;
+            long currentBlock = currentTick >> shift;
+
+            // distance (in slots of this level) to the next occupied slot, slot of the current block
+            // is only processed after full revolution since it has already been cascaded/expired.
+            int distance = Long.numberOfTrailingZeros(Long.rotateRight(occupied, (int) ((currentBlock + 1) & WHEEL_MASK))) + 1;
+
+            nextTick = Math.min(nextTick, (currentBlock + distance) << shift);
+        }
+
+        return Math.max(0, startNanos + nextTick * tickNanos - nowNanos);
+    }
+
+    /**
+     * @return The number of timers currently in the wheel.
+     */
+    int size()
+    {
+        return size;
+    }
+
+    boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    private void insert(Timer<?> timer, long minDeadline)
+    {
+        long deadline = Math.max(timer.deadline, minDeadline);
+        long delta = deadline - currentTick;
+
+        if (delta > MAX_DELTA)
+        {
+            // too far in the future, park in the furthest slot, it will be re-inserted on cascade
+            deadline = currentTick + MAX_DELTA;
+            delta = MAX_DELTA;
+        }
+
+        int level = 0;
+        while (delta >= (1L << ((level + 1) * WHEEL_BITS)))
+            level++;
+
+        int slot = (int) ((deadline >> (level * WHEEL_BITS)) & WHEEL_MASK);
+
+        Timer<?> head = slots[level][slot];
+
+        timer.level = level;
+        timer.slot = slot;
+        timer.prev = null;
+        timer.next = head;
+
+        if (head != null)
+            head.prev = timer;
+
+        slots[level][slot] = timer;
+        occupiedSlots[level] |= 1L << slot;
+
+        timer.isScheduled = true;
+        size++;
+    }
+
+    private void unlink(Timer<?> timer)
+    {
+        int level = timer.level, slot = timer.slot;
+
+        if (timer.prev != null)
+            timer.prev.next = timer.next;
+        else
+            slots[level][slot] = timer.next;
+
+        if (timer.next != null)
+            timer.next.prev = timer.prev;
+
+        if (slots[level][slot] == null)
+            occupiedSlots[level] &= ~(1L << slot);
+
+        timer.prev = null;
+        timer.next = null;
+        timer.isScheduled = false;
+        size--;
+    }
+
+    private Timer<?> detach(int level, int slot)
+    {
+        Timer<?> head = slots[level][slot];
+
+        slots[level][slot] = null;
+        occupiedSlots[level] &= ~(1L << slot);
+
+        return head;
+    }
+
+    private void cascade(int level, int slot)
+    {
+        Timer<?> timer = detach(level, slot);
+
+        while (timer != null)
+        {
+            Timer<?> next = timer.next;
+
+            size--;
+            // cascade happens before expiration of the current tick,
+            // so timers which are due right now have to end up in the current slot.
+            insert(timer, currentTick);
+
+            timer = next;
+        }
+    }
+
+    private int expire(int slot)
+    {
+        int expired = 0;
+        Timer<?> timer = detach(0, slot);
+
+        while (timer != null)
+        {
+            Timer<?> next = timer.next;
+
+            timer.prev = null;
+            timer.next = null;
+            timer.isScheduled = false;
+            size--;
+
+            if (timer.deadline > currentTick)
+            {
+                insert(timer, currentTick + 1); // was parked because deadline was too far in the future
+            }
+            else
+            {
+                timer.expire();
+                expired++;
+            }
+
+            timer = next;
+        }
+
+        return expired;
+    }
+}
@@ -0,0 +1,506 @@
+package io.windmill.core.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntSupplier;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import io.windmill.core.CPU;
+import io.windmill.disk.IOService;
+
+import com.lmax.disruptor.Sequenced;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runtime metrics of a single {@link CPU}, recorded by the CPU thread (and its I/O threads)
+ * without any locking or allocation, and exposed via immutable {@link Snapshot}s (see {@link CPU#getMetrics()})
+ * and, optionally, JMX (see {@link io.windmill.core.CPUSet.Builder#setJmxEnabled(boolean)}).
+ *
+ * Recording could be switched off with {@code -Dwindmill.metrics.disabled=true}, the flag is a constant
+ * so all of the instrumentation on the hot path gets eliminated by JIT in such case. Values
+ * which are read directly from the CPU state (e.g. run queue depth) are always available.
+ */
+public class CPUMetrics
+{
+    private static final Logger logger = LoggerFactory.getLogger(CPUMetrics.class);
+
+    public static final boolean ENABLED = !Boolean.getBoolean("windmill.metrics.disabled");
+
+    private final CPU cpu;
+    private final Sequenced runQueue;
+    private final IntSupplier localQueueDepth;
+    private final IntSupplier pendingTimers;
+    private final IOService io;
+
+    // time it took to execute every task, in nanoseconds
+    private final Histogram taskTime = new Histogram();
+
+    // the number of selection keys processed by network polls which found any work to do
+    private final Histogram selectedKeys = new Histogram();
+
+    // the number of tasks rejected because the run queue was full, recorded by any thread
+    private final AtomicLong rejectedTasks = new AtomicLong();
+
+    // time between connection being accepted by another CPU and its registration by this one, in nanoseconds
+    private final Histogram acceptHandoff = new Histogram();
+
+    // the number of stealable tasks this CPU has stolen from its siblings, recorded by the CPU thread
+    private final AtomicLong stolenTasks = new AtomicLong();
+
+    // the number of stealable tasks siblings have stolen from this CPU, recorded by the sibling CPU threads
+    private final AtomicLong tasksStolenByOthers = new AtomicLong();
+
+    public CPUMetrics(CPU cpu, Sequenced runQueue, IntSupplier localQueueDepth, IntSupplier pendingTimers, IOService io)
+    {
+        this.cpu = cpu;
+        this.runQueue = runQueue;
+        this.localQueueDepth = localQueueDepth;
+        this.pendingTimers = pendingTimers;
+        this.io = io;
+    }
+
+    /**
+     * Record execution time of the task, should only be called by the CPU thread.
+     *
+     * @param nanos The time it took to execute the task.
+     */
+    public void recordTask(long nanos)
+    {
+        taskTime.record(nanos);
+    }
+
+    /**
+     * Record the number of keys processed by the network poll, should only be called by the CPU thread.
+     *
+     * @param numKeys The number of selection keys which were ready.
+     */
+    public void recordSelectedKeys(int numKeys)
+    {
+        if (numKeys > 0)
+            selectedKeys.record(numKeys);
+    }
+
+    /**
+     * Record the time it took to hand accepted connection over to this CPU, should only be called by the CPU thread.
+     *
+     * @param nanos The time since connection has been accepted until it's registered by this CPU.
+     */
+    public void recordAcceptHandoff(long nanos)
+    {
+        acceptHandoff.record(nanos);
+    }
+
+    /**
+     * Record the task rejected by {@link CPU#trySchedule(io.windmill.core.tasks.Task0)}, safe to be called from any thread.
+     */
+    public void recordRejected()
+    {
+        rejectedTasks.incrementAndGet();
+    }
+
+    /**
+     * Record the task stolen by this CPU from one of its siblings, should only be called by the CPU thread.
+     */
+    public void recordStolen()
+    {
+        stolenTasks.lazySet(stolenTasks.get() + 1);
+    }
+
+    /**
+     * Record the task stolen from this CPU by one of its siblings, safe to be called from any thread.
+     */
+    public void recordStolenByOthers()
+    {
+        tasksStolenByOthers.incrementAndGet();
+    }
+
+    /**
+     * @return The current state of the CPU metrics, safe to be called from any thread.
+     */
+    public Snapshot snapshot()
+    {
+        int capacity = runQueue.getBufferSize();
+        long remainingCapacity = runQueue.remainingCapacity();
+
+        return new Snapshot(cpu.getId(),
+                            System.nanoTime(),
+                            capacity - remainingCapacity,
+                            remainingCapacity,
+                            localQueueDepth.getAsInt(),
+                            cpu.getBusyCycles(),
+                            cpu.getIdleCycles(),
+                            taskTime.snapshot(),
+                            rejectedTasks.get(),
+                            stolenTasks.get(),
+                            tasksStolenByOthers.get(),
+                            selectedKeys.snapshot(),
+                            acceptHandoff.snapshot(),
+                            pendingTimers.getAsInt(),
+                            io.getQueueDepth(),
+                            io.getLatency().snapshot());
+    }
+
+    /**
+     * Register metrics of the CPU as an MXBean named {@code io.windmill:type=CPU,id=<cpu id>}
+     * with the platform MBean server, failures are logged and ignored.
+     */
+    public void registerMBean()
+    {
+        try
+        {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MXBean(), getObjectName());
+        }
+        catch (JMException e)
+        {
+            logger.warn("failed to register metrics MBean for CPU {}, ignoring...", cpu.getId(), e);
+        }
+    }
+
+    /**
+     * Unregister MXBean previously registered by {@link #registerMBean()}, if any.
+     */
+    public void unregisterMBean()
+    {
+        try
+        {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = getObjectName();
+
+            if (server.isRegistered(name))
+                server.unregisterMBean(name);
+        }
+        catch (JMException e)
+        {
+            logger.warn("failed to unregister metrics MBean for CPU {}, ignoring...", cpu.getId(), e);
+        }
+    }
+
+    private ObjectName getObjectName() throws JMException
+    {
+        return new ObjectName("io.windmill:type=CPU,id=" + cpu.getId());
+    }
+
+    /**
+     * Immutable state of the {@link CPU} metrics at the given point in time.
+     */
+    public static class Snapshot
+    {
+        private final int cpuId;
+        private final long timestampNanos;
+        private final long runQueueDepth, runQueueRemainingCapacity;
+        private final int localQueueDepth;
+        private final long busyCycles, idleCycles;
+        private final Histogram.Snapshot taskTime, selectedKeys, acceptHandoff;
+        private final long rejectedTasks;
+        private final long stolenTasks, tasksStolenByOthers;
+        private final int pendingTimers;
+        private final int ioQueueDepth;
+        private final Histogram.Snapshot ioLatency;
+
+        Snapshot(int cpuId,
+                 long timestampNanos,
+                 long runQueueDepth,
+                 long runQueueRemainingCapacity,
+                 int localQueueDepth,
+                 long busyCycles,
+                 long idleCycles,
+                 Histogram.Snapshot taskTime,
+                 long rejectedTasks,
+                 long stolenTasks,
+                 long tasksStolenByOthers,
+                 Histogram.Snapshot selectedKeys,
+                 Histogram.Snapshot acceptHandoff,
+                 int pendingTimers,
+                 int ioQueueDepth,
+                 Histogram.Snapshot ioLatency)
+        {
+            this.cpuId = cpuId;
+            this.timestampNanos = timestampNanos;
+            this.runQueueDepth = runQueueDepth;
+            this.runQueueRemainingCapacity = runQueueRemainingCapacity;
+            this.localQueueDepth = localQueueDepth;
+            this.busyCycles = busyCycles;
+            this.idleCycles = idleCycles;
+            this.taskTime = taskTime;
+            this.rejectedTasks = rejectedTasks;
+            this.stolenTasks = stolenTasks;
+            this.tasksStolenByOthers = tasksStolenByOthers;
+            this.selectedKeys = selectedKeys;
+            this.acceptHandoff = acceptHandoff;
+            this.pendingTimers = pendingTimers;
+            this.ioQueueDepth = ioQueueDepth;
+            this.ioLatency = ioLatency;
+        }
+
+        public int getCpuId()
+        {
+            return cpuId;
+        }
+
+        /**
+         * @return The time this snapshot has been taken at, in terms of {@link System#nanoTime()}.
+         */
+        public long getTimestampNanos()
+        {
+            return timestampNanos;
+        }
+
+        /**
+         * @return The number of tasks published to the run queue (by other threads) but not yet executed.
+         */
+        public long getRunQueueDepth()
+        {
+            return runQueueDepth;
+        }
+
+        /**
+         * @return The number of tasks which could still be published to the run queue before it's full.
+         */
+        public long getRunQueueRemainingCapacity()
+        {
+            return runQueueRemainingCapacity;
+        }
+
+        /**
+         * @return The number of tasks scheduled by the CPU on itself but not yet executed (approximate).
+         */
+        public int getLocalQueueDepth()
+        {
+            return localQueueDepth;
+        }
+
+        public long getBusyCycles()
+        {
+            return busyCycles;
+        }
+
+        public long getIdleCycles()
+        {
+            return idleCycles;
+        }
+
+        /**
+         * @return The total number of tasks executed by the CPU so far.
+         */
+        public long getTasksExecuted()
+        {
+            return taskTime.getCount();
+        }
+
+        /**
+         * @return The total number of tasks rejected because the run queue was full (see {@link CPU#trySchedule(io.windmill.core.tasks.Task0)}).
+         */
+        public long getRejectedTasks()
+        {
+            return rejectedTasks;
+        }
+
+        /**
+         * @return The total number of stealable tasks this CPU has stolen from other CPUs of the same socket.
+         */
+        public long getStolenTasks()
+        {
+            return stolenTasks;
+        }
+
+        /**
+         * @return The total number of stealable tasks scheduled on this CPU but executed by other CPUs of the same socket.
+         */
+        public long getTasksStolenByOthers()
+        {
+            return tasksStolenByOthers;
+        }
+
+        /**
+         * @param previous The earlier snapshot of the same CPU.
+         *
+         * @return The average number of tasks executed per second between the given snapshot and this one.
+         */
+        public double getTasksPerSecond(Snapshot previous)
+        {
+            long elapsedNanos = timestampNanos - previous.timestampNanos;
+            if (elapsedNanos <= 0)
+                return 0;
+
+            return (getTasksExecuted() - previous.getTasksExecuted()) * 1e9 / elapsedNanos;
+        }
+
+        /**
+         * @return The distribution of the task execution times, in nanoseconds.
+         */
+        public Histogram.Snapshot getTaskTime()
+        {
+            return taskTime;
+        }
+
+        /**
+         * @return The distribution of the number of selection keys ready per network poll (polls with no ready keys are not counted).
+         */
+        public Histogram.Snapshot getSelectedKeys()
+        {
+            return selectedKeys;
+        }
+
+        /**
+         * @return The distribution of times it took to hand connections accepted by other CPUs over to this one, in nanoseconds.
+         */
+        public Histogram.Snapshot getAcceptHandoff()
+        {
+            return acceptHandoff;
+        }
+
+        /**
+         * @return The number of timers waiting to expire.
+         */
+        public int getPendingTimers()
+        {
+            return pendingTimers;
+        }
+
+        /**
+         * @return The number of I/O tasks queued but not yet picked up by the I/O threads.
+         */
+        public int getIOQueueDepth()
+        {
+            return ioQueueDepth;
+        }
+
+        /**
+         * @return The distribution of I/O task latencies (time since scheduled until completed), in nanoseconds.
+         */
+        public Histogram.Snapshot getIOLatency()
+        {
+            return ioLatency;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("CPU %d: run queue: %d (remaining %d), local queue: %d, tasks: [%s], rejected: %d, stolen: %d, stolen by others: %d, selected keys: [%s], accept handoff: [%s], timers: %d, io queue: %d, io latency: [%s]",
+                                 cpuId, runQueueDepth, runQueueRemainingCapacity, localQueueDepth, taskTime, rejectedTasks, stolenTasks, tasksStolenByOthers, selectedKeys, acceptHandoff, pendingTimers, ioQueueDepth, ioLatency);
+        }
+    }
+
+    private class MXBean implements CPUMetricsMXBean
+    {
+        // used to compute the rate of tasks between two consecutive reads
+        private Snapshot previous = snapshot();
+
+        @Override
+        public long getRunQueueDepth()
+        {
+            return snapshot().getRunQueueDepth();
+        }
+
+        @Override
+        public long getRunQueueRemainingCapacity()
+        {
+            return snapshot().getRunQueueRemainingCapacity();
+        }
+
+        @Override
+        public int getLocalQueueDepth()
+        {
+            return localQueueDepth.getAsInt();
+        }
+
+        @Override
+        public long getTasksExecuted()
+        {
+            return taskTime.snapshot().getCount();
+        }
+
+        @Override
+        public long getRejectedTasks()
+        {
+            return rejectedTasks.get();
+        }
+
+        @Override
+        public long getStolenTasks()
+        {
+            return stolenTasks.get();
+        }
+
+        @Override
+        public long getTasksStolenByOthers()
+        {
+            return tasksStolenByOthers.get();
+        }
+
+        @Override
+        public synchronized double getTasksPerSecond()
+        {
+            Snapshot current = snapshot();
+            double rate = current.getTasksPerSecond(previous);
+
+            previous = current;
+            return rate;
+        }
+
+        @Override
+        public double getTaskTimeMeanNanos()
+        {
+            return taskTime.snapshot().getMean();
+        }
+
+        @Override
+        public long getTaskTime99thPercentileNanos()
+        {
+            return taskTime.snapshot().getValueAtQuantile(0.99);
+        }
+
+        @Override
+        public long getTaskTimeMaxNanos()
+        {
+            return taskTime.snapshot().getMax();
+        }
+
+        @Override
+        public double getSelectedKeysPerPoll()
+        {
+            return selectedKeys.snapshot().getMean();
+        }
+
+        @Override
+        public double getAcceptHandoffMeanNanos()
+        {
+            return acceptHandoff.snapshot().getMean();
+        }
+
+        @Override
+        public long getAcceptHandoff99thPercentileNanos()
+        {
+            return acceptHandoff.snapshot().getValueAtQuantile(0.99);
+        }
+
+        @Override
+        public int getPendingTimers()
+        {
+            return pendingTimers.getAsInt();
+        }
+
+        @Override
+        public int getIOQueueDepth()
+        {
+            return io.getQueueDepth();
+        }
+
+        @Override
+        public double getIOLatencyMeanNanos()
+        {
+            return io.getLatency().snapshot().getMean();
+        }
+
+        @Override
+        public long getIOLatency99thPercentileNanos()
+        {
+            return io.getLatency().snapshot().getValueAtQuantile(0.99);
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package io.windmill.core.metrics;
+
+/**
+ * JMX view of the {@link CPUMetrics}, see {@link CPUMetrics.Snapshot} for the description of the values.
+ */
+public interface CPUMetricsMXBean
+{
+    long getRunQueueDepth();
+
+    long getRunQueueRemainingCapacity();
+
+    int getLocalQueueDepth();
+
+    long getTasksExecuted();
+
+    long getRejectedTasks();
+
+    long getStolenTasks();
+
+    long getTasksStolenByOthers();
+
+    /**
+     * @return The average number of tasks executed per second since the previous read of this attribute.
+     */
+    double getTasksPerSecond();
+
+    double getTaskTimeMeanNanos();
+
+    long getTaskTime99thPercentileNanos();
+
+    long getTaskTimeMaxNanos();
+
+    double getSelectedKeysPerPoll();
+
+    double getAcceptHandoffMeanNanos();
+
+    long getAcceptHandoff99thPercentileNanos();
+
+    int getPendingTimers();
+
+    int getIOQueueDepth();
+
+    double getIOLatencyMeanNanos();
+
+    long getIOLatency99thPercentileNanos();
+}
@@ -0,0 +1,181 @@
+package io.windmill.core.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed size, log-linear histogram of non-negative values (similar to HdrHistogram),
+ * every power of two range is split into {@link #SUB_BUCKETS} linear sub-buckets,
+ * which bounds relative error of the recorded values to 1/{@link #SUB_BUCKETS} (12.5%).
+ *
+ * Recording never allocates or locks, {@link #record(long)} is intended for the single
+ * writer (e.g. thread of the {@link io.windmill.core.CPU}) and {@link #recordConcurrent(long)} for
+ * multiple writers (e.g. I/O threads), both could be combined with concurrent {@link #snapshot()}s
+ * from any thread, which see approximate, but consistent enough for monitoring, state of the histogram.
+ */
+public class Histogram
+{
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_MASK = SUB_BUCKETS - 1;
+
+    // values < SUB_BUCKETS get exact buckets, each power of two above that gets SUB_BUCKETS of them
+    private static final int NUM_BUCKETS = (Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Record given value, this method should only ever be called by a single thread.
+     *
+     * @param value The value to record, negative values are recorded as 0.
+     */
+    public void record(long value)
+    {
+        value = Math.max(0, value);
+
+        int bucket = bucketOf(value);
+
+        // ordered writes are enough for a single writer and much cheaper than atomic increments
+        counts.lazySet(bucket, counts.get(bucket) + 1);
+        sum.lazySet(sum.get() + value);
+
+        if (value > max.get())
+            max.lazySet(value);
+    }
+
+    /**
+     * Record given value, this method is safe to be called by multiple threads concurrently.
+     *
+     * @param value The value to record, negative values are recorded as 0.
+     */
+    public void recordConcurrent(long value)
+    {
+        value = Math.max(0, value);
+
+        counts.incrementAndGet(bucketOf(value));
+        sum.addAndGet(value);
+
+        long currentMax;
+        while (value > (currentMax = max.get()))
+        {
+            if (max.compareAndSet(currentMax, value))
+                break;
+        }
+    }
+
+    /**
+     * @return An immutable copy of the current state of the histogram.
+     */
+    public Snapshot snapshot()
+    {
+        long[] buckets = new long[NUM_BUCKETS];
+        long count = 0;
+
+        for (int i = 0; i < NUM_BUCKETS; i++)
+        {
+            buckets[i] = counts.get(i);
+            count += buckets[i];
+        }
+
+        return new Snapshot(buckets, count, sum.get(), max.get());
+    }
+
+    static int bucketOf(long value)
+    {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+
+        int exponent = (Long.SIZE - 1) - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & SUB_BUCKET_MASK;
+
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @return The highest value which belongs to the given bucket.
+     */
+    static long highestValueOf(int bucket)
+    {
+        if (bucket < SUB_BUCKETS)
+            return bucket;
+
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int shift = exponent - SUB_BUCKET_BITS;
+        long lowest = (long) (SUB_BUCKETS + (bucket & SUB_BUCKET_MASK)) << shift;
+
+        return lowest + (1L << shift) - 1;
+    }
+
+    public static class Snapshot
+    {
+        private final long[] buckets;
+        private final long count, sum, max;
+
+        private Snapshot(long[] buckets, long count, long sum, long max)
+        {
+            this.buckets = buckets;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        /**
+         * @return The number of recorded values.
+         */
+        public long getCount()
+        {
+            return count;
+        }
+
+        /**
+         * @return The maximum recorded value, or 0 if nothing has been recorded yet.
+         */
+        public long getMax()
+        {
+            return max;
+        }
+
+        /**
+         * @return The mean of the recorded values, or 0 if nothing has been recorded yet.
+         */
+        public double getMean()
+        {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        /**
+         * @param quantile The quantile to compute in [0, 1] range, e.g. 0.99 for 99th percentile.
+         *
+         * @return The (approximate) value at the given quantile, or 0 if nothing has been recorded yet.
+         */
+        public long getValueAtQuantile(double quantile)
+        {
+            if (quantile < 0 || quantile > 1)
+                throw new IllegalArgumentException("quantile should be in [0, 1] range");
+
+            if (count == 0)
+                return 0;
+
+            long rank = Math.max(1, (long) Math.ceil(quantile * count));
+            long seen = 0;
+
+            for (int i = 0; i < buckets.length; i++)
+            {
+                seen += buckets[i];
+                if (seen >= rank)
+                    return Math.min(highestValueOf(i), max);
+            }
+
+            return max;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("count: %d, mean: %.1f, p50: %d, p99: %d, max: %d",
+                                 count, getMean(), getValueAtQuantile(0.5), getValueAtQuantile(0.99), max);
+        }
+    }
+}
@@ -25,10 +25,14 @@ public class File
 
     protected File(CPU cpu, IOService ioService, FileChannel file)
     {
-        this(cpu, new PageCache(cpu, file), ioService);
+        this.cpu = cpu;
+        this.ioService = ioService;
+        this.cache = new PageCache(cpu, file);
+
+        ioService.flusher.register(cache);
     }
 
-    private File(CPU cpu, PageCache cache, IOService ioService)
+    protected File(CPU cpu, PageCache cache, IOService ioService)
     {
         this.cpu = cpu;
         this.cache = cache;
@@ -93,21 +97,21 @@ public class File
     }
 
     /**
-     * Mark page identified by given offset (page-aligned) as accessed.
-     * @param pageOffset The offset of the page aligned on page boundary (Page.PAGE_SIZE)
+     * @return The number of pages loaded by read-ahead which have been read afterwards,
+     *         updated by the CPU thread.
      */
-    protected final void markPageAccess(int pageOffset)
+    public long getReadAheadHits()
     {
-        ioService.markPageAccessed(this, pageOffset);
+        return cache.getReadAheadHits();
     }
 
     /**
-     * Evict page identified by given offset from the page cache (offset must be page aligned).
-     * @param pageOffset The offset of the page to evict.
+     * @return The number of pages which had to be loaded on demand when read,
+     *         updated by the CPU thread.
      */
-    protected final void evictPage(int pageOffset)
+    public long getReadAheadMisses()
     {
-        cpu.schedule(() -> cache.evictPage(pageOffset));
+        return cache.getReadAheadMisses();
     }
 
     /**
@@ -126,7 +130,8 @@ public class File
     }
 
     /**
-     * Write all of the dirty pages back to block device.
+     * Write all of the dirty pages back to block device. Dirty pages are also written back in the background
+     * (see {@link Flusher}), but only sync makes them durable.
      * NOTE: This method forces fsync after all pages are written.
      *
      * @return The number of pages written.
@@ -138,6 +143,7 @@ public class File
 
     public Future<Void> close()
     {
-        return cache.close((page) -> ioService.markPageEvicted(this, page.getOffset()));
+        ioService.flusher.unregister(cache);
+        return cache.close();
     }
 }
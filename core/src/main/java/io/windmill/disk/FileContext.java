@@ -1,6 +1,5 @@
 package io.windmill.disk;
 
-import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
@@ -14,7 +13,7 @@ import io.netty.buffer.Unpooled;
 public class FileContext
 {
     private final File file;
-    private long position;
+    protected long position;
 
     public FileContext(File file, long position)
     {
@@ -34,13 +33,20 @@ public class FileContext
 
     public Future<FileContext> write(ByteBuf buffer)
     {
-        return requestPages(position, buffer.readableBytes()).map((pages) -> {
+        return requestPages(position, buffer.readableBytes(), false).map((pages) -> {
             short pagePosition = getPagePosition(position);
 
-            for (Page page : pages)
+            try
             {
-                position += page.write(pagePosition, buffer);
-                pagePosition = 0;
+                for (Page page : pages)
+                {
+                    position += page.write(pagePosition, buffer);
+                    pagePosition = 0;
+                }
+            }
+            finally
+            {
+                unpin(pages);
             }
 
             return this;
@@ -49,19 +55,27 @@ public class FileContext
 
     public Future<ByteBuf> read(int size)
     {
-        return requestPages(position, size).map((pages) -> {
+        return requestPages(position, size, true).map((pages) -> {
             ByteBuf buffer = Unpooled.buffer(size);
 
             int readSize = size;
             short offset = getPagePosition(position);
-            for (Page page : pages)
-            {
-                int toRead = Math.min(Page.PAGE_SIZE - offset, readSize);
-                buffer.writeBytes(page.read(offset, toRead));
 
-                offset = 0; // only first page has >= 0 offset
-                readSize -= toRead;
-                position += toRead;
+            try
+            {
+                for (Page page : pages)
+                {
+                    int toRead = Math.min(Page.PAGE_SIZE - offset, readSize);
+                    buffer.writeBytes(page.read(offset, toRead));
+
+                    offset = 0; // only first page has >= 0 offset
+                    readSize -= toRead;
+                    position += toRead;
+                }
+            }
+            finally
+            {
+                unpin(pages);
             }
 
             return buffer;
@@ -70,58 +84,37 @@ public class FileContext
 
     public Future<Long> transferTo(Channel channel, long size)
     {
-        int pageOffset = alignToPage(position) >> Page.PAGE_BITS;
-        short offset = getPagePosition(position);
-
-        List<Future<Long>> transfers = new ArrayList<>();
-        while (size > 0)
-        {
-            int toTransfer = (int) Math.min(Page.PAGE_SIZE - offset, size);
-            transfers.add(file.cache.transferPage(channel, pageOffset, offset, toTransfer));
-
-            pageOffset++;
-            offset = 0; // only first page has aligned offset
-            size -= toTransfer;
-        }
-
-        return file.cpu.sequence(transfers).map((sizes) -> {
-            long total = 0;
-            for (Long transferSize : sizes)
-                total += transferSize;
-
-            return total;
-        });
+        return file.cache.transferTo(channel, position, size);
     }
 
-    private Future<List<Page>> requestPages(long position, int size)
+    private Future<List<Page>> requestPages(long position, int size, boolean isRead)
     {
-        int pageCount  = size / Page.PAGE_SIZE + 1;
-        int pageOffset = alignToPage(position) >> Page.PAGE_BITS;
+        int pageOffset = (int) (position >> Page.PAGE_BITS);
+        // empty requests still need the page at the position to find out the bounds of the file
+        int pageCount  = size <= 0 ? 1 : (int) (((position + size - 1) >> Page.PAGE_BITS) - pageOffset) + 1;
+
+        if (isRead)
+            file.cache.readAhead(pageOffset, pageCount);
 
         // optimization for single page reads
         if (pageCount == 1)
-        {
-            file.markPageAccess(pageOffset);
             return file.cache.getOrCreate(pageOffset).map(Collections::singletonList);
-        }
-
-        List<Future<Page>> pages = new ArrayList<>(pageCount);
-        for (int i = 0; i < pageCount; i++)
-        {
-            file.markPageAccess(pageOffset);
-            pages.add(file.cache.getOrCreate(pageOffset + i));
-        }
 
-        return file.cpu.sequence(pages);
+        // all of the missing pages are loaded together
+        return file.cache.getOrCreate(pageOffset, pageCount);
     }
 
-    private static short getPagePosition(long position)
+    /**
+     * Pages are pinned by the cache until the request is done with them, so they can't be evicted in the meantime.
+     */
+    private static void unpin(List<Page> pages)
     {
-        return (short) (position - alignToPage(position));
+        for (Page page : pages)
+            page.unpin();
     }
 
-    private static int alignToPage(long position)
+    private static short getPagePosition(long position)
     {
-        return (int) (position & ~(Page.PAGE_SIZE - 1));
+        return (short) (position & (Page.PAGE_SIZE - 1));
     }
 }
@@ -0,0 +1,214 @@
+package io.windmill.disk;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import io.windmill.core.CPU;
+import io.windmill.core.Future;
+import io.windmill.disk.cache.PageCache;
+import io.windmill.utils.Futures;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Background write-back of the dirty pages cached by the files of a single CPU, similar to the
+ * {@code dirty_background_ratio} and {@code dirty_expire_centisecs} of Linux. Periodically (every
+ * {@code windmill.disk.flush_interval_ms}) flusher writes back, without fsync, the pages which have been dirty
+ * for longer than {@code windmill.disk.dirty_expire_ms} and, if more than {@code windmill.disk.dirty_background_ratio}
+ * percent of the CPU's page budget is dirty, the oldest dirty pages until it's back under the threshold.
+ *
+ * Rounds are incremental, every one of them writes at most {@code windmill.disk.flush_batch_pages} pages and
+ * the next one starts only once the previous is complete, so write-back never floods the I/O threads.
+ * Only the CPU thread accesses flusher state.
+ */
+class Flusher
+{
+    private static final Logger logger = LoggerFactory.getLogger(Flusher.class);
+
+    private static final int DIRTY_BACKGROUND_RATIO = Integer.getInteger("windmill.disk.dirty_background_ratio", 10);
+    private static final long DIRTY_EXPIRE_MS = Long.getLong("windmill.disk.dirty_expire_ms", 1000);
+    private static final long FLUSH_INTERVAL_MS = Long.getLong("windmill.disk.flush_interval_ms", 100);
+    private static final int FLUSH_BATCH_PAGES = Integer.getInteger("windmill.disk.flush_batch_pages", 256); // 1M
+
+    // after consecutive failures rounds are delayed exponentially, up to this many flush intervals
+    static final int MAX_BACKOFF_INTERVALS = 64;
+
+    private final CPU cpu;
+    private final int dirtyThreshold;
+    private final long expireNanos;
+    private final long intervalNanos;
+    private final int maxBatchPages;
+
+    // page caches of the open files
+    private final List<PageCache> caches = new ArrayList<>();
+    private boolean isScheduled = false;
+    private int consecutiveFailures = 0;
+
+    Flusher(CPU cpu)
+    {
+        this(cpu,
+             (int) ((long) cpu.getPageReplacer().getBudget() * DIRTY_BACKGROUND_RATIO / 100),
+             TimeUnit.MILLISECONDS.toNanos(DIRTY_EXPIRE_MS),
+             TimeUnit.MILLISECONDS.toNanos(FLUSH_INTERVAL_MS),
+             FLUSH_BATCH_PAGES);
+    }
+
+    /**
+     * @param cpu The CPU which owns the files.
+     * @param dirtyThreshold The number of dirty pages above which the oldest pages are written back.
+     * @param expireNanos The time page could stay dirty before it's written back.
+     * @param intervalNanos The time between write-back rounds.
+     * @param maxBatchPages The maximum number of pages written by a single round.
+     */
+    Flusher(CPU cpu, int dirtyThreshold, long expireNanos, long intervalNanos, int maxBatchPages)
+    {
+        if (dirtyThreshold < 0 || expireNanos < 0 || intervalNanos <= 0 || maxBatchPages <= 0)
+            throw new IllegalArgumentException("invalid flusher configuration");
+
+        this.cpu = cpu;
+        this.dirtyThreshold = dirtyThreshold;
+        this.expireNanos = expireNanos;
+        this.intervalNanos = intervalNanos;
+        this.maxBatchPages = maxBatchPages;
+    }
+
+    /**
+     * Start tracking dirty pages of the given cache, could be called by any thread.
+     */
+    void register(PageCache cache)
+    {
+        cpu.schedule(() -> {
+            caches.add(cache);
+
+            if (!isScheduled)
+                scheduleNext(intervalNanos);
+
+            return null;
+        });
+    }
+
+    /**
+     * Stop tracking dirty pages of the given cache, could be called by any thread.
+     */
+    void unregister(PageCache cache)
+    {
+        cpu.schedule(() -> caches.remove(cache));
+    }
+
+    /**
+     * Run a single write-back round, should be called by the CPU thread.
+     *
+     * @return The number of pages written.
+     */
+    Future<Integer> flush()
+    {
+        long now = System.nanoTime();
+
+        List<PageCache> dirty = new ArrayList<>();
+        int numDirtyPages = 0;
+
+        for (PageCache cache : caches)
+        {
+            if (cache.getNumDirtyPages() == 0)
+                continue;
+
+            dirty.add(cache);
+            numDirtyPages += cache.getNumDirtyPages();
+        }
+
+        if (dirty.isEmpty())
+            return Futures.constantFuture(cpu, 0);
+
+        // files with the oldest dirty pages go first
+        dirty.sort(Comparator.comparingLong((cache) -> cache.getOldestDirtyTime() - now));
+
+        int excess = numDirtyPages - dirtyThreshold;
+        int budget = maxBatchPages;
+
+        List<Future<Integer>> flushes = new ArrayList<>();
+        for (PageCache cache : dirty)
+        {
+            if (budget <= 0)
+                break;
+
+            int numPages = Math.min(budget, cache.getNumDirtyPages());
+
+            if (excess > 0)
+            {
+                // above the threshold the oldest pages are written back regardless of their age
+                numPages = Math.min(numPages, excess);
+                excess -= numPages;
+                flushes.add(cache.flushOldest(numPages, now + 1));
+            }
+            else
+            {
+                flushes.add(cache.flushOldest(numPages, now - expireNanos));
+            }
+
+            budget -= numPages;
+        }
+
+        return cpu.sequence(flushes).map((flushed) -> {
+            int numFlushed = 0;
+            for (int n : flushed)
+                numFlushed += n;
+
+            return numFlushed;
+        });
+    }
+
+    private int getNumDirtyPages()
+    {
+        int numDirtyPages = 0;
+        for (PageCache cache : caches)
+            numDirtyPages += cache.getNumDirtyPages();
+
+        return numDirtyPages;
+    }
+
+    private void scheduleNext(long delayNanos)
+    {
+        isScheduled = true;
+        cpu.sleep(delayNanos, TimeUnit.NANOSECONDS, () -> {
+            run();
+            return null;
+        });
+    }
+
+    private void run()
+    {
+        // there are no open files, next one is going to restart write-back
+        if (caches.isEmpty())
+        {
+            isScheduled = false;
+            return;
+        }
+
+        Future<Integer> round = flush();
+
+        round.onSuccess((flushed) -> {
+            consecutiveFailures = 0;
+            // keep going right away while there are more dirty pages than allowed
+            scheduleNext(getNumDirtyPages() > dirtyThreshold ? 0 : intervalNanos);
+        });
+
+        round.onFailure((e) -> {
+            // persistent errors (e.g. disk is full) would otherwise keep I/O threads busy retrying
+            long delayNanos = getRetryDelayNanos(++consecutiveFailures);
+            logger.warn("background write-back has failed, going to retry in {} ms", TimeUnit.NANOSECONDS.toMillis(delayNanos), e);
+            scheduleNext(delayNanos);
+        });
+    }
+
+    /**
+     * @return The delay before the next round after the given number of failed rounds in a row.
+     */
+    long getRetryDelayNanos(int numFailures)
+    {
+        int shift = Math.min(numFailures - 1, Integer.numberOfTrailingZeros(MAX_BACKOFF_INTERVALS));
+        return intervalNanos << shift;
+    }
+}
@@ -1,33 +1,54 @@
 package io.windmill.disk;
 
 import java.io.RandomAccessFile;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import io.windmill.core.CPU;
 import io.windmill.core.Future;
+import io.windmill.core.metrics.CPUMetrics;
+import io.windmill.core.metrics.Histogram;
 
 import net.openhft.affinity.AffinitySupport;
 
-import com.github.benmanes.caffeine.cache.Cache;
-
 public class IOService implements AutoCloseable
 {
     protected final CPU cpu;
-    protected final ExecutorService io;
-    protected final Cache<PageRef, Boolean> pageTracker;
+    protected final ThreadPoolExecutor io;
+    // background write-back of the dirty pages of the files opened by the CPU
+    protected final Flusher flusher;
+
+    // time from scheduling to completion of the I/O tasks, recorded by the I/O threads
+    protected final Histogram latency = new Histogram();
 
-    public IOService(CPU cpu, Cache<PageRef, Boolean> pageTracker, int numThreads)
+    public IOService(CPU cpu, int numThreads)
     {
         this.cpu = cpu;
-        this.io = Executors.newFixedThreadPool(numThreads, new LayoutAwareThreadFactory(cpu));
-        this.pageTracker = pageTracker;
+        this.io = new ThreadPoolExecutor(numThreads, numThreads,
+                                         0L, TimeUnit.MILLISECONDS,
+                                         new LinkedBlockingQueue<>(),
+                                         new LayoutAwareThreadFactory(cpu));
+        this.flusher = new Flusher(cpu);
     }
 
+    /**
+     * Open a file, besides the modes supported by {@link RandomAccessFile} there is a {@link MappedFile#MODE}
+     * which opens file for reading via memory mapping instead of the page cache.
+     *
+     * @param path The path to the file.
+     * @param mode The mode to open file in.
+     *
+     * @return The future of the opened file.
+     */
     public Future<File> open(String path, String mode)
     {
+        if (MappedFile.MODE.equals(mode))
+            return schedule(() -> new MappedFile(cpu, this, new RandomAccessFile(path, "r")));
+
         return schedule(() -> new File(cpu, this, new RandomAccessFile(path, mode)));
     }
 
@@ -36,13 +57,35 @@ public class IOService implements AutoCloseable
         return cpu;
     }
 
+    /**
+     * @return The number of I/O tasks waiting for the I/O thread to pick them up.
+     */
+    public int getQueueDepth()
+    {
+        return io.getQueue().size();
+    }
+
+    /**
+     * @return The latency of the I/O tasks (from being scheduled until complete) in nanoseconds.
+     */
+    public Histogram getLatency()
+    {
+        return latency;
+    }
+
     public <O> Future<O> schedule(IOTask<O> task)
     {
         Future<O> future = new Future<>(cpu);
-        io.execute(() -> {
+        long scheduledAt = CPUMetrics.ENABLED ? System.nanoTime() : 0;
+
+        FutureTask<Void> ioTask = new FutureTask<>(() -> {
             try
             {
                 O value = task.compute();
+
+                if (CPUMetrics.ENABLED)
+                    latency.recordConcurrent(System.nanoTime() - scheduledAt);
+
                 cpu.schedule(() -> {
                     future.setValue(value);
                     return null;
@@ -50,23 +93,25 @@ public class IOService implements AutoCloseable
             }
             catch (Throwable e)
             {
+                if (CPUMetrics.ENABLED)
+                    latency.recordConcurrent(System.nanoTime() - scheduledAt);
+
                 cpu.schedule(() -> {
                     future.setFailure(e);
                     return null;
                 });
             }
-        });
-        return future;
-    }
+        }, null);
 
-    void markPageAccessed(File file, int pageOffset)
-    {
-        pageTracker.put(new PageRef(file, pageOffset), true);
-    }
+        io.execute(ioTask);
 
-    void markPageEvicted(File file, int pageOffset)
-    {
-        pageTracker.invalidate(new PageRef(file, pageOffset));
+        // if task is still queued, remove it so it never runs and doesn't hold on to its resources
+        future.onCancel(() -> {
+            if (ioTask.cancel(false))
+                io.remove(ioTask);
+        });
+
+        return future;
     }
 
     @Override
@@ -0,0 +1,292 @@
+package io.windmill.disk;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+
+import io.windmill.core.CPU;
+import io.windmill.core.Future;
+import io.windmill.disk.cache.Page;
+import io.windmill.disk.cache.PageCache;
+import io.windmill.net.Channel;
+import io.windmill.net.io.OutputStream;
+import io.windmill.utils.Futures;
+import io.windmill.utils.IOUtils;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+
+/**
+ * Read-only {@link File} which is memory mapped instead of going through the {@link io.windmill.disk.cache.PageCache},
+ * so caching is left to the kernel. Files larger than 2GB are mapped in multiple chunks, reads return read-only slices
+ * of the mapping (no copy) and transfers to the network are done straight from the mapped memory.
+ *
+ * The mapping is done once, when the file is opened, so it's not going to observe the changes to the size of the file.
+ * Opened with "r-mmap" mode (see {@link IOService#open(String, String)}).
+ */
+public class MappedFile extends File
+{
+    public static final String MODE = "r-mmap";
+
+    // has to be a multiple of the page size, so chunk boundaries never split pages
+    static final int DEFAULT_CHUNK_SIZE = 1 << 30; // 1GB
+
+    // how far ahead of the reader the file is loaded with SEQUENTIAL advice
+    static final int DEFAULT_LOAD_AHEAD_SIZE = Integer.getInteger("windmill.disk.mmap_load_ahead_pages", 1024) * Page.PAGE_SIZE; // 4M
+
+    /**
+     * madvise(2) style hints about the way file is going to be accessed, JDK doesn't expose madvise,
+     * so only the hints which could be emulated by touching the mapped pages are acted upon.
+     */
+    public enum Advice
+    {
+        /** No special treatment, kernel read-around is used on page faults. */
+        NORMAL,
+        /** Pages are going to be accessed in random order, same as {@link #NORMAL}. */
+        RANDOM,
+        /** Pages are going to be accessed sequentially, the window ahead of the reads is loaded in the background. */
+        SEQUENTIAL,
+        /** Whole file is going to be needed soon, all of the chunks are loaded in the background. */
+        WILLNEED
+    }
+
+    private final FileChannel channel;
+    private final MappedByteBuffer[] chunks;
+    private final int chunkBits;
+    private final int loadAheadSize;
+    private final long size;
+
+    private volatile Advice advice = Advice.NORMAL;
+
+    // the end of the region which has been requested to be loaded ahead of the reader, accessed by the CPU thread
+    long loadAheadPosition = 0;
+
+    MappedFile(CPU cpu, IOService ioService, RandomAccessFile file) throws IOException
+    {
+        this(cpu, ioService, file.getChannel(), DEFAULT_CHUNK_SIZE, DEFAULT_LOAD_AHEAD_SIZE);
+    }
+
+    MappedFile(CPU cpu, IOService ioService, FileChannel channel, int chunkSize, int loadAheadSize) throws IOException
+    {
+        super(cpu, (PageCache) null, ioService);
+
+        if (Integer.bitCount(chunkSize) != 1 || chunkSize < Page.PAGE_SIZE)
+            throw new IllegalArgumentException("chunk size should be a power of 2 and at least a page: " + chunkSize);
+
+        if (loadAheadSize < 0)
+            throw new IllegalArgumentException("load ahead size can't be negative: " + loadAheadSize);
+
+        this.channel = channel;
+        this.loadAheadSize = loadAheadSize;
+        this.size = channel.size();
+        this.chunkBits = Integer.numberOfTrailingZeros(chunkSize);
+        this.chunks = new MappedByteBuffer[(int) ((size + chunkSize - 1) >> chunkBits)];
+
+        for (int i = 0; i < chunks.length; i++)
+        {
+            long position = (long) i << chunkBits;
+            chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(chunkSize, size - position));
+        }
+    }
+
+    /**
+     * @return The size of the file at the time it was mapped.
+     */
+    public long size()
+    {
+        return size;
+    }
+
+    /**
+     * Advise about the way file is going to be accessed from now on.
+     *
+     * @param advice The access pattern.
+     *
+     * @return The future which is set once advice has been applied, for {@link Advice#WILLNEED} that's
+     *         when the whole file is loaded into memory.
+     */
+    public Future<Void> advise(Advice advice)
+    {
+        this.advice = advice;
+
+        if (advice != Advice.WILLNEED)
+            return Futures.voidFuture(cpu);
+
+        return ioService.schedule(() -> {
+            for (MappedByteBuffer chunk : chunks)
+                chunk.load();
+
+            return null;
+        });
+    }
+
+    @Override
+    public long getReadAheadHits()
+    {
+        return 0; // read-ahead is done by the kernel
+    }
+
+    @Override
+    public long getReadAheadMisses()
+    {
+        return 0;
+    }
+
+    @Override
+    public Future<FileContext> seek(long newPosition)
+    {
+        return Futures.constantFuture(cpu, new MappedFileContext(this, newPosition));
+    }
+
+    @Override
+    public Future<Integer> sync()
+    {
+        return Futures.constantFuture(cpu, 0); // nothing could be dirty
+    }
+
+    @Override
+    public Future<Void> close()
+    {
+        // there is no way to unmap the buffers explicitly, the mapping goes away once they are garbage collected
+        return ioService.schedule(() -> {
+            IOUtils.closeQuietly(channel);
+            return null;
+        });
+    }
+
+    /**
+     * @return The read-only view of the given region of the file, which shares memory with the mapping,
+     *         could be shorter than requested (or empty) if region crosses the end of the file.
+     */
+    ByteBuf slice(long position, int length)
+    {
+        if (position >= size || length <= 0)
+            return Unpooled.EMPTY_BUFFER;
+
+        length = (int) Math.min(length, size - position);
+
+        int first = chunkIndex(position), last = chunkIndex(position + length - 1);
+
+        if (advice == Advice.SEQUENTIAL)
+            loadAhead(position + length);
+
+        if (first == last)
+            return Unpooled.wrappedBuffer(chunkSlice(first, position, length));
+
+        CompositeByteBuf composite = Unpooled.compositeBuffer(last - first + 1);
+        while (length > 0)
+        {
+            int chunk = chunkIndex(position);
+            int toSlice = (int) Math.min(length, ((long) (chunk + 1) << chunkBits) - position);
+
+            composite.addComponent(Unpooled.wrappedBuffer(chunkSlice(chunk, position, toSlice)));
+            composite.writerIndex(composite.writerIndex() + toSlice);
+
+            position += toSlice;
+            length -= toSlice;
+        }
+
+        return composite;
+    }
+
+    private ByteBuffer chunkSlice(int chunk, long position, int length)
+    {
+        int offset = (int) (position - ((long) chunk << chunkBits));
+
+        // duplicate so concurrent readers don't interfere with each other's position/limit
+        ByteBuffer slice = chunks[chunk].duplicate();
+        slice.limit(offset + length).position(offset);
+        return slice.slice();
+    }
+
+    private int chunkIndex(long position)
+    {
+        return (int) (position >> chunkBits);
+    }
+
+    /**
+     * Load the window ahead of the given position in the background, the next window is only requested
+     * once reader gets through the half of the previous one, so every page is touched once per pass.
+     *
+     * @param position The position the reader has reached.
+     */
+    private void loadAhead(long position)
+    {
+        if (position + loadAheadSize / 2 <= loadAheadPosition || position >= size)
+            return;
+
+        long from = Math.max(position, loadAheadPosition) & -Page.PAGE_SIZE;
+        long to = Math.min(size, position + loadAheadSize);
+
+        loadAheadPosition = to;
+        ioService.schedule(() -> touch(from, to));
+    }
+
+    /**
+     * Fault in the pages of the given region by reading a byte of every one of them.
+     *
+     * @return The sum of the bytes read, so JIT can't eliminate the reads.
+     */
+    private int touch(long from, long to)
+    {
+        int checksum = 0;
+        for (long position = from; position < to; position += Page.PAGE_SIZE)
+        {
+            int chunk = chunkIndex(position);
+            checksum += chunks[chunk].get((int) (position - ((long) chunk << chunkBits)));
+        }
+
+        return checksum;
+    }
+
+    private static class MappedFileContext extends FileContext
+    {
+        private final MappedFile file;
+
+        public MappedFileContext(MappedFile file, long position)
+        {
+            super(file, position);
+            this.file = file;
+        }
+
+        @Override
+        public Future<FileContext> write(ByteBuf buffer)
+        {
+            return Futures.failedFuture(file.cpu, new NonWritableChannelException());
+        }
+
+        @Override
+        public Future<ByteBuf> read(int size)
+        {
+            ByteBuf slice = file.slice(position, size);
+            position += slice.readableBytes();
+            return Futures.constantFuture(file.cpu, Unpooled.unmodifiableBuffer(slice));
+        }
+
+        @Override
+        public Future<Long> transferTo(Channel channel, long size)
+        {
+            OutputStream out = channel.getOutput();
+
+            // chunks are sliced up to the maximum of the int, transfer of the larger regions is split
+            long transferred = 0;
+            while (size > 0)
+            {
+                ByteBuf slice = file.slice(position + transferred, (int) Math.min(size, Integer.MAX_VALUE));
+                if (slice.readableBytes() == 0)
+                    break;
+
+                transferred += slice.readableBytes();
+                size -= slice.readableBytes();
+                out.writeBytes(slice);
+            }
+
+            long total = transferred;
+            return out.flush().map((v) -> total);
+        }
+    }
+}
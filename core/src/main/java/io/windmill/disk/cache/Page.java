@@ -1,8 +1,5 @@
 package io.windmill.disk.cache;
 
-import java.io.IOException;
-import java.nio.channels.FileChannel;
-
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 
@@ -23,6 +20,26 @@ public class Page
     // to media, we to try to write only dirty slices
     private byte dirtyBlocks;
 
+    // page has been loaded by read-ahead and hasn't been read yet, only accessed by the CPU thread
+    boolean isReadAhead;
+
+    // the number of requests using the page right now, pinned pages are skipped by the page replacer,
+    // only accessed by the CPU thread
+    int pins;
+
+    // incremented by every write, so write-back could tell if page has been modified while it was being written
+    private int modCount;
+
+    // the time page became dirty and its neighbours on the dirty list of the cache, only accessed by the CPU thread
+    long dirtiedAt;
+    Page prevDirty, nextDirty;
+
+    // page replacement state (see PageReplacer): the number of accesses since page has been looked at by the replacer,
+    // the queue page is on and its neighbours there, only the access count is updated outside of the replacer
+    byte accessCount;
+    byte queue;
+    Page prevQueued, nextQueued;
+
     public Page(PageCache tree, int pageOffset, ByteBuf buffer)
     {
         this.tree = tree;
@@ -35,6 +52,11 @@ public class Page
         return pageOffset;
     }
 
+    PageCache getCache()
+    {
+        return tree;
+    }
+
     public boolean isDirty()
     {
         return dirtyBlocks != 0;
@@ -43,51 +65,133 @@ public class Page
     public int write(short position, ByteBuf data)
     {
         int toWrite = Math.min(data.readableBytes(), PAGE_SIZE - position);
+        boolean wasClean = !isDirty();
 
         try
         {
             buffer.setBytes(position, data, toWrite);
             buffer.writerIndex(Math.max(buffer.writerIndex(), position + toWrite));
             markDirty(position, toWrite); // mark all affected blocks as dirty
+            modCount++;
             return toWrite;
         }
         finally
         {
             tree.markPageDirty(pageOffset);
+
+            if (wasClean && isDirty())
+                tree.addDirtyPage(this);
         }
     }
 
     public ByteBuf read(short position, int size)
     {
-        return position > buffer.writerIndex()
-                ? Unpooled.EMPTY_BUFFER
-                : buffer.copy(position, Math.min(buffer.writerIndex() - position, size));
+        if (position > buffer.writerIndex())
+            return Unpooled.EMPTY_BUFFER;
+
+        // page buffer is most likely off-heap, but copies are always handed out on heap
+        int length = Math.min(buffer.writerIndex() - position, size);
+        return Unpooled.buffer(length, length).writeBytes(buffer, position, length);
     }
 
-    public void writeTo(FileChannel file, boolean shouldSync) throws IOException
+    /**
+     * @return The read-only slice of the page, which shares memory with the page and is retained
+     *         on its behalf, so it has to be released once it's no longer needed.
+     */
+    public ByteBuf slice(short position, int size)
     {
-        try
-        {
-            long offset = pageOffset << PAGE_BITS;
-            for (int block = 0; block < Byte.SIZE; block++)
-            {
-                if ((dirtyBlocks & (1L << block)) == 0)
-                    continue; // clean block
+        if (position > buffer.writerIndex())
+            return Unpooled.EMPTY_BUFFER;
 
-                int position = block * BLOCK_SIZE;
-                int length = Math.min(buffer.readableBytes() - position, BLOCK_SIZE);
+        ByteBuf slice = buffer.slice(position, Math.min(buffer.writerIndex() - position, size));
+        return Unpooled.unmodifiableBuffer(slice).retain();
+    }
 
-                buffer.getBytes(position, file.position(offset + position), length);
-            }
+    /**
+     * @return The bit set of the dirty 512 byte blocks of the page.
+     */
+    byte getDirtyBlocks()
+    {
+        return dirtyBlocks;
+    }
 
-            if (shouldSync)
-                file.force(true);
-        }
-        finally
-        {
+    /**
+     * @return The number of writes made to the page so far.
+     */
+    int getModCount()
+    {
+        return modCount;
+    }
+
+    /**
+     * @return The number of bytes of the page which are backed by the file (or have been written).
+     */
+    int getLength()
+    {
+        return buffer.writerIndex();
+    }
+
+    /**
+     * Mark page clean after it has been written back, unless it has been modified since.
+     *
+     * @param expectedModCount The number of writes made to the page at the time write-back started.
+     */
+    void markClean(int expectedModCount)
+    {
+        if (modCount != expectedModCount)
+            return; // has to be written again
+
+        dirtyBlocks = 0;
+        tree.removeDirtyPage(this);
+
+        // page could have been evicted (and its offset re-used by another page) while write-back was in progress
+        if (tree.contains(this))
             tree.markPageClean(pageOffset);
-            dirtyBlocks = 0;
-        }
+    }
+
+    /**
+     * Record access to the page for the page replacement, plain write so it could be done on every read or write.
+     */
+    void markAccessed()
+    {
+        if (accessCount < PageReplacer.MAX_ACCESS_COUNT)
+            accessCount++;
+    }
+
+    /**
+     * Pin the page on behalf of the request it's handed out to, so it can't be evicted while it's being used.
+     */
+    void pin()
+    {
+        pins++;
+    }
+
+    /**
+     * Unpin the page handed out by {@link PageCache#getOrCreate(int)} or {@link PageCache#getOrCreate(int, int)},
+     * once the request is done with it. Should be called by the CPU thread.
+     */
+    public void unpin()
+    {
+        assert pins > 0;
+
+        if (--pins == 0)
+            tree.onUnpinned(this);
+    }
+
+    /**
+     * Evict the page from its cache (with write-back if it's dirty).
+     */
+    void evict()
+    {
+        tree.evictPage(pageOffset);
+    }
+
+    /**
+     * Release the memory of the page, it is going to be re-used once all of the slices are released as well.
+     */
+    void release()
+    {
+        buffer.release();
     }
 
     private void markDirty(short position, int size)
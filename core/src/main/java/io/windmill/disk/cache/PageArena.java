@@ -0,0 +1,139 @@
+package io.windmill.disk.cache;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.buffer.UnpooledDirectByteBuf;
+
+/**
+ * Off-heap storage for the pages cached by the CPUs of a single socket, so the page budgets moved between them
+ * (see {@link PageReplacer#rebalance(int[], long[])}) are always backed by its slots. Direct memory is allocated in slabs
+ * (lazily, up to the capacity of the arena) which are split into page sized slots, slot is returned
+ * to the free list once page is evicted and all of the buffers sharing its memory are released.
+ *
+ * If arena is exhausted, pages are allocated on heap until some of the slots are recycled.
+ */
+public class PageArena
+{
+    static final int SLAB_SIZE = 2 * 1024 * 1024; // 512 pages per slab
+
+    private final int maxSlots;
+    private final Queue<ByteBuffer> freeSlots = new ArrayDeque<>();
+
+    private int allocatedSlots = 0;
+    private int usedSlots = 0;
+
+    // false once direct memory limit has been reached
+    private boolean canGrow = true;
+
+    /**
+     * @param capacity The maximum number of bytes of direct memory arena is allowed to allocate.
+     */
+    public PageArena(long capacity)
+    {
+        if (capacity < 0)
+            throw new IllegalArgumentException("page arena capacity can't be negative");
+
+        this.maxSlots = (int) Math.min(Integer.MAX_VALUE, capacity / Page.PAGE_SIZE);
+    }
+
+    /**
+     * @return The empty page sized buffer, backed by the arena slot if there is one available.
+     *         Slot is recycled once buffer is released.
+     */
+    public synchronized ByteBuf allocate()
+    {
+        ByteBuffer slot = freeSlots.poll();
+
+        if (slot == null && canGrow && allocatedSlots < maxSlots)
+            slot = allocateSlab();
+
+        if (slot == null)
+            return Unpooled.buffer(Page.PAGE_SIZE);
+
+        usedSlots++;
+        return new PageBuffer(this, slot).clear();
+    }
+
+    /**
+     * @return The number of slots currently used by the pages.
+     */
+    public synchronized int getUsedSlots()
+    {
+        return usedSlots;
+    }
+
+    /**
+     * @return The number of slots allocated by the arena so far.
+     */
+    public synchronized int getAllocatedSlots()
+    {
+        return allocatedSlots;
+    }
+
+    /**
+     * @return The maximum number of slots arena can allocate.
+     */
+    public int getMaxSlots()
+    {
+        return maxSlots;
+    }
+
+    private synchronized void free(ByteBuffer slot)
+    {
+        usedSlots--;
+        freeSlots.add(slot);
+    }
+
+    private ByteBuffer allocateSlab()
+    {
+        int numSlots = Math.min(SLAB_SIZE / Page.PAGE_SIZE, maxSlots - allocatedSlots);
+
+        ByteBuffer slab;
+
+        try
+        {
+            slab = ByteBuffer.allocateDirect(numSlots * Page.PAGE_SIZE);
+        }
+        catch (OutOfMemoryError e)
+        {
+            // direct memory limit has been reached, the rest of the pages are going to be allocated on heap
+            canGrow = false;
+            return null;
+        }
+
+        for (int i = 0; i < numSlots; i++)
+        {
+            slab.limit((i + 1) * Page.PAGE_SIZE).position(i * Page.PAGE_SIZE);
+            freeSlots.add(slab.slice());
+        }
+
+        allocatedSlots += numSlots;
+        return freeSlots.poll();
+    }
+
+    private static class PageBuffer extends UnpooledDirectByteBuf
+    {
+        private final PageArena arena;
+        private final ByteBuffer slot;
+
+        public PageBuffer(PageArena arena, ByteBuffer slot)
+        {
+            super(UnpooledByteBufAllocator.DEFAULT, slot, Page.PAGE_SIZE);
+
+            this.arena = arena;
+            this.slot = slot;
+        }
+
+        @Override
+        protected void deallocate()
+        {
+            // memory belongs to the arena slab, so instead of being freed it's returned back for re-use
+            arena.free(slot);
+        }
+    }
+}
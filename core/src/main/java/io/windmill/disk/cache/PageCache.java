@@ -1,19 +1,25 @@
 package io.windmill.disk.cache;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.function.Consumer;
 
 import io.windmill.core.CPU;
 import io.windmill.core.Future;
+import io.windmill.core.tasks.VoidTask0;
+import io.windmill.core.tasks.VoidTask1;
 import io.windmill.net.Channel;
 import io.windmill.net.io.OutputStream;
 import io.windmill.utils.Futures;
+import io.windmill.utils.IOUtils;
 
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
 import io.netty.util.collection.IntObjectHashMap;
 import io.netty.util.collection.IntObjectMap;
 
@@ -35,16 +41,52 @@ public class PageCache
             HEIGHT_TO_MAX_INDEX[i] = maxIndex(i);
     }
 
+    // read-ahead window starts small on the first sequential read and doubles every time reader catches up with it,
+    // setting maximum to zero disables read-ahead
+    private final static int MAX_READ_AHEAD = Integer.getInteger("windmill.disk.max_read_ahead_pages", 32); // 128K
+    private final static int INITIAL_READ_AHEAD = Math.min(4, MAX_READ_AHEAD); // 16K
+
+    // the largest positional read (or write) issued for the pages, runs of pages are copied through a scratch buffer
+    // of the I/O thread since pages themselves are not contiguous in memory
+    final static int MAX_IO_SIZE = 64 * Page.PAGE_SIZE; // 256K
+    final static ThreadLocal<ByteBuffer> SCRATCH_BUFFER = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(MAX_IO_SIZE));
+
     private Node root = null;
 
     private final CPU cpu;
     private final FileChannel file;
-    private final IntObjectMap<Future<Page>> loadingPages = new IntObjectHashMap<>();
+    private final PageArena arena;
+    private final PageReplacer replacer;
+    private final IntObjectMap<PageLoad> loadingPages = new IntObjectHashMap<>();
+
+    // read access pattern, only accessed by the CPU thread
+    private int lastReadPage = -1;
+    private int readAheadWindow = 0; // zero while access is random
+    private int readAheadEnd = 0; // (exclusive) the last page which has been requested by read-ahead so far
+
+    private long readAheadHits = 0;
+    private long readAheadMisses = 0;
+
+    // dirty pages in the order they became dirty (oldest first), only accessed by the CPU thread
+    private Page oldestDirty, newestDirty;
+    private int numDirtyPages = 0;
 
+    // write-backs which don't force the file (eviction and background flush), sync has to wait for them
+    // and force the file even if there are no dirty pages left
+    private final List<Future<Integer>> pendingWrites = new ArrayList<>();
+    private boolean isForcePending = false;
+    private boolean isExtendedSinceForce = false;
+
+    /**
+     * @param cpu The CPU which owns the cache, pages are stored in its arena and evicted by its page replacer.
+     * @param backingFile The file to cache pages of.
+     */
     public PageCache(CPU cpu, FileChannel backingFile)
     {
         this.cpu = cpu;
         this.file = backingFile;
+        this.arena = cpu.getPageArena();
+        this.replacer = cpu.getPageReplacer();
     }
 
     /**
@@ -63,12 +105,43 @@ public class PageCache
 
         Page page = slot.page;
 
-        // remove page reference from the slot
-        slot.setPage(null);
+        // replacer is not going to pick the page again while it's being evicted
+        replacer.remove(page);
+
+        if (!page.isDirty())
+        {
+            // remove page reference from the slot
+            slot.setPage(null);
+            page.release();
+            return Futures.voidFuture(cpu);
+        }
+
+        // dirty page stays in the tree (and on the dirty list) until it's written, so readers still see its data
+        // in the meantime, and nothing is lost if write-back fails, the page is just going to be evicted again later.
+        // Eviction never waits for fsync, the next sync is going to force the file.
+        Future<Integer> writeBack = writeBack(Collections.singletonList(page), false);
+
+        writeBack.onFailure((e) -> {
+            if (contains(page))
+                replacer.add(page);
+        });
+
+        return writeBack.map((numFlushed) -> {
+            // could have been evicted, or released by close, in the meantime
+            if (!contains(page))
+                return null;
 
-        return !page.isDirty()
-                ? Futures.voidFuture(cpu)
-                : cpu.scheduleIO(() -> { page.writeTo(file, true); return null; });
+            // written to again while write-back was in progress
+            if (page.isDirty())
+            {
+                replacer.add(page);
+                return null;
+            }
+
+            search(pageOffset).setPage(null);
+            page.release();
+            return null;
+        });
     }
 
     /**
@@ -112,14 +185,246 @@ public class PageCache
      *
      * @param pageOffset The offset for page in the tree (must be PAGE_SIZE aligned)
      *
-     * @return Already existing page which belongs to given offset or newly allocated one.
+     * @return Already existing page which belongs to given offset or newly allocated one, pinned on behalf of
+     *         the caller, so it has to be unpinned (see {@link Page#unpin()}) once it's no longer needed.
      */
     public Future<Page> getOrCreate(int pageOffset)
     {
         Node slot = search(pageOffset);
-        return slot != null && slot.isDataNode()
-                ? Futures.constantFuture(cpu, slot.page)
-                : allocatePage(pageOffset);
+        if (slot == null || !slot.isDataNode())
+            return allocatePage(pageOffset);
+
+        slot.page.markAccessed();
+        slot.page.pin();
+        return Futures.constantFuture(cpu, slot.page);
+    }
+
+    /**
+     * Retrieve or allocate the given range of pages. Pages which are neither cached nor already being loaded
+     * are loaded in contiguous runs, each one with a single scatter read on one of the I/O threads,
+     * instead of a separate I/O request per page.
+     *
+     * @param pageOffset The offset of the first page in the tree.
+     * @param numPages The number of pages to retrieve.
+     *
+     * @return The pages of the range, in order, pinned on behalf of the caller, so they have to be unpinned
+     *         (see {@link Page#unpin()}) once they are no longer needed. Pages are unpinned by the cache
+     *         if the range can't be retrieved.
+     */
+    public Future<List<Page>> getOrCreate(int pageOffset, int numPages)
+    {
+        Page[] pages = new Page[numPages];
+        Future<List<Page>> result = new Future<>(cpu);
+
+        // starts at one, so result can't be completed until all of the loads have been issued
+        int[] pending = { 1 };
+
+        VoidTask0 onLoaded = () -> {
+            if (--pending[0] == 0 && !result.isAvailable())
+                result.setValue(Arrays.asList(pages));
+        };
+
+        // pages which are already pinned are of no use to anybody once the range has failed or has been cancelled,
+        // and the ones which finish loading after that are unpinned as soon as they arrive
+        VoidTask0 unpinAll = () -> {
+            for (int i = 0; i < numPages; i++)
+            {
+                if (pages[i] != null)
+                    pages[i].unpin();
+
+                pages[i] = null;
+            }
+        };
+
+        VoidTask1<Throwable> onFailure = (e) -> {
+            if (result.isAvailable())
+                return;
+
+            result.setFailure(e);
+            unpinAll.compute();
+        };
+
+        result.onCancel(unpinAll);
+
+        int runStart = -1;
+        for (int i = 0; i <= numPages; i++)
+        {
+            PageLoad load = null;
+
+            if (i < numPages)
+            {
+                Node slot = search(pageOffset + i);
+                if (slot != null && slot.isDataNode())
+                {
+                    pages[i] = slot.page;
+                    pages[i].markAccessed();
+                    pages[i].pin();
+                }
+                else if ((load = loadingPages.get(pageOffset + i)) == null)
+                {
+                    if (runStart < 0)
+                        runStart = i;
+
+                    continue; // missing page extends current run
+                }
+            }
+
+            if (runStart >= 0)
+            {
+                int start = runStart;
+
+                pending[0]++;
+                Future<Page[]> run = new Future<>(cpu);
+                loadRun(pageOffset + start, i - start, Integer.MAX_VALUE, run);
+                run.onSuccess((loaded) -> {
+                    if (result.isAvailable())
+                    {
+                        for (Page page : loaded)
+                            page.unpin();
+
+                        return;
+                    }
+
+                    System.arraycopy(loaded, 0, pages, start, loaded.length);
+                    onLoaded.compute();
+                });
+                run.onFailure(onFailure);
+
+                runStart = -1;
+            }
+
+            // page is being loaded by somebody else (e.g. read-ahead)
+            if (load != null)
+            {
+                int index = i;
+
+                load.isReadAhead = false;
+                load.pins++;
+                pending[0]++;
+
+                load.onSuccess((page) -> {
+                    if (result.isAvailable())
+                    {
+                        page.unpin();
+                        return;
+                    }
+
+                    pages[index] = page;
+                    onLoaded.compute();
+                });
+                load.onFailure(onFailure);
+            }
+        }
+
+        onLoaded.compute();
+        return result;
+    }
+
+    /**
+     * Notify cache that the given range of pages is about to be read, so it can track the access pattern.
+     * Reads which continue where the previous one left off are considered sequential, and pages ahead of them
+     * are loaded asynchronously, using a window
+     * which grows while access stays sequential and collapses on the first random read.
+     *
+     * @param pageOffset The offset of the first page to be read.
+     * @param numPages The number of pages to be read.
+     */
+    public void readAhead(int pageOffset, int numPages)
+    {
+        int lastPage = pageOffset + numPages - 1;
+
+        for (int i = pageOffset; i <= lastPage; i++)
+            recordRead(i);
+
+        boolean isSequential = pageOffset == lastReadPage || pageOffset == lastReadPage + 1;
+        lastReadPage = lastPage;
+
+        if (!isSequential || MAX_READ_AHEAD <= 0)
+        {
+            readAheadWindow = 0;
+            readAheadEnd = 0;
+            return;
+        }
+
+        if (readAheadWindow == 0)
+        {
+            readAheadWindow = INITIAL_READ_AHEAD;
+            readAheadEnd = pageOffset;
+        }
+        else if (lastPage + readAheadWindow / 2 < readAheadEnd)
+        {
+            return; // there are still enough pages ahead of the reader
+        }
+        else
+        {
+            readAheadWindow = Math.min(readAheadWindow * 2, MAX_READ_AHEAD);
+        }
+
+        int end = lastPage + 1 + readAheadWindow;
+        // requested pages are left to the reader, so they could be loaded together with the rest of the request
+        loadAhead(Math.max(lastPage + 1, readAheadEnd), end);
+        readAheadEnd = end;
+    }
+
+    /**
+     * @return The number of pages loaded by read-ahead which have been read afterwards.
+     */
+    public long getReadAheadHits()
+    {
+        return readAheadHits;
+    }
+
+    /**
+     * @return The number of pages which had to be loaded on demand when read.
+     */
+    public long getReadAheadMisses()
+    {
+        return readAheadMisses;
+    }
+
+    private void recordRead(int pageOffset)
+    {
+        Node slot = search(pageOffset);
+        if (slot != null && slot.isDataNode())
+        {
+            if (slot.page.isReadAhead)
+            {
+                slot.page.isReadAhead = false;
+                readAheadHits++;
+            }
+
+            return;
+        }
+
+        PageLoad load = loadingPages.get(pageOffset);
+        if (load == null)
+        {
+            readAheadMisses++;
+        }
+        else if (load.isReadAhead)
+        {
+            load.isReadAhead = false;
+            readAheadHits++;
+        }
+    }
+
+    /**
+     * Called once the last request using the page is done with it, so eviction skipped while
+     * the page was pinned could bring the cache back within its budget.
+     */
+    void onUnpinned(Page page)
+    {
+        if (contains(page))
+            replacer.evictLater();
+    }
+
+    /**
+     * @return true if given page is still cached by the tree (it hasn't been evicted or replaced).
+     */
+    boolean contains(Page page)
+    {
+        Node slot = search(page.getOffset());
+        return slot != null && slot.isDataNode() && slot.page == page;
     }
 
     /**
@@ -241,37 +546,237 @@ public class PageCache
         }
     }
 
-    public Future<Long> transferPage(Channel channel, int pageOffset, short offset, int size)
+    /**
+     * Transfer given range of the file to the network without copying it, contiguous runs of pages which
+     * are not in the cache are sent with a single {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}
+     * and cached (possibly dirty) pages are sent as read-only slices of their buffers.
+     *
+     * NOTE: cached pages are not copied, so writes to them made before the transfer completes might be visible to the peer.
+     *
+     * @param channel The channel to transfer the range to.
+     * @param position The file position to start transfer from.
+     * @param length The number of bytes to transfer.
+     *
+     * @return The number of bytes transferred, might be less then requested length if the file length bound was crossed.
+     */
+    public Future<Long> transferTo(Channel channel, long position, long length)
     {
-        Node slot = search(pageOffset);
         OutputStream out = channel.getOutput();
+        List<Future<Long>> transfers = new ArrayList<>();
+
+        long cachedBytes = 0;
+        // the run of the pages which are going to be transferred directly from the file
+        long runPosition = position, runLength = 0;
+
+        while (length > 0)
+        {
+            int pageOffset = (int) (position >> Page.PAGE_BITS);
+            short offset = (short) (position & (Page.PAGE_SIZE - 1));
+            int toTransfer = (int) Math.min(Page.PAGE_SIZE - offset, length);
+
+            Node slot = search(pageOffset);
+            if (slot == null || !slot.isDataNode())
+            {
+                if (runLength == 0)
+                    runPosition = position;
+
+                runLength += toTransfer;
+            }
+            else
+            {
+                if (runLength > 0)
+                {
+                    transfers.add(out.transferFrom(file, runPosition, runLength));
+                    runLength = 0;
+                }
 
-        return slot == null || !slot.isDataNode()
-                ? out.transferFrom(file, (pageOffset << Page.PAGE_BITS) + offset, size)
-                : out.writeAndFlush(slot.page.read(offset, size));
+                ByteBuf slice = slot.page.slice(offset, toTransfer);
+                cachedBytes += slice.readableBytes();
+                out.writeBytes(slice);
+            }
+
+            position += toTransfer;
+            length -= toTransfer;
+        }
+
+        if (runLength > 0)
+            transfers.add(out.transferFrom(file, runPosition, runLength));
+        else if (cachedBytes > 0)
+            transfers.add(out.flush().map((v) -> 0L)); // range ends with cached pages
+
+        if (transfers.isEmpty())
+            return Futures.constantFuture(cpu, cachedBytes);
+
+        // all of the transfers are done in order by the same stream, so just sum up their results
+        Future<Long> result = new Future<>(cpu);
+        long[] transferred = { cachedBytes };
+        int[] pending = { transfers.size() };
+
+        for (Future<Long> transfer : transfers)
+        {
+            transfer.onSuccess((bytes) -> {
+                transferred[0] += bytes;
+
+                if (--pending[0] == 0 && !result.isAvailable())
+                    result.setValue(transferred[0]);
+            });
+
+            transfer.onFailure((e) -> {
+                if (!result.isAvailable())
+                    result.setFailure(e);
+            });
+        }
+
+        return result;
     }
 
     /**
-     * @return Sync the cache with file and return number of pages flushed
+     * Write all of the dirty pages back to the file and fsync it. Dirty blocks which are adjacent in the file
+     * are merged (across page boundaries) and written with a single positional write per extent, extents are written
+     * in the file order. Pages are marked clean once write-back is complete, unless they have been modified
+     * in the meantime. Write-backs which have been started by eviction or background flush are waited for first,
+     * so everything they've written is forced as well.
+     *
+     * @return The number of pages flushed.
      */
     public Future<Integer> sync()
     {
-        // flush all of the dirty pages in sequence
-        return cpu.scheduleIO(() -> {
-            int numFlushed = 0;
-            for (Page page : getDirtyPages())
+        // dirty state of the tree is only accessed by the CPU thread
+        if (!cpu.isCurrent())
+            return cpu.schedule(this::sync).flatMap((f) -> f);
+
+        if (!pendingWrites.isEmpty())
+        {
+            // pages of the failed write-backs are still dirty, so they are just written again
+            List<Future<Void>> completions = new ArrayList<>(pendingWrites.size());
+            for (Future<Integer> pending : pendingWrites)
             {
-                page.writeTo(file, false);
-                numFlushed++;
+                Future<Void> completion = new Future<>(cpu);
+                pending.onComplete(() -> completion.setValue(null));
+                completions.add(completion);
             }
 
-            // after all of the pages are written, let's force fsync
-            file.force(true);
+            return cpu.sequence(completions).flatMap((completed) -> sync());
+        }
 
+        if (!isDirty() && !isForcePending)
+            return Futures.constantFuture(cpu, 0);
+
+        return writeBack(getDirtyPages(), true);
+    }
+
+    /**
+     * Write back (without fsync) the pages which have been dirty the longest, at most given number of them.
+     *
+     * @param maxPages The maximum number of pages to write.
+     * @param dirtiedBefore The {@link System#nanoTime()} pages should have become dirty before to be written.
+     *
+     * @return The number of pages written.
+     */
+    public Future<Integer> flushOldest(int maxPages, long dirtiedBefore)
+    {
+        List<Page> pages = new ArrayList<>();
+        for (Page page = oldestDirty; page != null && pages.size() < maxPages && page.dirtiedAt - dirtiedBefore < 0; page = page.nextDirty)
+            pages.add(page);
+
+        if (pages.isEmpty())
+            return Futures.constantFuture(cpu, 0);
+
+        // extents are written in the file order
+        pages.sort(Comparator.comparingInt(Page::getOffset));
+        return writeBack(pages, false);
+    }
+
+    /**
+     * @return The {@link System#nanoTime()} when the oldest dirty page of the cache became dirty,
+     *         only valid if there are dirty pages.
+     */
+    public long getOldestDirtyTime()
+    {
+        return oldestDirty == null ? System.nanoTime() : oldestDirty.dirtiedAt;
+    }
+
+    /**
+     * @return The number of the dirty pages, updated by the CPU thread.
+     */
+    public int getNumDirtyPages()
+    {
+        return numDirtyPages;
+    }
+
+    private Future<Integer> writeBack(List<Page> pages, boolean shouldForce)
+    {
+        WriteBack writeBack = new WriteBack(pages);
+
+        boolean isExtended = isExtendedSinceForce;
+        if (shouldForce)
+            isForcePending = isExtendedSinceForce = false;
+
+        Future<Integer> flush = cpu.scheduleIO(() -> writeBack.writeTo(file, shouldForce, isExtended));
+        flush.onFailure((e) -> {
+            writeBack.release();
+
+            if (!shouldForce)
+                pendingWrites.remove(flush);
+
+            // whatever has been written before has to be forced by the next sync
+            if (shouldForce)
+            {
+                isForcePending = true;
+                isExtendedSinceForce |= isExtended;
+            }
+        });
+
+        if (!shouldForce)
+            pendingWrites.add(flush);
+
+        return flush.map((numFlushed) -> {
+            if (!shouldForce)
+            {
+                pendingWrites.remove(flush);
+                isForcePending = true;
+                isExtendedSinceForce |= writeBack.isExtending();
+            }
+
+            writeBack.complete();
             return numFlushed;
         });
     }
 
+    void addDirtyPage(Page page)
+    {
+        page.dirtiedAt = System.nanoTime();
+        page.prevDirty = newestDirty;
+        page.nextDirty = null;
+
+        if (newestDirty == null)
+            oldestDirty = page;
+        else
+            newestDirty.nextDirty = page;
+
+        newestDirty = page;
+        numDirtyPages++;
+    }
+
+    void removeDirtyPage(Page page)
+    {
+        if (page != oldestDirty && page.prevDirty == null)
+            return; // not on the list
+
+        if (page.prevDirty == null)
+            oldestDirty = page.nextDirty;
+        else
+            page.prevDirty.nextDirty = page.nextDirty;
+
+        if (page.nextDirty == null)
+            newestDirty = page.prevDirty;
+        else
+            page.nextDirty.prevDirty = page.prevDirty;
+
+        page.prevDirty = page.nextDirty = null;
+        numDirtyPages--;
+    }
+
     public Future<Void> close()
     {
         return close(null);
@@ -293,6 +798,17 @@ public class PageCache
                 return null;
             });
 
+            // file is gone, so pages can be returned to the arena
+            close.onComplete(() -> {
+                forEach((page) -> {
+                    replacer.remove(page);
+                    page.release();
+                });
+
+                // so the work still in flight (e.g. evictions) doesn't find released pages in the tree
+                root = null;
+            });
+
             close.onSuccess(closePromise::setValue);
             close.onFailure(closePromise::setFailure);
         });
@@ -341,6 +857,174 @@ public class PageCache
 
     private Future<Page> allocatePage(int pageOffset)
     {
+        PageLoad pageFuture = loadingPages.get(pageOffset);
+
+        // requested page is already page-fault'ed and being loaded from disk
+        if (pageFuture != null)
+        {
+            pageFuture.isReadAhead = false; // it's no longer speculative
+            pageFuture.pins++;
+            return pageFuture;
+        }
+
+        return loadRun(pageOffset, 1, pageOffset + 1, null)[0];
+    }
+
+    /**
+     * Speculatively load all of the pages in the given range which are neither cached nor already being loaded,
+     * every contiguous run of such pages is read from the file with a single scatter read.
+     *
+     * @param from The offset of the first page to load.
+     * @param to The offset of the page after the last one to load.
+     */
+    private void loadAhead(int from, int to)
+    {
+        int runStart = -1;
+        for (int pageOffset = from; pageOffset < to; pageOffset++)
+        {
+            Node slot = search(pageOffset);
+            boolean isMissing = (slot == null || !slot.isDataNode()) && !loadingPages.containsKey(pageOffset);
+
+            if (isMissing && runStart < 0)
+            {
+                runStart = pageOffset;
+            }
+            else if (!isMissing && runStart >= 0)
+            {
+                loadRun(runStart, pageOffset - runStart, runStart, null);
+                runStart = -1;
+            }
+        }
+
+        if (runStart >= 0)
+            loadRun(runStart, to - runStart, runStart, null);
+    }
+
+    /**
+     * Load contiguous run of pages, none of which should be cached or being loaded already, with a single scatter read
+     * on one of the I/O threads. All of the loaded pages are inserted into the tree at once, on the CPU thread.
+     *
+     * @param firstPage The offset of the first page of the run.
+     * @param numPages The number of pages in the run.
+     * @param readAheadFrom The offset of the first page which is loaded speculatively.
+     * @param run The optional promise of the whole run, set to the loaded pages in order
+     *            (speculative pages beyond the end of the file are null) once all of them are inserted.
+     *
+     * @return The promises of the individual pages of the run.
+     */
+    private PageLoad[] loadRun(int firstPage, int numPages, int readAheadFrom, Future<Page[]> run)
+    {
+        assert firstPage >= 0 && numPages > 0;
+
+        ByteBuf[] buffers = new ByteBuf[numPages];
+        PageLoad[] pages = new PageLoad[numPages];
+
+        for (int i = 0; i < numPages; i++)
+        {
+            int pageOffset = firstPage + i;
+
+            buffers[i] = arena.allocate();
+            pages[i] = new PageLoad(cpu, pageOffset >= readAheadFrom);
+            pages[i].pins = pages[i].isReadAhead ? 0 : 1;
+            loadingPages.put(pageOffset, pages[i]);
+        }
+
+        Future<Void> read = cpu.scheduleIO(() -> {
+            readPages(firstPage, buffers);
+            return null;
+        });
+
+        read.onSuccess((v) -> {
+            Page[] loaded = new Page[numPages];
+
+            for (int i = 0; i < numPages; i++)
+            {
+                // read-ahead went past the end of the file and nobody has requested the page in the meantime
+                if (pages[i].isReadAhead && buffers[i].writerIndex() == 0)
+                {
+                    buffers[i].release();
+                    loadingPages.remove(firstPage + i);
+                    continue;
+                }
+
+                Page page = new Page(this, firstPage + i, buffers[i]);
+                page.isReadAhead = pages[i].isReadAhead;
+                page.pins = pages[i].pins; // so eviction triggered by the add doesn't take it from its requests
+
+                insertPage(page);
+                replacer.add(page);
+                loadingPages.remove(firstPage + i);
+                pages[i].setValue(page);
+                loaded[i] = page;
+            }
+
+            if (run != null)
+                run.setValue(loaded);
+        });
+
+        read.onFailure((e) -> {
+            for (int i = 0; i < numPages; i++)
+            {
+                buffers[i].release();
+                loadingPages.remove(firstPage + i);
+                pages[i].setFailure(e);
+            }
+
+            if (run != null)
+                run.setFailure(e);
+        });
+
+        return pages;
+    }
+
+    /**
+     * Read contiguous run of pages, starting at the given one, into their (arena) buffers using positional reads,
+     * so I/O threads never contend on the position of the file. Single page is read directly, longer runs are read
+     * with one system call per {@link #MAX_IO_SIZE} into the scratch buffer of the I/O thread and copied into the pages.
+     * Pages which cross the end of the file are left partially filled or empty.
+     */
+    private void readPages(int firstPage, ByteBuf[] buffers) throws IOException
+    {
+        long position = (long) firstPage << Page.PAGE_BITS;
+
+        if (buffers.length == 1)
+        {
+            buffers[0].writerIndex(IOUtils.readFully(file, buffers[0].nioBuffer(0, Page.PAGE_SIZE), position));
+            return;
+        }
+
+        ByteBuffer scratch = SCRATCH_BUFFER.get();
+
+        for (int i = 0; i < buffers.length;)
+        {
+            int numPages = Math.min(buffers.length - i, MAX_IO_SIZE / Page.PAGE_SIZE);
+
+            scratch.clear().limit(numPages * Page.PAGE_SIZE);
+            int readBytes = IOUtils.readFully(file, scratch, position + ((long) i << Page.PAGE_BITS));
+
+            for (int page = 0; page < numPages; page++, i++)
+            {
+                int pageStart = page * Page.PAGE_SIZE;
+                int pageBytes = Math.max(0, Math.min(Page.PAGE_SIZE, readBytes - pageStart));
+
+                scratch.limit(pageStart + pageBytes).position(pageStart);
+                buffers[i].writeBytes(scratch);
+            }
+
+            if (readBytes < numPages * Page.PAGE_SIZE)
+                return; // reached the end of the file, the rest of the pages stay empty
+        }
+    }
+
+    /**
+     * Insert loaded page into the tree, extending the tree if necessary.
+     *
+     * @param page The page to insert.
+     */
+    private void insertPage(Page page)
+    {
+        int pageOffset = page.getOffset();
+
         assert pageOffset >= 0;
 
         if (root == null || pageOffset > HEIGHT_TO_MAX_INDEX[root.height])
@@ -380,41 +1064,22 @@ public class PageCache
         if (slot != null && slot.isDataNode())
             throw new IllegalStateException(String.format("page slot already exists for position %d", pageOffset));
 
-        Node insertionPoint = new Node(node);
+        Node dataNode = slot != null ? slot : new Node(node);
 
-        if (node != null)
-        {
-            node.count++;
-            node.slots[offset] = insertionPoint;
-        }
-        else
+        if (slot == null)
         {
-            root = insertionPoint;
+            if (node != null)
+            {
+                node.count++;
+                node.slots[offset] = dataNode;
+            }
+            else
+            {
+                root = dataNode;
+            }
         }
 
-        Future<Page> pageFuture = loadingPages.get(pageOffset);
-
-        // requested page is already page-fault'ed and being loaded from disk
-        if (pageFuture != null)
-            return pageFuture;
-
-        pageFuture = cpu.scheduleIO(() -> {
-            ByteBuf buffer = Unpooled.buffer(Page.PAGE_SIZE);
-            long position = pageOffset << Page.PAGE_BITS;
-
-            // only try to read if we are in the current file limits
-            if (position < file.size())
-                buffer.writeBytes(file.position(position), Page.PAGE_SIZE);
-
-            return new Page(this, pageOffset, buffer);
-        });
-
-        loadingPages.put(pageOffset, pageFuture);
-
-        pageFuture.onSuccess(insertionPoint::setPage);
-        pageFuture.onComplete(() -> loadingPages.remove(pageOffset));
-
-        return pageFuture;
+        dataNode.setPage(page);
     }
 
     /**
@@ -455,6 +1120,24 @@ public class PageCache
         while (height > root.height);
     }
 
+    /**
+     * The promise of the page which is being loaded from the file.
+     */
+    private static class PageLoad extends Future<Page>
+    {
+        // page is loaded speculatively and hasn't been requested yet
+        private boolean isReadAhead;
+
+        // the number of requests waiting for the page, it's pinned on their behalf once loaded
+        private int pins;
+
+        public PageLoad(CPU cpu, boolean isReadAhead)
+        {
+            super(cpu);
+            this.isReadAhead = isReadAhead;
+        }
+    }
+
     private static class Node
     {
         // height from the bottom
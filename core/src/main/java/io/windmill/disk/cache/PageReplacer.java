@@ -0,0 +1,348 @@
+package io.windmill.disk.cache;
+
+import io.windmill.core.CPU;
+
+/**
+ * Page replacement for the pages cached by the files of a single CPU, modelled after S3-FIFO. Newly loaded pages
+ * go to the small FIFO queue, pages which have been accessed again by the time they reach its head are moved
+ * to the main queue and the rest are evicted. Evicted pages are remembered by the (direct-mapped) ghost table,
+ * so if they are loaded again soon after they go straight to the main queue. Main queue is a CLOCK, pages which
+ * have been accessed since they were last looked at are given another round instead of being evicted.
+ * Pages which are pinned by the requests using them are never evicted, they are put back at the tail of their queue.
+ *
+ * Replacement state is embedded into the pages themselves (queue links and access counter), so access
+ * is a plain write to the page, without allocation or atomics. Pages are only added, moved and evicted by the
+ * CPU thread. The number of pages CPU could cache (the budget) starts at its share of the socket's page arena and
+ * is periodically rebalanced between the CPUs of the same socket according to their eviction rates
+ * (see {@link #rebalance(int[], long[])}).
+ */
+public class PageReplacer
+{
+    // percentage of the budget taken by the small queue
+    static final int SMALL_QUEUE_RATIO = 10;
+
+    // pages could have at most this many accesses recorded, so hot pages are not kept around forever
+    static final byte MAX_ACCESS_COUNT = 3;
+
+    // every CPU keeps at least this fraction of its fair share of the socket's pages
+    private static final int MIN_SHARE_DIVISOR = 4;
+    // budget moves this fraction of the way towards its target on every rebalance
+    private static final int REBALANCE_STEP_DIVISOR = 4;
+
+    static final byte NONE = 0, SMALL = 1, MAIN = 2;
+
+    private final CPU cpu;
+    private final PageQueue small = new PageQueue(SMALL);
+    private final PageQueue main = new PageQueue(MAIN);
+    private final int[] ghosts;
+
+    private int budget;
+    private long evictions = 0;
+
+    // pages over the budget are evicted by a separate task, so the pages added in a row
+    // are brought back within the budget at once instead of one page per add
+    private boolean isEvictionScheduled = false;
+
+    /**
+     * @param cpu The CPU which owns the pages.
+     * @param budget The maximum number of pages to cache.
+     */
+    public PageReplacer(CPU cpu, int budget)
+    {
+        if (budget < 0)
+            throw new IllegalArgumentException("page budget can't be negative");
+
+        this.cpu = cpu;
+        this.budget = budget;
+        // sized for the initial budget, collisions just make ghost table forget some of the pages
+        this.ghosts = new int[Integer.highestOneBit(Math.max(64, Math.min(budget, 1 << 24)) - 1) << 1];
+    }
+
+    /**
+     * @return The maximum number of pages to cache.
+     */
+    public int getBudget()
+    {
+        return budget;
+    }
+
+    /**
+     * Change the maximum number of pages to cache, evicting pages over the new budget right away.
+     * Should be called by the CPU thread.
+     *
+     * @param newBudget The new maximum number of pages to cache.
+     */
+    public void setBudget(int newBudget)
+    {
+        if (newBudget < 0)
+            throw new IllegalArgumentException("page budget can't be negative");
+
+        budget = newBudget;
+        evictOverBudget();
+    }
+
+    /**
+     * @return The number of pages currently tracked.
+     */
+    public int size()
+    {
+        return small.size + main.size;
+    }
+
+    /**
+     * @return The number of pages evicted to keep cache within the budget so far.
+     */
+    public long getEvictions()
+    {
+        return evictions;
+    }
+
+    /**
+     * Start tracking a newly loaded page, if cache goes over the budget pages are evicted shortly after.
+     * Should be called by the CPU thread.
+     *
+     * @param page The page which has just been inserted into its cache.
+     */
+    void add(Page page)
+    {
+        int fingerprint = fingerprint(page);
+        int slot = fingerprint & (ghosts.length - 1);
+
+        // pages loaded by read-ahead are not accessed yet, so the first read doesn't count as a re-use
+        page.accessCount = (byte) (page.isReadAhead ? -1 : 0);
+
+        if (ghosts[slot] == fingerprint)
+        {
+            // page has been evicted from the small queue recently, so it's worth keeping for longer
+            ghosts[slot] = 0;
+            main.add(page);
+        }
+        else
+        {
+            small.add(page);
+        }
+
+        evictLater();
+    }
+
+    /**
+     * Schedule eviction of the pages over the budget, unless cache is within its budget or eviction
+     * is already scheduled. Should be called by the CPU thread.
+     */
+    void evictLater()
+    {
+        if (size() > budget && !isEvictionScheduled)
+        {
+            isEvictionScheduled = true;
+            cpu.schedule(() -> {
+                isEvictionScheduled = false;
+                evictOverBudget();
+                return null;
+            });
+        }
+    }
+
+    /**
+     * Stop tracking the page, which has been evicted or released by its cache. Should be called by the CPU thread.
+     */
+    void remove(Page page)
+    {
+        if (page.queue == SMALL)
+            small.remove(page);
+        else if (page.queue == MAIN)
+            main.remove(page);
+    }
+
+    private void evictOverBudget()
+    {
+        // gives up once every page it looks at in a row turns out to be pinned,
+        // eviction is scheduled again when pages are unpinned (see PageCache#onUnpinned(Page))
+        int pinned = 0;
+        while (size() > budget && pinned < size())
+        {
+            boolean isPinned = (main.size == 0 || small.size > (long) budget * SMALL_QUEUE_RATIO / 100)
+                             ? !evictSmall()
+                             : !evictMain();
+
+            pinned = isPinned ? pinned + 1 : 0;
+        }
+    }
+
+    /**
+     * @return false if page at the head of the small queue is pinned, true otherwise.
+     */
+    private boolean evictSmall()
+    {
+        Page page = small.poll();
+
+        if (page.pins > 0)
+        {
+            small.add(page);
+            return false;
+        }
+
+        if (page.accessCount > 0)
+        {
+            page.accessCount = 0;
+            main.add(page);
+            return true;
+        }
+
+        int fingerprint = fingerprint(page);
+        ghosts[fingerprint & (ghosts.length - 1)] = fingerprint;
+
+        evict(page);
+        return true;
+    }
+
+    /**
+     * @return false if page at the head of the main queue is pinned, true otherwise.
+     */
+    private boolean evictMain()
+    {
+        Page page = main.poll();
+
+        if (page.pins > 0)
+        {
+            main.add(page);
+            return false;
+        }
+
+        if (page.accessCount > 0)
+        {
+            page.accessCount--;
+            main.add(page);
+            return true;
+        }
+
+        evict(page);
+        return true;
+    }
+
+    private void evict(Page page)
+    {
+        evictions++;
+        page.evict();
+    }
+
+    private static int fingerprint(Page page)
+    {
+        int h = System.identityHashCode(page.getCache()) * 31 + page.getOffset();
+
+        // murmur3 finalizer, so the low bits used by the ghost table are well mixed
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+
+        return h == 0 ? 1 : h; // zero marks an empty ghost slot
+    }
+
+    /**
+     * Split the pages of the socket between its CPUs, every CPU keeps at least a quarter of its fair share
+     * and the rest is split proportionally to the number of evictions CPUs had since the last rebalance,
+     * so CPUs which are short of pages get more of them at the expense of the ones which are not.
+     * Budgets only move a quarter of the way towards their targets at a time, so a single burst
+     * of evictions doesn't throw away the pages of the other CPUs.
+     *
+     * @param budgets The current budgets of the CPUs.
+     * @param evictions The number of evictions each CPU had since the last rebalance.
+     *
+     * @return The new budgets, which add up to the total of the current ones.
+     */
+    public static int[] rebalance(int[] budgets, long[] evictions)
+    {
+        if (budgets.length != evictions.length)
+            throw new IllegalArgumentException("every CPU needs both budget and the number of evictions");
+
+        int[] newBudgets = new int[budgets.length];
+        if (budgets.length == 0)
+            return newBudgets;
+
+        long total = 0;
+        double weights = 0;
+
+        for (int i = 0; i < budgets.length; i++)
+        {
+            total += budgets[i];
+            weights += evictions[i] + 1;
+        }
+
+        long minBudget = total / budgets.length / MIN_SHARE_DIVISOR;
+        long pool = total - minBudget * budgets.length;
+
+        long assigned = 0;
+        int largest = 0;
+
+        for (int i = 0; i < budgets.length; i++)
+        {
+            long target = minBudget + (long) (pool * ((evictions[i] + 1) / weights));
+
+            newBudgets[i] = (int) (budgets[i] + (target - budgets[i]) / REBALANCE_STEP_DIVISOR);
+            assigned += newBudgets[i];
+
+            if (newBudgets[i] > newBudgets[largest])
+                largest = i;
+        }
+
+        // rounding could be off by a few pages, the difference is settled by the CPU with the largest budget
+        newBudgets[largest] += (int) (total - assigned);
+        return newBudgets;
+    }
+
+    /**
+     * Intrusive FIFO queue of pages, linked through the pages themselves.
+     */
+    private static class PageQueue
+    {
+        private final byte id;
+
+        private Page head, tail;
+        private int size;
+
+        public PageQueue(byte id)
+        {
+            this.id = id;
+        }
+
+        public void add(Page page)
+        {
+            page.queue = id;
+            page.prevQueued = tail;
+            page.nextQueued = null;
+
+            if (tail == null)
+                head = page;
+            else
+                tail.nextQueued = page;
+
+            tail = page;
+            size++;
+        }
+
+        public Page poll()
+        {
+            Page page = head;
+            remove(page);
+            return page;
+        }
+
+        public void remove(Page page)
+        {
+            if (page.prevQueued == null)
+                head = page.nextQueued;
+            else
+                page.prevQueued.nextQueued = page.nextQueued;
+
+            if (page.nextQueued == null)
+                tail = page.prevQueued;
+            else
+                page.nextQueued.prevQueued = page.prevQueued;
+
+            page.queue = NONE;
+            page.prevQueued = page.nextQueued = null;
+            size--;
+        }
+    }
+}
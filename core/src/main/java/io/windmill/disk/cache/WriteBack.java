@@ -0,0 +1,203 @@
+package io.windmill.disk.cache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import io.windmill.utils.IOUtils;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * Write-back of the set of dirty pages. Dirty blocks are collected by the CPU thread, as retained slices of the pages
+ * (so pages could be evicted while write-back is in progress), and merged into extents of adjacent blocks
+ * (including across page boundaries) of up to {@link PageCache#MAX_IO_SIZE} bytes, each extent is then written
+ * by the I/O thread with a single positional write.
+ */
+class WriteBack
+{
+    private final List<Page> pages;
+    private final int[] modCounts;
+    private final List<Extent> extents = new ArrayList<>();
+
+    // set by the I/O thread, read by the CPU thread once write-back is complete
+    private boolean isExtending;
+
+    /**
+     * @param pages The dirty pages in the file order.
+     */
+    WriteBack(List<Page> pages)
+    {
+        this.pages = pages;
+        this.modCounts = new int[pages.size()];
+
+        for (int i = 0; i < pages.size(); i++)
+        {
+            Page page = pages.get(i);
+
+            modCounts[i] = page.getModCount();
+            addPage(page);
+        }
+    }
+
+    /**
+     * @return The number of positional writes write-back is going to take.
+     */
+    int getNumWrites()
+    {
+        return extents.size();
+    }
+
+    /**
+     * Write all of the extents (in the file order) and optionally fsync the file, only file data is forced
+     * (fdatasync) unless the file has been extended since it was last forced. Should be called by the I/O thread.
+     *
+     * @param file The file to write pages to.
+     * @param shouldForce True if file should be forced once all of the extents are written.
+     * @param isExtended True if file has been extended by the write-backs which haven't been forced yet.
+     *
+     * @return The number of pages written.
+     */
+    int writeTo(FileChannel file, boolean shouldForce, boolean isExtended) throws IOException
+    {
+        try
+        {
+            long size = file.size();
+
+            for (Extent extent : extents)
+            {
+                isExtending |= extent.position + extent.length > size;
+                IOUtils.writeFully(file, extent.toByteBuffer(), extent.position);
+            }
+
+            if (shouldForce)
+                file.force(isExtended || isExtending);
+
+            return pages.size();
+        }
+        finally
+        {
+            release();
+        }
+    }
+
+    /**
+     * @return True if write-back has extended the file, valid once it's written.
+     */
+    boolean isExtending()
+    {
+        return isExtending;
+    }
+
+    /**
+     * Mark all of the written pages as clean, should be called by the CPU thread.
+     */
+    void complete()
+    {
+        for (int i = 0; i < pages.size(); i++)
+            pages.get(i).markClean(modCounts[i]);
+    }
+
+    /**
+     * Release slices of the pages, could be called multiple times.
+     */
+    void release()
+    {
+        for (Extent extent : extents)
+            extent.release();
+    }
+
+    private void addPage(Page page)
+    {
+        long pagePosition = (long) page.getOffset() << Page.PAGE_BITS;
+        byte dirtyBlocks = page.getDirtyBlocks();
+
+        int block = 0;
+        while (block < Byte.SIZE)
+        {
+            if ((dirtyBlocks & (1 << block)) == 0)
+            {
+                block++;
+                continue;
+            }
+
+            // adjacent dirty blocks of the page are taken as a single slice
+            int start = block;
+            while (block < Byte.SIZE && (dirtyBlocks & (1 << block)) != 0)
+                block++;
+
+            int position = start * Page.BLOCK_SIZE;
+            int length = Math.min(block * Page.BLOCK_SIZE, page.getLength()) - position;
+
+            if (length > 0)
+                add(page.slice((short) position, length), pagePosition + position);
+        }
+    }
+
+    private void add(ByteBuf slice, long position)
+    {
+        Extent last = extents.isEmpty() ? null : extents.get(extents.size() - 1);
+
+        while (true)
+        {
+            if (last == null || last.position + last.length != position || last.length == PageCache.MAX_IO_SIZE)
+                extents.add(last = new Extent(position));
+
+            int length = slice.readableBytes();
+            if (length <= PageCache.MAX_IO_SIZE - last.length)
+            {
+                last.add(slice);
+                return;
+            }
+
+            // the rest of the slice goes into the next extent
+            length = PageCache.MAX_IO_SIZE - last.length;
+            last.add(slice.readSlice(length).retain());
+            position += length;
+        }
+    }
+
+    private static class Extent
+    {
+        private final long position;
+        private final List<ByteBuf> slices = new ArrayList<>(1);
+        private int length;
+
+        public Extent(long position)
+        {
+            this.position = position;
+        }
+
+        public void add(ByteBuf slice)
+        {
+            slices.add(slice);
+            length += slice.readableBytes();
+        }
+
+        public ByteBuffer toByteBuffer()
+        {
+            if (slices.size() == 1)
+                return slices.get(0).nioBuffer();
+
+            // positional writes can't gather, so slices are copied into the scratch buffer of the I/O thread
+            ByteBuffer scratch = PageCache.SCRATCH_BUFFER.get();
+            scratch.clear();
+
+            for (ByteBuf slice : slices)
+                scratch.put(slice.nioBuffer());
+
+            scratch.flip();
+            return scratch;
+        }
+
+        public void release()
+        {
+            for (ByteBuf slice : slices)
+                slice.release();
+
+            slices.clear();
+        }
+    }
+}
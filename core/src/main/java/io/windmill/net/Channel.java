@@ -71,14 +71,14 @@ public class Channel implements AutoCloseable
         return output;
     }
 
-    protected void onRead() throws IOException
+    protected void onRead(int budget) throws IOException
     {
-        input.triggerRx();
+        input.triggerRx(budget);
     }
 
-    protected void onWrite()
+    protected void onWrite(int budget)
     {
-        output.triggerTx();
+        output.triggerTx(budget);
     }
 
     @Override
@@ -37,6 +37,9 @@ public class ClientSocket extends Future<Channel> implements AutoCloseable
 
         this.selector = selector;
         this.channel = client;
+
+        // stop connecting if nobody is waiting for the connection anymore
+        cancelWhenAbandoned().onCancel(() -> IOUtils.closeQuietly(channel));
     }
 
     public void onConnect()
@@ -7,6 +7,7 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.spi.SelectorProvider;
 import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
 
 import io.windmill.core.CPU;
 import io.windmill.core.Future;
@@ -15,18 +16,33 @@ import io.windmill.utils.IOUtils;
 
 public class Network implements AutoCloseable
 {
+    // maximum number of reads from a single channel per poll, so one chatty connection can't starve the others
+    static final int READ_BUDGET = Integer.getInteger("windmill.net.read_budget", 16);
+
+    // maximum number of write calls (each one possibly gathering multiple buffers) to a single channel per poll
+    static final int WRITE_BUDGET = Integer.getInteger("windmill.net.write_budget", 16);
+
     protected final CPU cpu;
     protected final Selector selector;
 
+    // array-backed selected key set installed into the selector, null if selector couldn't be optimized
+    private final SelectedKeySet selectedKeys;
+
     public Network(CPU cpu)
     {
         this.cpu = cpu;
         this.selector = openSelector();
+        this.selectedKeys = SelectedKeySet.install(selector);
     }
 
     public void listen(InetSocketAddress address, VoidTask1<Channel> onAccept, VoidTask1<Throwable> onFailure)
     {
-        new ServerSocket(cpu, selector, address, onAccept, onFailure);
+        listen(address, onAccept, onFailure, false);
+    }
+
+    public void listen(InetSocketAddress address, VoidTask1<Channel> onAccept, VoidTask1<Throwable> onFailure, boolean isReusePort)
+    {
+        new ServerSocket(cpu, selector, address, onAccept, onFailure, isReusePort);
     }
 
     public Future<Channel> connect(InetSocketAddress address)
@@ -34,50 +50,158 @@ public class Network implements AutoCloseable
         return new ClientSocket(cpu, selector, address);
     }
 
-    public void poll() throws IOException
+    /**
+     * Process all of the network events which are immediately ready.
+     *
+     * @return The number of keys processed.
+     */
+    public int poll() throws IOException
     {
-        int ready = selector.selectNow();
-        if (ready == 0)
-            return;
+        selector.selectNow();
+        return processSelectedKeys();
+    }
+
+    /**
+     * Block for up to given amount of time waiting for network events
+     * (or {@link #wakeup()}) and process all of the ready ones.
+     *
+     * @param timeoutNanos The maximum amount of time to block for.
+     *
+     * @return The number of keys processed.
+     */
+    public int poll(long timeoutNanos) throws IOException
+    {
+        // Selector.select(0) would block indefinitely, so anything less than a millisecond is rounded up
+        long timeoutMillis = TimeUnit.NANOSECONDS.toMillis(timeoutNanos);
+
+        if (timeoutNanos <= 0)
+            selector.selectNow();
+        else
+            selector.select(Math.max(1, timeoutMillis));
+
+        return processSelectedKeys();
+    }
+
+    /**
+     * Wake up a thread blocked in {@link #poll(long)}, if there is no such thread
+     * next call to {@link #poll(long)} is going to return immediately.
+     */
+    public void wakeup()
+    {
+        selector.wakeup();
+    }
+
+    /**
+     * @return True if selector uses array-backed selected key set (see {@link SelectedKeySet}).
+     */
+    public boolean isOptimized()
+    {
+        return selectedKeys != null;
+    }
+
+    private int processSelectedKeys() throws IOException
+    {
+        return selectedKeys == null ? processSelectedKeysPlain() : processSelectedKeysOptimized();
+    }
+
+    private int processSelectedKeysOptimized() throws IOException
+    {
+        int processed = selectedKeys.size;
+        if (processed == 0)
+            return 0;
+
+        try
+        {
+            SelectionKey[] keys = selectedKeys.keys;
+            for (int i = 0; i < processed; i++)
+                processKey(keys[i]);
+        }
+        finally
+        {
+            // keys which haven't been processed because of the failure are going to be selected again
+            selectedKeys.reset();
+        }
 
+        return processed;
+    }
+
+    private int processSelectedKeysPlain() throws IOException
+    {
+        // it's important to check selected keys even when select returns 0,
+        // since it only counts keys which have been updated by the latest selection.
+        if (selector.selectedKeys().isEmpty())
+            return 0;
+
+        int processed = 0;
         Iterator<SelectionKey> readyKeys = selector.selectedKeys().iterator();
         while (readyKeys.hasNext())
         {
             SelectionKey key = readyKeys.next();
             readyKeys.remove();
+            processed++;
 
-            if (!key.isValid())
-            {
-                IOUtils.closeQuietly(((AutoCloseable) key.attachment()));
-                key.cancel();
-                continue;
-            }
-
-            if (key.isAcceptable())
-            {
-                ((ServerSocket) key.attachment()).onAccept();
-            }
-            else if (key.isReadable())
-            {
-                ((Channel) key.attachment()).onRead();
-            }
-            else if (key.isWritable())
-            {
-                ((Channel) key.attachment()).onWrite();
-            }
-            else if (key.isConnectable())
-            {
-                ((ClientSocket) key.attachment()).onConnect();
-            }
+            processKey(key);
         }
+
+        return processed;
+    }
+
+    private void processKey(SelectionKey key) throws IOException
+    {
+        if (!key.isValid())
+        {
+            IOUtils.closeQuietly(((AutoCloseable) key.attachment()));
+            key.cancel();
+            return;
+        }
+
+        int readyOps = key.readyOps();
+
+        if ((readyOps & SelectionKey.OP_ACCEPT) != 0)
+        {
+            ((ServerSocket) key.attachment()).onAccept();
+            return;
+        }
+
+        if ((readyOps & SelectionKey.OP_CONNECT) != 0)
+        {
+            ((ClientSocket) key.attachment()).onConnect();
+            return;
+        }
+
+        Channel channel = (Channel) key.attachment();
+
+        // key could be both writable and readable, writes go first to free up socket buffers as soon as possible
+        if ((readyOps & SelectionKey.OP_WRITE) != 0)
+            channel.onWrite(WRITE_BUDGET);
+
+        if ((readyOps & SelectionKey.OP_READ) != 0 && key.isValid())
+            channel.onRead(READ_BUDGET);
     }
 
     @Override
     public void close()
     {
+        // close everything still registered so channels release their (pooled) buffers
+        for (SelectionKey key : selector.keys())
+        {
+            Object attachment = key.attachment();
+            if (attachment instanceof AutoCloseable)
+                IOUtils.closeQuietly((AutoCloseable) attachment);
+        }
+
         IOUtils.closeQuietly(selector);
     }
 
+    /**
+     * @return The number of channels registered with the selector, including the ones
+     *         which have been closed since the last poll, safe to be called from any thread.
+     */
+    public int getRegisteredChannels()
+    {
+        return selector.keys().size();
+    }
+
     public Selector getSelector()
     {
         return selector;
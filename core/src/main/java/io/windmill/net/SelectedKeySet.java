@@ -0,0 +1,165 @@
+package io.windmill.net;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Array-backed replacement of the selected key set of the JDK {@link Selector}, which avoids hashing,
+ * iterator allocation and removal on every poll. Selector only ever adds keys to it, so it doesn't have to
+ * support lookups or removal, {@link Network} processes keys directly from the array and then {@link #reset()}s it.
+ *
+ * Set is installed reflectively into the selector implementation (see {@link #install(Selector)}),
+ * similar to what Netty does, and could be disabled with {@code -Dwindmill.net.optimize_selector=false}.
+ */
+final class SelectedKeySet extends AbstractSet<SelectionKey>
+{
+    private static final Logger logger = LoggerFactory.getLogger(SelectedKeySet.class);
+
+    private static final boolean IS_ENABLED = Boolean.parseBoolean(System.getProperty("windmill.net.optimize_selector", "true"));
+
+    SelectionKey[] keys = new SelectionKey[1024];
+    int size;
+
+    @Override
+    public boolean add(SelectionKey key)
+    {
+        if (key == null)
+            return false;
+
+        if (size == keys.length)
+            keys = Arrays.copyOf(keys, size << 1);
+
+        keys[size++] = key;
+        return true;
+    }
+
+    @Override
+    public boolean remove(Object o)
+    {
+        return false;
+    }
+
+    @Override
+    public boolean contains(Object o)
+    {
+        return false;
+    }
+
+    @Override
+    public int size()
+    {
+        return size;
+    }
+
+    @Override
+    public Iterator<SelectionKey> iterator()
+    {
+        return new Iterator<SelectionKey>()
+        {
+            private int index;
+
+            @Override
+            public boolean hasNext()
+            {
+                return index < size;
+            }
+
+            @Override
+            public SelectionKey next()
+            {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+
+                return keys[index++];
+            }
+        };
+    }
+
+    /**
+     * Clear the set, releasing references to the processed keys.
+     */
+    void reset()
+    {
+        Arrays.fill(keys, 0, size, null);
+        size = 0;
+    }
+
+    /**
+     * Replace selected key sets of the given selector with the array-backed one.
+     *
+     * @param selector The selector to optimize.
+     *
+     * @return The installed key set, or null if selector couldn't be optimized and has to be used as is.
+     */
+    static SelectedKeySet install(Selector selector)
+    {
+        if (!IS_ENABLED)
+            return null;
+
+        try
+        {
+            Class<?> selectorImpl = Class.forName("sun.nio.ch.SelectorImpl", false, ClassLoader.getSystemClassLoader());
+            if (!selectorImpl.isAssignableFrom(selector.getClass()))
+                return null;
+
+            SelectedKeySet keySet = new SelectedKeySet();
+
+            Field selectedKeys = selectorImpl.getDeclaredField("selectedKeys");
+            Field publicSelectedKeys = selectorImpl.getDeclaredField("publicSelectedKeys");
+
+            if (!setField(selector, selectedKeys, keySet) || !setField(selector, publicSelectedKeys, keySet))
+                return null;
+
+            return keySet;
+        }
+        catch (Exception | LinkageError e)
+        {
+            logger.debug("failed to optimize selector, falling back to the JDK selected key set", e);
+            return null;
+        }
+    }
+
+    private static boolean setField(Selector selector, Field field, Object value) throws Exception
+    {
+        try
+        {
+            field.setAccessible(true);
+            field.set(selector, value);
+            return true;
+        }
+        catch (RuntimeException e)
+        {
+            // JDK 9+ doesn't allow reflective access to sun.nio.ch without --add-opens,
+            // but fields could still be updated via Unsafe, same as Netty does.
+            return setFieldUnsafe(selector, field, value);
+        }
+    }
+
+    private static boolean setFieldUnsafe(Object target, Field field, Object value) throws Exception
+    {
+        Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+
+        Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+        theUnsafe.setAccessible(true);
+        Object unsafe = theUnsafe.get(null);
+
+        Method objectFieldOffset = unsafeClass.getMethod("objectFieldOffset", Field.class);
+        Method putObject = unsafeClass.getMethod("putObject", Object.class, long.class, Object.class);
+
+        long offset = (Long) objectFieldOffset.invoke(unsafe, field);
+        if (offset < 0)
+            return false;
+
+        putObject.invoke(unsafe, target, offset, value);
+        return true;
+    }
+}
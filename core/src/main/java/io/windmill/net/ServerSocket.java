@@ -1,9 +1,12 @@
 package io.windmill.net;
 
 import java.net.InetSocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 
 import io.windmill.core.CPU;
 import io.windmill.core.Future;
@@ -12,15 +15,36 @@ import io.windmill.utils.IOUtils;
 
 public class ServerSocket extends Future<Channel> implements AutoCloseable
 {
+    // StandardSocketOptions.SO_REUSEPORT is only available since JDK 9 (and only on some platforms),
+    // so it has to be looked up reflectively, null means that option is not supported.
+    private static final SocketOption<Boolean> SO_REUSEPORT = lookupReusePort();
+
+    private final Selector selector;
     private final ServerSocketChannel channel;
     private final VoidTask1<Channel> onAccept;
     private final VoidTask1<Throwable> onFailure;
+    private final boolean isReusePort;
 
     public ServerSocket(CPU cpu,
                         Selector selector,
                         InetSocketAddress address,
                         VoidTask1<Channel> onAccept,
                         VoidTask1<Throwable> onFailure)
+    {
+        this(cpu, selector, address, onAccept, onFailure, false);
+    }
+
+    /**
+     * @param isReusePort True if socket should be bound with SO_REUSEPORT (see {@link #isReusePortSupported()}),
+     *                    which allows multiple CPUs to listen on the same address and have kernel balance connections
+     *                    between them, accepted connections are always assigned to the CPU of this socket.
+     */
+    public ServerSocket(CPU cpu,
+                        Selector selector,
+                        InetSocketAddress address,
+                        VoidTask1<Channel> onAccept,
+                        VoidTask1<Throwable> onFailure,
+                        boolean isReusePort)
     {
         super(cpu);
 
@@ -35,6 +59,10 @@ public class ServerSocket extends Future<Channel> implements AutoCloseable
             server.configureBlocking(false);
 
             socket.setReuseAddress(true);
+
+            if (isReusePort)
+                server.setOption(SO_REUSEPORT, true);
+
             socket.setSoTimeout(0);
             socket.bind(address);
 
@@ -46,14 +74,54 @@ public class ServerSocket extends Future<Channel> implements AutoCloseable
             server = null;
         }
 
+        this.selector = selector;
         this.channel = server;
         this.onAccept = onAccept;
         this.onFailure = onFailure;
+        this.isReusePort = isReusePort;
     }
 
     protected void onAccept()
     {
-        cpu.getSocket().register(channel, onAccept, onFailure);
+        if (!isReusePort)
+        {
+            cpu.getSocket().register(channel, onAccept, onFailure);
+            return;
+        }
+
+        // kernel has already picked this CPU, so all of the pending connections are accepted and owned by it
+        try
+        {
+            SocketChannel client;
+            while ((client = channel.accept()) != null)
+                onAccept.compute(new Channel(cpu, selector, client));
+        }
+        catch (Exception | Error e)
+        {
+            onFailure.compute(e);
+        }
+    }
+
+    /**
+     * @return True if SO_REUSEPORT is supported by the JDK and the platform.
+     */
+    public static boolean isReusePortSupported()
+    {
+        return SO_REUSEPORT != null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> lookupReusePort()
+    {
+        try (ServerSocketChannel channel = ServerSocketChannel.open())
+        {
+            SocketOption<Boolean> option = (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+            return channel.supportedOptions().contains(option) ? option : null;
+        }
+        catch (Exception e)
+        {
+            return null;
+        }
     }
 
     @Override
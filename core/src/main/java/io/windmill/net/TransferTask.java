@@ -25,11 +25,21 @@ public abstract class TransferTask<I, O> implements AutoCloseable
         return onComplete.isPresent() ? onComplete.get() : null;
     }
 
+    /**
+     * @return The number of bytes this task still has to transfer.
+     */
+    public long getPendingBytes()
+    {
+        return buffer == null ? 0 : buffer.readableBytes();
+    }
+
     @Override
     public void close()
     {
         if (buffer != null)
             buffer.release();
-        onComplete.ifPresent((f) -> f.setFailure(new ClosedChannelException()));
+
+        // cancelled tasks are closed after their future has already been failed
+        onComplete.ifPresent((f) -> { if (!f.isAvailable()) f.setFailure(new ClosedChannelException()); });
     }
 }
@@ -0,0 +1,105 @@
+package io.windmill.net.io;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Predicts the size of the buffer for the next read from a channel based on the amount of data
+ * returned by the previous reads, modeled after Netty's {@code AdaptiveRecvByteBufAllocator}:
+ * size grows right away when read fills up the whole buffer, and shrinks only after two consecutive
+ * reads which could have fit into a smaller one, so chatty connections get bigger buffers while
+ * mostly idle ones don't hold on to memory.
+ */
+class AdaptiveReceiveSizer
+{
+    static final int MIN_SIZE = 64;
+    static final int INITIAL_SIZE = 1024;
+    static final int MAX_SIZE = 64 * 1024;
+
+    private static final int INDEX_INCREMENT = 4;
+    private static final int INDEX_DECREMENT = 1;
+
+    // 16 byte steps up to 512, then powers of 2
+    private static final int[] SIZES;
+
+    static
+    {
+        List<Integer> sizes = new ArrayList<>();
+
+        for (int size = 16; size < 512; size += 16)
+            sizes.add(size);
+
+        for (int size = 512; size > 0; size <<= 1)
+            sizes.add(size);
+
+        SIZES = sizes.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private final int minIndex, maxIndex;
+    private int index;
+    private int nextSize;
+    private boolean decreaseNow;
+
+    AdaptiveReceiveSizer()
+    {
+        this(MIN_SIZE, INITIAL_SIZE, MAX_SIZE);
+    }
+
+    AdaptiveReceiveSizer(int minSize, int initialSize, int maxSize)
+    {
+        this.minIndex = indexOf(minSize);
+        this.maxIndex = indexOf(maxSize);
+        this.index = indexOf(initialSize);
+        this.nextSize = SIZES[index];
+    }
+
+    /**
+     * @return The size of the buffer to use for the next read.
+     */
+    int nextSize()
+    {
+        return nextSize;
+    }
+
+    /**
+     * Adjust prediction based on the number of bytes read from the channel.
+     *
+     * @param actualBytes The number of bytes returned by the latest read(s).
+     */
+    void record(int actualBytes)
+    {
+        if (actualBytes <= SIZES[Math.max(0, index - INDEX_DECREMENT)])
+        {
+            if (decreaseNow)
+            {
+                index = Math.max(index - INDEX_DECREMENT, minIndex);
+                nextSize = SIZES[index];
+                decreaseNow = false;
+            }
+            else
+            {
+                decreaseNow = true;
+            }
+        }
+        else if (actualBytes >= nextSize)
+        {
+            index = Math.min(index + INDEX_INCREMENT, maxIndex);
+            nextSize = SIZES[index];
+            decreaseNow = false;
+        }
+    }
+
+    /**
+     * @return The index of the smallest size which is greater or equal to the given one.
+     */
+    private static int indexOf(int size)
+    {
+        for (int i = 0; i < SIZES.length; i++)
+        {
+            if (SIZES[i] >= size)
+                return i;
+        }
+
+        return SIZES.length - 1;
+    }
+}
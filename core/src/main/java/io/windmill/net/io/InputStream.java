@@ -5,6 +5,7 @@ import java.net.SocketException;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SocketChannel;
 import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.Optional;
 import java.util.Queue;
 
@@ -17,6 +18,7 @@ import io.windmill.net.TransferTask;
 import io.windmill.utils.Futures;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
 import io.netty.buffer.CompositeByteBuf;
 import io.netty.buffer.Unpooled;
 
@@ -26,14 +28,14 @@ public class InputStream implements AutoCloseable
     private final SocketChannel channel;
 
     private final RxQueue rxQueue;
-    private final Queue<RxTask> pendingTasks;
+    private final Queue<RxTask<?>> pendingTasks;
 
     public InputStream(CPU cpu, SocketChannel channel) throws SocketException
     {
         this.cpu = cpu;
         this.channel = channel;
         this.pendingTasks = new ArrayDeque<>();
-        this.rxQueue = new RxQueue(channel.socket().getReceiveBufferSize());
+        this.rxQueue = new RxQueue(cpu.getAllocator(), channel.socket().getReceiveBufferSize());
     }
 
     /**
@@ -42,7 +44,7 @@ public class InputStream implements AutoCloseable
      */
     public Future<Byte> readByte()
     {
-        return read(1).map(ByteBuf::readByte);
+        return read(1, ByteBuf::readByte);
     }
 
     /**
@@ -52,7 +54,7 @@ public class InputStream implements AutoCloseable
      */
     public Future<Short> readShort()
     {
-        return read(Short.BYTES).map(ByteBuf::readShort);
+        return read(Short.BYTES, ByteBuf::readShort);
     }
 
     /**
@@ -62,7 +64,7 @@ public class InputStream implements AutoCloseable
      */
     public Future<Integer> readInt()
     {
-        return read(Integer.BYTES).map(ByteBuf::readInt);
+        return read(Integer.BYTES, ByteBuf::readInt);
     }
 
     /**
@@ -72,7 +74,7 @@ public class InputStream implements AutoCloseable
      */
     public Future<Float> readFloat()
     {
-        return read(Float.BYTES).map(ByteBuf::readFloat);
+        return read(Float.BYTES, ByteBuf::readFloat);
     }
 
     /**
@@ -82,7 +84,7 @@ public class InputStream implements AutoCloseable
      */
     public Future<Long> readLong()
     {
-        return read(Long.BYTES).map(ByteBuf::readLong);
+        return read(Long.BYTES, ByteBuf::readLong);
     }
 
     /**
@@ -92,7 +94,7 @@ public class InputStream implements AutoCloseable
      */
     public Future<Double> readDouble()
     {
-        return read(Double.BYTES).map(ByteBuf::readDouble);
+        return read(Double.BYTES, ByteBuf::readDouble);
     }
 
     /**
@@ -103,21 +105,39 @@ public class InputStream implements AutoCloseable
      * @return The promise of ByteBuf containing N requested bytes.
      */
     public Future<ByteBuf> read(int size)
+    {
+        return read(size, null);
+    }
+
+    /**
+     * Read requested exact number of bytes from the channel and decode them.
+     *
+     * @param size The number of bytes to read.
+     * @param decoder The function which consumes exactly {@code size} bytes of the given buffer, it could be
+     *                given a buffer of the queue itself, so the buffer must not escape it. Null to receive
+     *                a copy of the bytes instead.
+     *
+     * @return The promise of the decoded value.
+     */
+    private <T> Future<T> read(int size, Task1<ByteBuf, T> decoder)
     {
         if (!channel.isOpen())
             return Futures.failedFuture(cpu, new ClosedChannelException());
 
-        Future<ByteBuf> ioPromise = new Future<>(cpu);
+        Future<T> ioPromise = new Future<>(cpu);
 
         if (rxQueue.availableBytes() < size || !pendingTasks.isEmpty())
         {
             // schedule I/O, since not enough bytes are available yet or there are pending requests
-            pendingTasks.add(new RxTask(ioPromise, size));
+            RxTask<T> task = new RxTask<>(ioPromise, size, decoder);
+
+            pendingTasks.add(task);
+            ioPromise.cancelWhenAbandoned().onCancel(() -> pendingTasks.remove(task));
         }
         else
         {
             // no pending tasks and enough data available, can satisfy request inline
-            ioPromise.setValue(rxQueue.transfer(size));
+            ioPromise.setValue(rxQueue.transfer(size, decoder));
         }
 
         return ioPromise;
@@ -143,7 +163,7 @@ public class InputStream implements AutoCloseable
         Future<T> promise = new Future<>(cpu);
         CompositeByteBuf sink = Unpooled.compositeBuffer();
 
-        RxTask consumerTask = new RxTask(null, 0)
+        RxTask<T> consumerTask = new RxTask<T>(null, 0, null)
         {
             @Override
             public boolean compute(RxQueue rx)
@@ -178,12 +198,36 @@ public class InputStream implements AutoCloseable
         }
 
         pendingTasks.add(consumerTask);
+        // NOTE: bytes already consumed by the cancelled task are not returned to the queue
+        promise.cancelWhenAbandoned().onCancel(() -> pendingTasks.remove(consumerTask));
         return promise;
     }
 
-    public void triggerRx() throws IOException
+    /**
+     * Read available bytes from the channel and complete pending read requests.
+     *
+     * @param budget The maximum number of reads from the channel.
+     */
+    public void triggerRx(int budget) throws IOException
     {
-        rxQueue.rx(channel);
+        int readBytes = 0;
+
+        // read which is waiting for more bytes than RX buffer could hold has to be allowed to overflow it
+        RxTask<?> head = pendingTasks.peek();
+        int demand = head == null ? 0 : head.size;
+
+        for (int i = 0; i < budget; i++)
+        {
+            int read = rxQueue.rx(channel, demand);
+
+            // stop as soon as channel is drained (or rx queue is full)
+            if (read <= 0)
+                break;
+
+            readBytes += read;
+        }
+
+        rxQueue.sizer.record(readBytes);
         triggerTasks();
     }
 
@@ -191,7 +235,7 @@ public class InputStream implements AutoCloseable
     {
         while (!pendingTasks.isEmpty())
         {
-            RxTask task = pendingTasks.peek();
+            RxTask<?> task = pendingTasks.peek();
             if (!task.compute(rxQueue))
                 break;
 
@@ -211,14 +255,16 @@ public class InputStream implements AutoCloseable
             pendingTasks.poll().close();
     }
 
-    private static class RxTask extends TransferTask<RxQueue, ByteBuf>
+    private static class RxTask<T> extends TransferTask<RxQueue, T>
     {
         private final int size;
+        private final Task1<ByteBuf, T> decoder;
 
-        public RxTask(Future<ByteBuf> request, int size)
+        public RxTask(Future<T> request, int size, Task1<ByteBuf, T> decoder)
         {
             super(null, Optional.ofNullable(request));
             this.size = size;
+            this.decoder = decoder;
         }
 
         @Override
@@ -229,7 +275,7 @@ public class InputStream implements AutoCloseable
 
             try
             {
-                onComplete.ifPresent((f) -> f.setValue(rx.transfer(size)));
+                onComplete.ifPresent((f) -> f.setValue(rx.transfer(size, decoder)));
             }
             catch (Exception | Error e)
             {
@@ -240,96 +286,160 @@ public class InputStream implements AutoCloseable
         }
     }
 
+    /**
+     * Queue of the bytes received from the channel but not yet consumed. Data is read into direct buffers
+     * allocated from the pool of the CPU (see {@link CPU#getAllocator()}), sized adaptively, and copied out
+     * to the heap buffers handed over to the readers, so pooled buffers never escape the queue and are released
+     * back to the pool as soon as they are completely consumed. Values which are decoded by the stream itself
+     * (e.g. {@link #readInt()}) are decoded straight from the queue, without the copy, unless they span buffers.
+     */
     private static class RxQueue implements AutoCloseable
     {
-        private final Queue<ByteBuf> rx;
+        private final ByteBufAllocator allocator;
+        private final Deque<ByteBuf> rx;
         private final int maxSize;
+        private final AdaptiveReceiveSizer sizer;
         private int availableBytes;
 
-        public RxQueue(int maxSize)
+        // the last buffer of the queue which has been allocated for reading and still has space left
+        private ByteBuf inProgress;
+
+        public RxQueue(ByteBufAllocator allocator, int maxSize)
         {
+            this.allocator = allocator;
             this.rx = new ArrayDeque<>();
             this.maxSize = maxSize;
+            this.sizer = new AdaptiveReceiveSizer();
         }
 
-        public void rx(SocketChannel channel) throws IOException
+        /**
+         * @param demand The number of bytes requested by the oldest pending read.
+         *
+         * @return The number of bytes read from the channel, zero if nothing has been read or -1 if channel has reached end-of-stream.
+         */
+        public int rx(SocketChannel channel, int demand) throws IOException
         {
-            // queue is full (read up to RX buffer size)
-            if (availableBytes >= maxSize)
-                return;
+            // queue is full (read up to RX buffer size, or more if that's what pending read is waiting for)
+            if (availableBytes >= Math.max(maxSize, demand))
+                return 0;
 
-            // first let's try to re-use already existing top "in-progress" buffer
-            ByteBuf inProgress = rx.peek();
+            // continue filling up the last buffer, if it has some space left, before allocating a new one
             if (inProgress != null && inProgress.writableBytes() > 0)
             {
                 int readBytes = inProgress.writeBytes(channel, inProgress.writableBytes());
-                if (readBytes <= 0) // nothing has been read
-                    return;
+                if (readBytes > 0)
+                    availableBytes += readBytes;
 
-                availableBytes += readBytes;
-                // channel didn't have enough readable bytes to fill up "in-progress" buffer
-                if (inProgress.writableBytes() > 0)
-                    return;
+                return readBytes;
             }
 
-            // so something might be left in the buffer, let's try to allocate new component
-            // and read the remainder if any
-            ByteBuf component = Unpooled.buffer(512);
-            availableBytes += component.writeBytes(channel, component.writableBytes());
-            rx.add(component);
+            int size = sizer.nextSize();
+            ByteBuf buffer = allocator.directBuffer(size, size);
+
+            int readBytes;
+
+            try
+            {
+                readBytes = buffer.writeBytes(channel, size);
+            }
+            catch (IOException | RuntimeException e)
+            {
+                buffer.release();
+                throw e;
+            }
+
+            // nothing has been read (or end-of-stream), no need to hold on to the buffer
+            if (readBytes <= 0)
+            {
+                buffer.release();
+                return readBytes;
+            }
+
+            rx.add(buffer);
+            inProgress = buffer;
+            availableBytes += readBytes;
+
+            return readBytes;
         }
 
+        /**
+         * Return bytes which have been transferred but not consumed back to the head of the queue.
+         */
         public void rx(ByteBuf buffer)
         {
             if (buffer.readableBytes() == 0)
                 return;
 
-            rx.add(buffer);
+            rx.addFirst(buffer);
             availableBytes += buffer.readableBytes();
         }
 
+        @SuppressWarnings("unchecked")
+        public <T> T transfer(int size, Task1<ByteBuf, T> decoder)
+        {
+            if (decoder == null)
+                return (T) transfer(size);
+
+            ByteBuf head = rx.peek();
+
+            // value spans multiple buffers of the queue, so its bytes have to be put together first
+            if (head == null || head.readableBytes() < size)
+                return decoder.compute(transfer(size));
+
+            int readerIndex = head.readerIndex();
+
+            try
+            {
+                return decoder.compute(head);
+            }
+            finally
+            {
+                head.readerIndex(readerIndex + size);
+                consume(head, size);
+            }
+        }
+
         public ByteBuf transfer(int size)
         {
             if (size == -1)
                 return null;
 
-            CompositeByteBuf buffer = null;
+            if (size == 0)
+                return Unpooled.EMPTY_BUFFER;
 
-            while (!rx.isEmpty())
+            // bytes are copied out, so buffers of the queue could be returned to the pool right away
+            ByteBuf buffer = Unpooled.buffer(size, size);
+
+            while (size > 0 && !rx.isEmpty())
             {
                 ByteBuf rxBuffer = rx.peek();
 
-                // perfect, we can satisfy I/O with a single buffer slice
-                if (buffer == null && rxBuffer.readableBytes() >= size)
-                {
-                    ByteBuf slice = consume(rxBuffer, size);
-                    if (rxBuffer.readableBytes() == 0)
-                        rx.poll(); // if completely consumed, remove from the list
-
-                    availableBytes -= slice.readableBytes();
-                    return slice;
-                }
+                int consumableSize = Math.min(rxBuffer.readableBytes(), size);
+                buffer.writeBytes(rxBuffer, consumableSize);
 
-                if (buffer == null)
-                    buffer = Unpooled.compositeBuffer();
+                size -= consumableSize;
+                consume(rxBuffer, consumableSize);
+            }
 
-                int consumableSize = Math.min(rxBuffer.readableBytes(), size);
-                buffer.addComponent(consume(rxBuffer, consumableSize));
+            return buffer;
+        }
 
-                // advance writer index of the composite buffer, to track read progress
-                buffer.writerIndex(buffer.writerIndex() + consumableSize);
+        /**
+         * Account for the bytes consumed from the head of the queue, releasing it once it's drained.
+         */
+        private void consume(ByteBuf rxBuffer, int consumedBytes)
+        {
+            availableBytes -= consumedBytes;
 
-                size -= consumableSize;
-                availableBytes -= consumableSize;
+            if (rxBuffer.readableBytes() > 0)
+                return;
 
-                if (rxBuffer.readableBytes() == 0)
-                    rx.poll();
+            rx.poll();
 
-                if (size == 0)
-                    break;
-            }
+            if (rxBuffer == inProgress)
+                inProgress = null;
 
-            return buffer;
+            rxBuffer.release();
         }
 
         public int availableBytes()
@@ -343,15 +453,8 @@ public class InputStream implements AutoCloseable
             while (!rx.isEmpty())
                 rx.poll().release();
 
+            inProgress = null;
             availableBytes = 0;
         }
-
-        private ByteBuf consume(ByteBuf src, int length)
-        {
-            int position = src.readerIndex();
-            ByteBuf slice = src.slice(position, length);
-            src.readerIndex(position + length);
-            return slice;
-        }
     }
 }
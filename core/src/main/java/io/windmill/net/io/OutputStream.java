@@ -1,27 +1,67 @@
 package io.windmill.net.io;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.FileChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Optional;
 import java.util.Queue;
 
 import io.windmill.core.CPU;
 import io.windmill.core.Future;
 import io.windmill.net.TransferTask;
+import io.windmill.utils.Futures;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 
 public class OutputStream implements AutoCloseable
 {
+    // maximum number of buffers handed to a single gathering write (has to stay below IOV_MAX, 1024 on Linux)
+    static final int MAX_GATHER_BUFFERS = Integer.getInteger("windmill.net.max_gather_buffers", 64);
+
+    // maximum number of bytes a single gathering write is going to try and send
+    static final int MAX_GATHER_BYTES = Integer.getInteger("windmill.net.max_gather_bytes", 256 * 1024);
+
+    // buffers up to this size are copied into the cumulative buffer instead of being queued on their own
+    static final int COALESCE_THRESHOLD = 1024;
+
+    // default number of queued bytes after which stream stops being writable
+    static final int HIGH_WATERMARK = Integer.getInteger("windmill.net.write_high_watermark", 64 * 1024);
+
+    // default number of queued bytes stream has to drain down to before becoming writable again
+    static final int LOW_WATERMARK = Integer.getInteger("windmill.net.write_low_watermark", 32 * 1024);
+
+    private static final int INITIAL_CUMULATION_SIZE = 256;
+
     private final CPU cpu;
     private final SelectionKey key;
     private final SocketChannel channel;
     private final Queue<TransferTask<SocketChannel, ?>> txQueue;
 
+    // small writes accumulated since the last flush, null if there are none
+    private ByteBuf cumulation;
+
+    // true while channel is registered for OP_WRITE, pending data is going to be written once socket is writable
+    private boolean isWriteScheduled;
+
+    // re-usable array of the buffers for gathering writes
+    private ByteBuffer[] gather = new ByteBuffer[16];
+
+    // number of bytes written to the stream but not yet to the channel
+    private long queuedBytes;
+    private int lowWatermark = LOW_WATERMARK, highWatermark = HIGH_WATERMARK;
+    private boolean isWritable = true;
+
+    // futures returned by awaitWritable() while stream was congested
+    private final List<Future<Void>> writabilityWaiters = new ArrayList<>();
+
     public OutputStream(CPU cpu, SelectionKey key, SocketChannel channel)
     {
         this.cpu = cpu;
@@ -39,7 +79,7 @@ public class OutputStream implements AutoCloseable
      */
     public OutputStream writeShort(short v)
     {
-        writeBytes(Unpooled.copyShort(v));
+        cumulation(Short.BYTES).writeShort(v);
         return this;
     }
 
@@ -52,7 +92,7 @@ public class OutputStream implements AutoCloseable
      */
     public OutputStream writeInt(int v)
     {
-        writeBytes(Unpooled.copyInt(v));
+        cumulation(Integer.BYTES).writeInt(v);
         return this;
     }
 
@@ -65,7 +105,7 @@ public class OutputStream implements AutoCloseable
      */
     public OutputStream writeFloat(float v)
     {
-        writeBytes(Unpooled.copyFloat(v));
+        cumulation(Float.BYTES).writeFloat(v);
         return this;
     }
 
@@ -78,7 +118,7 @@ public class OutputStream implements AutoCloseable
      */
     public OutputStream writeLong(long v)
     {
-        writeBytes(Unpooled.copyLong(v));
+        cumulation(Long.BYTES).writeLong(v);
         return this;
     }
 
@@ -91,7 +131,7 @@ public class OutputStream implements AutoCloseable
      */
     public OutputStream writeDouble(double v)
     {
-        writeBytes(Unpooled.copyDouble(v));
+        cumulation(Double.BYTES).writeDouble(v);
         return this;
     }
 
@@ -107,9 +147,29 @@ public class OutputStream implements AutoCloseable
         return writeBytes(Unpooled.wrappedBuffer(bytes));
     }
 
+    /**
+     * Write buffer to the stream, small buffers are copied (and released) right away,
+     * larger ones are queued as is and released once written to the channel.
+     *
+     * @param bytes The buffer to write to the stream, stream takes ownership of it (including its reader index),
+     *              buffers which are still used by the caller (e.g. cached values) should be passed as retained duplicates.
+     *
+     * @return current output stream.
+     */
     public OutputStream writeBytes(ByteBuf bytes)
     {
-        txQueue.add(new TxTask(bytes, Optional.empty()));
+        int length = bytes.readableBytes();
+        if (length <= COALESCE_THRESHOLD)
+        {
+            if (length > 0)
+                cumulation(length).writeBytes(bytes);
+
+            bytes.release();
+            return this;
+        }
+
+        seal();
+        enqueue(new TxTask(bytes, Optional.empty()));
         return this;
     }
 
@@ -118,6 +178,13 @@ public class OutputStream implements AutoCloseable
         return writeAndFlush(Unpooled.EMPTY_BUFFER).map((v) -> null);
     }
 
+    /**
+     * Write buffer to the stream and flush everything written so far to the channel.
+     *
+     * @param buffer The buffer to write, stream takes ownership of it.
+     *
+     * @return The number of bytes of the given buffer written to the channel.
+     */
     public Future<Long> writeAndFlush(ByteBuf buffer)
     {
         return writeAndFlush(new TxTask(buffer, Optional.of(new Future<>(cpu))));
@@ -130,60 +197,378 @@ public class OutputStream implements AutoCloseable
 
     public <T> Future<T> writeAndFlush(TransferTask<SocketChannel, T> task)
     {
+        Future<T> future = task.getFuture();
+
+        if (!channel.isOpen())
+        {
+            task.close();
+            return future;
+        }
+
+        seal();
+        enqueue(task);
+
+        // socket is already known to be full, everything is going to be written once it becomes writable
+        if (isWriteScheduled)
+        {
+            if (future != null)
+                future.cancelWhenAbandoned().onCancel(() -> cancel(task));
+
+            return future;
+        }
+
+        if (flushQueue(Integer.MAX_VALUE))
+            return future;
+
+        // keep reading while waiting for the socket to become writable
+        isWriteScheduled = true;
+        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+
+        if (future != null && !future.isAvailable())
+            future.cancelWhenAbandoned().onCancel(() -> cancel(task));
+
+        return future;
+    }
+
+    private void cancel(TransferTask<SocketChannel, ?> task)
+    {
+        // head of the queue might have been partially written already,
+        // removing it would corrupt the stream, so it has to complete.
+        if (txQueue.peek() == task || !txQueue.remove(task))
+            return;
+
+        onWritten(task.getPendingBytes());
+        task.close();
+    }
+
+    /**
+     * @return True if the number of bytes waiting to be written to the channel is below the high watermark,
+     *         once it goes above it, stream stays non-writable until queue drains below the low watermark.
+     */
+    public boolean isWritable()
+    {
+        return isWritable;
+    }
+
+    /**
+     * @return The number of bytes written to the stream which are not yet written to the channel.
+     */
+    public long getQueuedBytes()
+    {
+        return queuedBytes;
+    }
+
+    /**
+     * Wait for the stream to become writable, can be used by the readers to stop
+     * reading (and producing more output) from the peer which doesn't keep up with the output.
+     *
+     * @return The future which is completed once {@link #isWritable()} is true,
+     *         or failed with {@link ClosedChannelException} if stream gets closed first.
+     */
+    public Future<Void> awaitWritable()
+    {
+        if (isWritable)
+            return Futures.voidFuture(cpu);
+
         if (!channel.isOpen())
-             task.close();
+            return Futures.failedFuture(cpu, new ClosedChannelException());
+
+        Future<Void> waiter = new Future<>(cpu);
+        writabilityWaiters.add(waiter);
+        waiter.cancelWhenAbandoned().onCancel(() -> writabilityWaiters.remove(waiter));
+        return waiter;
+    }
 
-        if (txQueue.size() == 0 && task.compute(channel))
-            return task.getFuture();
+    /**
+     * Set the watermarks on the number of bytes queued for the channel (see {@link #isWritable()}).
+     *
+     * @param low The number of queued bytes to drain down to before stream becomes writable again.
+     * @param high The number of queued bytes after which stream is no longer writable.
+     *
+     * @return current output stream.
+     */
+    public OutputStream setWriteWatermarks(int low, int high)
+    {
+        if (low < 0 || high < low)
+            throw new IllegalArgumentException(String.format("invalid watermarks: low = %d, high = %d", low, high));
 
+        lowWatermark = low;
+        highWatermark = high;
+
+        if (isWritable && queuedBytes > highWatermark)
+            isWritable = false;
+        else if (!isWritable && queuedBytes <= lowWatermark)
+            setWritable();
+
+        return this;
+    }
+
+    private void enqueue(TransferTask<SocketChannel, ?> task)
+    {
         txQueue.add(task);
-        key.interestOps(SelectionKey.OP_WRITE);
+        onQueued(task.getPendingBytes());
+    }
+
+    private void onQueued(long bytes)
+    {
+        queuedBytes += bytes;
 
-        return task.getFuture();
+        if (isWritable && queuedBytes > highWatermark)
+            isWritable = false;
     }
 
-    public void triggerTx()
+    private void onWritten(long bytes)
     {
-        while (!txQueue.isEmpty())
+        queuedBytes -= bytes;
+
+        if (!isWritable && queuedBytes <= lowWatermark)
+            setWritable();
+    }
+
+    private void setWritable()
+    {
+        isWritable = true;
+
+        if (writabilityWaiters.isEmpty())
+            return;
+
+        List<Future<Void>> waiters = new ArrayList<>(writabilityWaiters);
+        writabilityWaiters.clear();
+
+        for (Future<Void> waiter : waiters)
+            waiter.setValue(null);
+    }
+
+    /**
+     * Write pending data to the channel, once everything is written the channel stops waiting for writability.
+     *
+     * @param budget The maximum number of write calls to make, remaining data is written on the next poll.
+     */
+    public void triggerTx(int budget)
+    {
+        if (!flushQueue(budget))
+            return;
+
+        // everything is flushed, switch back to read
+        isWriteScheduled = false;
+        key.interestOps(SelectionKey.OP_READ);
+    }
+
+    /**
+     * Write queued tasks to the channel, consecutive buffers are written together using gathering writes.
+     *
+     * @param budget The maximum number of write calls to make.
+     *
+     * @return True if the queue has been completely written, false otherwise.
+     */
+    private boolean flushQueue(int budget)
+    {
+        for (int i = 0; i < budget && !txQueue.isEmpty(); i++)
         {
             TransferTask<SocketChannel, ?> task = txQueue.peek();
-            if (!task.compute(channel))
-                return;
 
+            if (task instanceof TxTask)
+            {
+                if (!writeGathering())
+                    return false;
+            }
+            else
+            {
+                long pendingBytes = task.getPendingBytes();
+                boolean isComplete = task.compute(channel);
+
+                onWritten(isComplete ? pendingBytes : pendingBytes - task.getPendingBytes());
+
+                if (!isComplete)
+                    return false;
+
+                txQueue.poll();
+            }
+        }
+
+        return txQueue.isEmpty();
+    }
+
+    /**
+     * Write a batch of buffers from the head of the queue using a single gathering write, limited by
+     * {@link #MAX_GATHER_BUFFERS} and {@link #MAX_GATHER_BYTES}, tasks which were written completely are
+     * removed from the queue and completed.
+     *
+     * @return True if the whole batch was written, false if socket couldn't take all of it.
+     */
+    private boolean writeGathering()
+    {
+        int numBuffers = 0, numTasks = 0;
+        long batchBytes = 0;
+
+        for (TransferTask<SocketChannel, ?> task : txQueue)
+        {
+            if (!(task instanceof TxTask) || batchBytes >= MAX_GATHER_BYTES)
+                break;
+
+            ByteBuf buffer = ((TxTask) task).getBuffer();
+            int readable = buffer.readableBytes();
+
+            if (readable > 0)
+            {
+                int count = buffer.nioBufferCount();
+                // always take at least one task, even if it has more buffers than the limit
+                if (numTasks > 0 && numBuffers + count > MAX_GATHER_BUFFERS)
+                    break;
+
+                if (numBuffers + count > gather.length)
+                    gather = Arrays.copyOf(gather, Math.max(gather.length * 2, numBuffers + count));
+
+                if (count == 1)
+                {
+                    gather[numBuffers++] = buffer.internalNioBuffer(buffer.readerIndex(), readable);
+                }
+                else
+                {
+                    for (ByteBuffer b : buffer.nioBuffers())
+                        gather[numBuffers++] = b;
+                }
+
+                batchBytes += readable;
+            }
+
+            numTasks++;
+        }
+
+        long written;
+
+        try
+        {
+            written = batchBytes == 0 ? 0 : channel.write(gather, 0, numBuffers);
+        }
+        catch (IOException e)
+        {
+            onWritten(batchBytes);
+
+            for (int i = 0; i < numTasks; i++)
+                ((TxTask) txQueue.poll()).fail(e);
+
+            return true;
+        }
+        finally
+        {
+            Arrays.fill(gather, 0, numBuffers, null);
+        }
+
+        onWritten(written);
+
+        for (int i = 0; i < numTasks; i++)
+        {
+            TxTask task = (TxTask) txQueue.peek();
+            int readable = task.getBuffer().readableBytes();
+
+            if (written < readable)
+            {
+                task.getBuffer().skipBytes((int) written);
+                return false;
+            }
+
+            written -= readable;
             txQueue.poll();
+            task.complete();
         }
 
-        // everything is flushed, switch back to read
-        key.interestOps(SelectionKey.OP_READ);
+        return true;
+    }
+
+    /**
+     * @return The cumulative buffer with at least given number of bytes writable.
+     */
+    private ByteBuf cumulation(int size)
+    {
+        if (cumulation == null)
+            cumulation = cpu.getAllocator().directBuffer(Math.max(size, INITIAL_CUMULATION_SIZE));
+        else
+            cumulation.ensureWritable(size);
+
+        onQueued(size);
+        return cumulation;
+    }
+
+    /**
+     * Queue accumulated small writes as a single transfer task so they are written in order with the rest of the queue.
+     */
+    private void seal()
+    {
+        if (cumulation == null)
+            return;
+
+        txQueue.add(new TxTask(cumulation, Optional.empty()));
+        cumulation = null;
     }
 
     @Override
     public void close()
     {
+        if (cumulation != null)
+        {
+            cumulation.release();
+            cumulation = null;
+        }
+
         while (!txQueue.isEmpty())
             txQueue.poll().close();
+
+        queuedBytes = 0;
+
+        for (Future<Void> waiter : writabilityWaiters)
+            waiter.setFailure(new ClosedChannelException());
+
+        writabilityWaiters.clear();
     }
 
     private static class TxTask extends TransferTask<SocketChannel, Long>
     {
+        private final long length;
+
         public TxTask(ByteBuf buffer, Optional<Future<Long>> future)
         {
             super(buffer, future);
+            this.length = buffer.readableBytes();
         }
 
         @Override
         public boolean compute(SocketChannel channel)
         {
-            // if write failed still report this as success since failure was set
-            if (!writeBytes(buffer, channel, onComplete))
+            try
+            {
+                buffer.readBytes(channel, buffer.readableBytes());
+            }
+            catch (IOException e)
+            {
+                // still report this as success since failure was set
+                fail(e);
                 return true;
+            }
 
             if (buffer.readableBytes() > 0)
                 return false;
 
-            onComplete.ifPresent((f) -> f.setValue((long) buffer.readableBytes()));
+            complete();
             return true;
         }
+
+        ByteBuf getBuffer()
+        {
+            return buffer;
+        }
+
+        void complete()
+        {
+            buffer.release();
+            onComplete.ifPresent((f) -> f.setValue(length));
+        }
+
+        void fail(Throwable e)
+        {
+            buffer.release();
+            onComplete.ifPresent((f) -> f.setFailure(e));
+        }
     }
 
     private static class FileTxTask extends TransferTask<SocketChannel, Long>
@@ -216,29 +601,22 @@ public class OutputStream implements AutoCloseable
                 if (remaining > 0 && offset < file.size())
                     return false;
 
+                remaining = 0;
                 onComplete.ifPresent((f) -> f.setValue(transferred));
             }
             catch (IOException e)
             {
+                remaining = 0;
                 onComplete.ifPresent((f) -> f.setFailure(e));
             }
 
             return true;
         }
-    }
 
-    private static boolean writeBytes(ByteBuf buffer, SocketChannel channel, Optional<Future<Long>> future)
-    {
-        try
-        {
-            buffer.readBytes(channel, buffer.readableBytes());
-        }
-        catch (IOException e)
+        @Override
+        public long getPendingBytes()
         {
-            future.ifPresent((f) -> f.setFailure(e));
-            return false;
+            return remaining;
         }
-
-        return true;
     }
 }
@@ -1,5 +1,9 @@
 package io.windmill.utils;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -22,4 +26,41 @@ public class IOUtils
             logger.warn("Failed closing {}", c, e);
         }
     }
+
+    /**
+     * Read from the given position of the file until buffer is full or end of the file is reached,
+     * position of the file channel is not changed, so it's safe to be used by multiple threads concurrently.
+     *
+     * @param file The file to read from.
+     * @param buffer The buffer to read into.
+     * @param position The position of the file to start reading from.
+     *
+     * @return The number of bytes read.
+     */
+    public static int readFully(FileChannel file, ByteBuffer buffer, long position) throws IOException
+    {
+        int start = buffer.position();
+
+        while (buffer.hasRemaining())
+        {
+            if (file.read(buffer, position + buffer.position() - start) < 0)
+                break; // end of the file
+        }
+
+        return buffer.position() - start;
+    }
+
+    /**
+     * Write the whole buffer to the given position of the file, position of the file channel is not changed,
+     * so it's safe to be used by multiple threads concurrently.
+     *
+     * @param file The file to write to.
+     * @param buffer The buffer to write.
+     * @param position The position of the file to start writing at.
+     */
+    public static void writeFully(FileChannel file, ByteBuffer buffer, long position) throws IOException
+    {
+        while (buffer.hasRemaining())
+            position += file.write(buffer, position);
+    }
 }
@@ -1,6 +1,17 @@
 package io.windmill.core;
 
+import java.net.InetSocketAddress;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import io.windmill.disk.File;
+import io.windmill.disk.cache.Page;
+import io.windmill.disk.cache.PageArena;
+import io.windmill.disk.cache.PageCacheTest;
+import io.windmill.disk.cache.PageReplacer;
+import io.windmill.utils.Futures;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -51,4 +62,152 @@ public class CPUSetTest
         Assert.assertEquals(10, builder.pageCacheSize);
     }
 
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidRunQueueSize()
+    {
+        CPUSet.builder().setRunQueueSize(1000);
+    }
+
+    @Test
+    public void testSettingRunQueueSize()
+    {
+        CPUSet.Builder builder = CPUSet.builder();
+        Assert.assertEquals(CPU.DEFAULT_RUN_QUEUE_SIZE, builder.runQueueSize);
+
+        builder.setRunQueueSize(1024);
+        Assert.assertEquals(1024, builder.runQueueSize);
+    }
+
+    @Test
+    public void testRoundRobinPlacement()
+    {
+        CPUSet.Socket socket = new CPUSet.Builder(null).addSocket(0, 1, 2)
+                                                       .setPlacementStrategy(PlacementStrategy.roundRobin())
+                                                       .build()
+                                                       .getSocket(0);
+
+        for (int i = 0; i < 9; i++)
+            Assert.assertEquals(i % 3, socket.getCPU().id);
+    }
+
+    @Test
+    public void testRandomPlacement()
+    {
+        CPUSet.Socket socket = new CPUSet.Builder(null).addSocket(0, 1)
+                                                       .setPlacementStrategy(PlacementStrategy.random())
+                                                       .build()
+                                                       .getSocket(0);
+
+        // every CPU, including the last one, has to be selected eventually
+        Set<Integer> selected = new HashSet<>();
+        for (int i = 0; i < 1000 && selected.size() < 2; i++)
+            selected.add(socket.getCPU().id);
+
+        Assert.assertEquals(2, selected.size());
+    }
+
+    @Test
+    public void testPowerOfTwoChoicesPlacement()
+    {
+        CPUSet.Socket socket = new CPUSet.Builder(null).addSocket(0, 1)
+                                                       .setPlacementStrategy(PlacementStrategy.powerOfTwoChoices())
+                                                       .build()
+                                                       .getSocket(0);
+
+        // CPUs are not started, so the work stays in the run queue
+        for (int i = 0; i < 5; i++)
+            socket.getCPU(0).schedule(() -> 42);
+
+        Assert.assertEquals(5, socket.getCPU(0).getLoad());
+
+        for (int i = 0; i < 100; i++)
+            Assert.assertEquals(1, socket.getCPU().id);
+    }
+
+    @Test
+    public void testConsistentHashPlacement()
+    {
+        PlacementStrategy strategy = PlacementStrategy.consistentHash();
+        CPUSet.Socket socket = new CPUSet.Builder(null).addSocket(0, 1, 2, 3).build().getSocket(0);
+
+        Set<Integer> selected = new HashSet<>();
+        for (int i = 1; i < 255; i++)
+        {
+            String host = "10.0.0." + i;
+            CPU cpu = strategy.select(socket, new InetSocketAddress(host, 1024));
+
+            // connections from the same host always land on the same CPU regardless of the client port
+            for (int port = 1025; port < 1030; port++)
+                Assert.assertSame(cpu, strategy.select(socket, new InetSocketAddress(host, port)));
+
+            selected.add(cpu.id);
+        }
+
+        Assert.assertEquals(4, selected.size());
+        Assert.assertNotNull(strategy.select(socket, null));
+    }
+
+    @Test
+    public void testPageRebalance() throws Throwable
+    {
+        int numPages = 32;
+        // single socket, so both CPUs take their pages from the same arena, 8 pages each
+        CPUSet cpus = new CPUSet.Builder(null).addSocket(0, 1).setPageCacheSize(16 * Page.PAGE_SIZE).build();
+        cpus.start();
+
+        try
+        {
+            CPU busy = cpus.get(0);
+            PageReplacer replacer = busy.getPageReplacer();
+            PageArena arena = busy.getPageArena();
+
+            Assert.assertSame(arena, cpus.get(1).getPageArena());
+            Assert.assertEquals(8, (int) Futures.await(busy.schedule(replacer::getBudget)));
+
+            File churn = Futures.await(busy.open(PageCacheTest.generateTmpFile(numPages * Page.PAGE_SIZE), "r"));
+
+            try
+            {
+                // the only CPU which evicts its pages gets some of the budget of the idle one
+                long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+                while (Futures.await(busy.schedule(replacer::getBudget)) <= 8)
+                {
+                    Assert.assertTrue(System.nanoTime() < deadline);
+                    Futures.await(churn.read(0, numPages * Page.PAGE_SIZE));
+                    Futures.sleepUninterruptibly(50, TimeUnit.MILLISECONDS);
+                }
+            }
+            finally
+            {
+                Futures.await(churn.close());
+            }
+
+            int budget = Futures.await(busy.schedule(replacer::getBudget));
+            int idleBudget = Futures.await(cpus.get(1).schedule(cpus.get(1).getPageReplacer()::getBudget));
+
+            // budgets still add up to the capacity of the arena
+            Assert.assertEquals(arena.getMaxSlots(), budget + idleBudget);
+
+            File file = Futures.await(busy.open(PageCacheTest.generateTmpFile(budget * Page.PAGE_SIZE), "r"));
+
+            try
+            {
+                for (int i = 0; i < budget; i++)
+                    Futures.await(file.read(i * Page.PAGE_SIZE, 1));
+
+                // pages over the initial budget are stored by the arena too, instead of falling back to heap
+                // (read-ahead past the end of the file could be holding a few more slots for a moment)
+                Assert.assertEquals(budget, (int) Futures.await(busy.schedule(replacer::size)));
+                Assert.assertTrue(arena.getUsedSlots() >= budget);
+            }
+            finally
+            {
+                Futures.await(file.close());
+            }
+        }
+        finally
+        {
+            cpus.halt();
+        }
+    }
 }
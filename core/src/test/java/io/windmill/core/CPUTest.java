@@ -6,14 +6,18 @@ import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import io.windmill.core.Status.Flag;
 import io.windmill.core.tasks.Task1;
+import io.windmill.net.ServerSocket;
 import io.windmill.net.io.InputStream;
 import io.windmill.net.io.OutputStream;
 import io.windmill.utils.Futures;
@@ -156,6 +160,122 @@ public class CPUTest extends AbstractTest
         }
     }
 
+    @Test
+    public void testListenOnEveryCPU() throws Exception
+    {
+        CPUs.listen(new InetSocketAddress("localhost", 31341), (c) -> {
+            // with SO_REUSEPORT connection is accepted by the CPU which owns it
+            String acceptor = Thread.currentThread().getName();
+
+            InputStream input = c.getInput();
+            OutputStream output = c.getOutput();
+
+            c.loop((cpu) -> input.readInt().flatMap((v) -> {
+                boolean isOwner = !ServerSocket.isReusePortSupported() || acceptor.equals(cpu.getId() + "-app");
+                return output.writeInt(isOwner ? v : -1).flush();
+            }));
+        }, Throwable::printStackTrace);
+
+        List<Socket> clients = new ArrayList<>();
+
+        try
+        {
+            for (int i = 0; i < 10; i++)
+                clients.add(new Socket("localhost", 31341));
+
+            for (int i = 0; i < clients.size(); i++)
+            {
+                DataOutputStream output = new DataOutputStream(clients.get(i).getOutputStream());
+                output.writeInt(i);
+                output.flush();
+
+                Assert.assertEquals(i, new DataInputStream(clients.get(i).getInputStream()).readInt());
+            }
+        }
+        finally
+        {
+            for (Socket client : clients)
+                client.close();
+        }
+    }
+
+    @Test
+    public void testAcceptHandoff() throws Throwable
+    {
+        CPUSet cpus = new CPUSet.Builder(null).addSocket(0, 1).setPlacementStrategy(PlacementStrategy.roundRobin()).build();
+        cpus.start();
+
+        try
+        {
+            cpus.get(0).listen(new InetSocketAddress("localhost", 31342), (c) -> {
+                // connection is registered, and handed to the application, by the CPU it has been assigned to
+                String acceptor = Thread.currentThread().getName();
+
+                InputStream input = c.getInput();
+                OutputStream output = c.getOutput();
+
+                c.loop((cpu) -> input.readInt().flatMap((v) -> output.writeInt(acceptor.equals(cpu.getId() + "-app") ? cpu.getId() : -1)
+                                                                      .flush()));
+            }, Throwable::printStackTrace);
+
+            Set<Integer> owners = new HashSet<>();
+
+            for (int i = 0; i < 4; i++)
+            {
+                try (Socket client = new Socket("localhost", 31342))
+                {
+                    DataOutputStream output = new DataOutputStream(client.getOutputStream());
+                    output.writeInt(i);
+                    output.flush();
+
+                    int owner = new DataInputStream(client.getInputStream()).readInt();
+
+                    Assert.assertNotEquals(-1, owner);
+                    owners.add(owner);
+                }
+            }
+
+            Assert.assertEquals(2, owners.size());
+            Assert.assertEquals(2, cpus.get(1).getMetrics().getAcceptHandoff().getCount());
+            Assert.assertEquals(0, cpus.get(0).getMetrics().getAcceptHandoff().getCount());
+        }
+        finally
+        {
+            cpus.halt();
+        }
+    }
+
+    @Test
+    public void testReadTimeout() throws Throwable
+    {
+        CPU cpu = CPUs.get(0);
+
+        cpu.listen(new InetSocketAddress("localhost", 31340), (c) -> {
+            InputStream input = c.getInput();
+            OutputStream output = c.getOutput();
+
+            // first read is never going to be satisfied in time, it should be cancelled
+            // without consuming any bytes, so the next one can read the message
+            input.readInt().within(10, TimeUnit.MILLISECONDS).onFailure((e) -> {
+                output.writeAndFlush(Unpooled.copyInt(e instanceof TimeoutException ? 1 : 0));
+                input.readInt().onSuccess((v) -> output.writeAndFlush(Unpooled.copyInt(v)));
+            });
+        }, Throwable::printStackTrace);
+
+        try (Socket client = new Socket("localhost", 31340))
+        {
+            DataInputStream input = new DataInputStream(client.getInputStream());
+            DataOutputStream output = new DataOutputStream(client.getOutputStream());
+
+            Assert.assertEquals(1, input.readInt()); // timed out
+
+            output.writeInt(42);
+            output.flush();
+
+            Assert.assertEquals(42, input.readInt());
+        }
+    }
+
     @Test
     public void testSleep()
     {
@@ -222,6 +342,316 @@ public class CPUTest extends AbstractTest
         Futures.await(CPUs.get(0).sequence(futures));
     }
 
+    @Test
+    public void testLocalAndRemoteScheduling() throws Throwable
+    {
+        CPU cpu = CPUs.get(0);
+
+        // work scheduled by the CPU on itself is executed in order
+        List<Integer> order = Futures.await(cpu.schedule(() -> {
+            List<Integer> executed = new ArrayList<>();
+            List<Future<Boolean>> tasks = new ArrayList<>();
+
+            for (int i = 0; i < 100; i++)
+            {
+                int index = i;
+                tasks.add(cpu.schedule(() -> executed.add(index)));
+            }
+
+            return cpu.sequence(tasks).map((ignored) -> executed);
+        }).flatMap((executed) -> executed));
+
+        for (int i = 0; i < order.size(); i++)
+            Assert.assertEquals(i, (int) order.get(i));
+
+        // CPU which is constantly re-scheduling itself still executes work from other threads
+        AtomicInteger isRunning = new AtomicInteger(1);
+        cpu.repeat((c) -> c.schedule(() -> Status.of(isRunning.get() == 1 ? Flag.CONTINUE : Flag.STOP)));
+
+        try
+        {
+            for (int i = 0; i < 100; i++)
+            {
+                int expected = i;
+                Assert.assertEquals(expected, (int) Futures.await(cpu.schedule(() -> expected)
+                                                                     .map(CPUs.get(2), (v) -> v + 1)
+                                                                     .map(cpu, (v) -> v - 1)));
+            }
+        }
+        finally
+        {
+            isRunning.set(0);
+        }
+    }
+
+    @Test
+    public void testOverload() throws Throwable
+    {
+        CPUSet cpus = CPUSet.builder().addSocket(0).addSocket(1).setRunQueueSize(4).build();
+        cpus.start();
+
+        try
+        {
+            CPU cpu = cpus.get(0), other = cpus.get(1);
+            CountDownLatch isBlocked = new CountDownLatch(1);
+
+            cpu.schedule(() -> Futures.awaitUninterruptibly(isBlocked));
+
+            // fill the run queue of the blocked CPU until work gets rejected
+            List<Future<Integer>> accepted = new ArrayList<>();
+            Future<Integer> rejected = null;
+
+            for (int i = 0; i < 16 && rejected == null; i++)
+            {
+                int value = i;
+                Future<Integer> f = cpu.trySchedule(() -> value);
+
+                if (f.isFailure())
+                    rejected = f;
+                else
+                    accepted.add(f);
+            }
+
+            Assert.assertNotNull(rejected);
+            Assert.assertTrue(accepted.size() < 4);
+
+            // another CPU scheduling on the full one is not blocked, its work is published once there is space
+            List<Future<Integer>> spilled = Futures.await(other.schedule(() -> {
+                List<Future<Integer>> futures = new ArrayList<>();
+                for (int i = 0; i < 100; i++)
+                {
+                    int value = i;
+                    futures.add(cpu.schedule(() -> value));
+                }
+
+                return futures;
+            }));
+
+            isBlocked.countDown();
+
+            for (int i = 0; i < accepted.size(); i++)
+                Assert.assertEquals(i, (int) Futures.await(accepted.get(i)));
+
+            // await needs the CPU itself, so rejected work can only be checked once the CPU is unblocked
+            try
+            {
+                Futures.await(rejected);
+                Assert.fail();
+            }
+            catch (OverloadedException e)
+            {
+                Assert.assertEquals(cpu.getId(), e.getCpuId());
+            }
+
+            // and the same goes for the CPU scheduling work on itself beyond the capacity of its run queue
+            Future<Integer> local = cpu.schedule(() -> {
+                List<Future<Integer>> futures = new ArrayList<>();
+                for (int i = 0; i < 100; i++)
+                {
+                    int value = i;
+                    futures.add(cpu.schedule(() -> value));
+                }
+
+                return cpu.sequence(futures).map((values) -> values.size());
+            }).flatMap((size) -> size);
+
+            Assert.assertEquals(100, (int) Futures.await(local));
+
+            List<Integer> values = Futures.await(cpu.sequence(spilled));
+            for (int i = 0; i < values.size(); i++)
+                Assert.assertEquals(i, (int) values.get(i));
+
+            Assert.assertEquals(1, cpu.getMetrics().getRejectedTasks());
+        }
+        finally
+        {
+            cpus.halt();
+        }
+    }
+
+    @Test
+    public void testOverloadOrdering() throws Throwable
+    {
+        CPUSet cpus = CPUSet.builder().addSocket(0).addSocket(1).setRunQueueSize(4).build();
+        cpus.start();
+
+        try
+        {
+            CPU cpu = cpus.get(0), other = cpus.get(1);
+            List<Integer> executed = new ArrayList<>(); // only accessed by the thread of the busy CPU
+
+            // every batch is scheduled by a separate task, so some of them find space in the run queue
+            // of the busy CPU while the work of the previous ones is still waiting to be re-published
+            List<Future<Void>> scheduled = new ArrayList<>();
+            for (int batch = 0; batch < 50; batch++)
+            {
+                int first = batch * 10;
+                scheduled.add(other.schedule(() -> {
+                    for (int i = first; i < first + 10; i++)
+                    {
+                        int value = i;
+                        cpu.schedule(() -> {
+                            Futures.sleepUninterruptibly(20, TimeUnit.MICROSECONDS);
+                            return executed.add(value);
+                        });
+                    }
+                }));
+            }
+
+            Futures.await(other.sequence(scheduled));
+
+            // queued behind all of the work scheduled by the other CPU
+            List<Integer> values = Futures.await(other.schedule(() -> cpu.schedule(() -> new ArrayList<>(executed))).flatMap((f) -> f));
+
+            Assert.assertEquals(500, values.size());
+            for (int i = 0; i < values.size(); i++)
+                Assert.assertEquals(i, (int) values.get(i));
+        }
+        finally
+        {
+            cpus.halt();
+        }
+    }
+
+    @Test
+    public void testOverloadIsolation() throws Throwable
+    {
+        CPUSet cpus = new CPUSet.Builder(null).addSocket(0, 1, 2).setRunQueueSize(4).build();
+        cpus.start();
+
+        CountDownLatch isBlocked = new CountDownLatch(1);
+
+        try
+        {
+            CPU producer = cpus.get(0), busy = cpus.get(1), idle = cpus.get(2);
+
+            busy.schedule(() -> Futures.awaitUninterruptibly(isBlocked));
+
+            // fills up the run queue of the blocked CPU and spills the rest, then schedules work for another CPU
+            Future<Boolean> isIdleReached = producer.schedule(() -> {
+                for (int i = 0; i < 10; i++)
+                    busy.schedule(() -> {});
+
+                return idle.schedule(() -> true);
+            }).flatMap((f) -> f);
+
+            // work for the CPU which has space in its run queue doesn't wait behind the work spilled for the busy one
+            Assert.assertTrue(Futures.await(isIdleReached.within(10, TimeUnit.SECONDS)));
+        }
+        finally
+        {
+            isBlocked.countDown();
+            cpus.halt();
+        }
+    }
+
+    @Test
+    public void testWorkStealing() throws Throwable
+    {
+        CPUSet cpus = new CPUSet.Builder(null).addSocket(0, 1).build();
+        cpus.start();
+
+        try
+        {
+            CPU owner = cpus.get(0), thief = cpus.get(1);
+            CountDownLatch isBlocked = new CountDownLatch(1);
+            CountDownLatch isOwnerBusy = new CountDownLatch(1);
+
+            owner.schedule(() -> {
+                isOwnerBusy.countDown();
+                Futures.awaitUninterruptibly(isBlocked);
+            });
+
+            // otherwise owner could pick up some of the stealable work before it gets blocked
+            Futures.awaitUninterruptibly(isOwnerBusy);
+
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int i = 0; i < 10; i++)
+            {
+                // stealable work is executed by the thief, but continuations always stay on the owner
+                results.add(owner.scheduleStealable(thief::isCurrent)
+                                 .map((isStolen) -> isStolen && owner.isCurrent()));
+            }
+
+            // policy leaves the last task to the owner
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (owner.getStealableBacklog() > 1 && System.nanoTime() < deadline)
+                Futures.sleepUninterruptibly(1, TimeUnit.MILLISECONDS);
+
+            Assert.assertEquals(1, owner.getStealableBacklog());
+
+            isBlocked.countDown();
+
+            int stolen = 0;
+            for (Future<Boolean> result : results)
+                stolen += Futures.await(result) ? 1 : 0;
+
+            Assert.assertEquals(9, stolen);
+            Assert.assertEquals(9, thief.getMetrics().getStolenTasks());
+            Assert.assertEquals(9, owner.getMetrics().getTasksStolenByOthers());
+
+            // regular work is never stolen
+            CountDownLatch isOwnerBlocked = new CountDownLatch(1);
+            owner.schedule(() -> Futures.awaitUninterruptibly(isOwnerBlocked));
+
+            List<Future<Boolean>> affine = new ArrayList<>();
+            for (int i = 0; i < 10; i++)
+                affine.add(owner.schedule(owner::isCurrent));
+
+            Futures.sleepUninterruptibly(50, TimeUnit.MILLISECONDS);
+            isOwnerBlocked.countDown();
+
+            for (Future<Boolean> result : affine)
+                Assert.assertTrue(Futures.await(result));
+
+            Assert.assertEquals(9, thief.getMetrics().getStolenTasks());
+        }
+        finally
+        {
+            cpus.halt();
+        }
+    }
+
+    @Test
+    public void testStealingDisabled() throws Throwable
+    {
+        CPUSet cpus = new CPUSet.Builder(null).addSocket(0, 1).setStealingPolicy(StealingPolicy.NEVER).build();
+        cpus.start();
+
+        try
+        {
+            CPU owner = cpus.get(0);
+            CountDownLatch isBlocked = new CountDownLatch(1);
+            CountDownLatch isOwnerBusy = new CountDownLatch(1);
+
+            owner.schedule(() -> {
+                isOwnerBusy.countDown();
+                Futures.awaitUninterruptibly(isBlocked);
+            });
+
+            // otherwise owner could pick up some of the stealable work before it gets blocked
+            Futures.awaitUninterruptibly(isOwnerBusy);
+
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int i = 0; i < 10; i++)
+                results.add(owner.scheduleStealable(owner::isCurrent));
+
+            Futures.sleepUninterruptibly(50, TimeUnit.MILLISECONDS);
+            Assert.assertEquals(10, owner.getStealableBacklog());
+
+            isBlocked.countDown();
+
+            for (Future<Boolean> result : results)
+                Assert.assertTrue(Futures.await(result));
+
+            Assert.assertEquals(0, cpus.get(1).getMetrics().getStolenTasks());
+        }
+        finally
+        {
+            cpus.halt();
+        }
+    }
+
     private static ByteBuf getRequest(int[] numbers)
     {
         ByteBuf request = Unpooled.buffer(4 + numbers.length * 4);
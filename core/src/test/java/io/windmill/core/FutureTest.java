@@ -1,7 +1,10 @@
 package io.windmill.core;
 
 import java.io.IOException;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
@@ -409,6 +412,142 @@ public class FutureTest extends AbstractTest
         Assert.assertEquals(exceptionB, f.onFailure.get());
     }
 
+    @Test
+    public void testTimeout() throws Throwable
+    {
+        CPU cpu = CPUs.get(0);
+
+        Future<Integer> never = new Future<>(cpu);
+
+        try
+        {
+            Futures.await(never.within(10, TimeUnit.MILLISECONDS));
+            Assert.fail();
+        }
+        catch (TimeoutException e)
+        {
+            Assert.assertTrue(never.isFailure());
+            Assert.assertTrue(never.isCancelled());
+        }
+
+        // late result is silently ignored
+        setValue(cpu, never, 42);
+
+        // work which completes in time is not affected by the timeout
+        Assert.assertEquals(42, (int) Futures.await(cpu.schedule(() -> 42).within(1, TimeUnit.MINUTES)));
+    }
+
+    @Test
+    public void testCancellationPropagation() throws Throwable
+    {
+        CPU cpuA = CPUs.get(0);
+        CPU cpuB = CPUs.get(2);
+
+        AtomicInteger cancellations = new AtomicInteger(0);
+
+        Future<Integer> source = new Future<>(cpuA);
+        source.cancelWhenAbandoned().onCancel(cancellations::incrementAndGet);
+
+        Future<Integer> result = source.map(cpuB, (v) -> v + 1).flatMap((v) -> Futures.constantFuture(cpuB, v));
+
+        result.cancel();
+
+        try
+        {
+            Futures.await(result);
+            Assert.fail();
+        }
+        catch (CancellationException e)
+        {
+            Assert.assertTrue(result.isCancelled());
+        }
+
+        // cancellation is propagated upstream since nobody else is waiting for the source
+        CountDownLatch latch = new CountDownLatch(1);
+        source.onFailure((e) -> latch.countDown());
+        Futures.awaitUninterruptibly(latch);
+
+        Assert.assertTrue(source.isCancelled());
+        Assert.assertEquals(1, cancellations.get());
+
+        // timeout is not waiting for the result, so it doesn't keep abandoned future alive
+        Future<Integer> timed = new Future<Integer>(cpuA).cancelWhenAbandoned().within(1, TimeUnit.MINUTES);
+        Future<Integer> timedResult = timed.map(cpuB, (v) -> v + 1).flatMap(cpuB, (v) -> Futures.constantFuture(cpuB, v));
+
+        timedResult.cancel();
+
+        CountDownLatch timedLatch = new CountDownLatch(1);
+        timed.onFailure((e) -> timedLatch.countDown());
+        // well before the timer could fire
+        Assert.assertTrue(timedLatch.await(10, TimeUnit.SECONDS));
+        Assert.assertTrue(timed.isCancelled());
+
+        // but not when some other work still depends on the source
+        Future<Integer> shared = new Future<Integer>(cpuA).cancelWhenAbandoned();
+        Future<Integer> a = shared.map((v) -> v + 1);
+        Future<Integer> b = shared.map((v) -> v + 2);
+
+        a.cancel();
+        setValue(cpuA, shared, 40);
+
+        Assert.assertEquals(42, (int) Futures.await(b));
+        Assert.assertTrue(a.isCancelled());
+        Assert.assertTrue(shared.isSuccess());
+
+        // and never to the futures which haven't opted in, since they could be handed to more consumers later
+        Future<Integer> cached = new Future<>(cpuA);
+        Future<Integer> inner = new Future<>(cpuA);
+
+        // on the CPU of the futures, so cancellation is propagated (or not) right away
+        Assert.assertTrue(Futures.await(cpuA.schedule(() -> {
+            Future<Integer> abandoned = cached.map((v) -> v + 1).flatMap((v) -> Futures.constantFuture(cpuA, v));
+            abandoned.cancel();
+
+            return abandoned.isCancelled() && !cached.isAvailable();
+        })));
+
+        Assert.assertTrue(Futures.await(cpuA.schedule(() -> {
+            // source is complete, so continuation returning the inner future is applied right away
+            Future<Integer> flattened = Futures.constantFuture(cpuA, 0).flatMap((v) -> inner);
+            flattened.cancel();
+            return flattened.isCancelled() && !inner.isAvailable();
+        })));
+
+        setValue(cpuA, cached, 41);
+        setValue(cpuA, inner, 41);
+
+        Assert.assertEquals(42, (int) Futures.await(cached.map((v) -> v + 1)));
+        Assert.assertEquals(42, (int) Futures.await(inner.map((v) -> v + 1)));
+    }
+
+    @Test
+    public void testInlineMap() throws Throwable
+    {
+        CPU cpu = CPUs.get(0);
+        IllegalStateException failure = new IllegalStateException();
+
+        Future<Boolean> inline = cpu.schedule(() -> {
+            Future<Integer> complete = Futures.constantFuture(cpu, 41);
+
+            // transformation of the complete future on the same CPU is applied right away
+            Future<Integer> mapped = complete.map((v) -> v + 1);
+            Future<Integer> failed = Futures.<Integer>failedFuture(cpu, failure).map((v) -> v + 1);
+
+            return mapped.isSuccess() && mapped.get() == 42 && failed.isFailure() && failed.onFailure.get() == failure;
+        });
+
+        Assert.assertTrue(Futures.await(inline));
+
+        // deep chains of inline continuations fall back to the run queue instead of overflowing the stack
+        Future<Integer> chain = cpu.schedule(() -> chain(cpu, Futures.constantFuture(cpu, 0), 100_000)).flatMap((f) -> f);
+        Assert.assertEquals(100_000, (int) Futures.await(chain));
+    }
+
+    private static Future<Integer> chain(CPU cpu, Future<Integer> future, int remaining)
+    {
+        return remaining == 0 ? future : future.flatMap((v) -> chain(cpu, Futures.constantFuture(cpu, v + 1), remaining - 1));
+    }
+
     private static <T> void setValue(CPU cpu, Future<T> future, T value)
     {
         cpu.schedule(() -> {
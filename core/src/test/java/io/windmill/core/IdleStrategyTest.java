@@ -0,0 +1,72 @@
+package io.windmill.core;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import io.windmill.utils.Futures;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class IdleStrategyTest
+{
+    @Test
+    public void testBlocking() throws Throwable
+    {
+        // timeout is intentionally large so test would fail if wakeup doesn't work
+        testStrategy(() -> IdleStrategy.blocking(1, TimeUnit.MINUTES));
+    }
+
+    @Test
+    public void testBackoff() throws Throwable
+    {
+        testStrategy(() -> IdleStrategy.backoff(10, 10, 1, 1, TimeUnit.MINUTES));
+    }
+
+    @Test
+    public void testSpinYield() throws Throwable
+    {
+        testStrategy(() -> IdleStrategy.spinYield(10));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidBlockingTimeout()
+    {
+        IdleStrategy.blocking(0, TimeUnit.SECONDS);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidBackoffPark()
+    {
+        IdleStrategy.backoff(1, 1, 10, 1, TimeUnit.MILLISECONDS);
+    }
+
+    private static void testStrategy(Supplier<IdleStrategy> strategy) throws Throwable
+    {
+        CPUSet cpus = new CPUSet.Builder(null).addSocket(0).setIdleStrategy(strategy).build();
+        cpus.start();
+
+        try
+        {
+            CPU cpu = cpus.get(0);
+
+            // let CPU go idle first
+            Futures.sleepUninterruptibly(50, TimeUnit.MILLISECONDS);
+            Assert.assertTrue(cpu.getIdleCycles() > 0);
+
+            long start = System.nanoTime();
+
+            // work scheduled from the other thread has to wake CPU up
+            Assert.assertEquals(42, (int) Futures.await(cpu.schedule(() -> 42)));
+            // and so should timers, even if they are shorter than blocking timeout
+            Assert.assertEquals(1, (int) Futures.await(cpu.sleep(10, TimeUnit.MILLISECONDS, () -> 1)));
+
+            Assert.assertTrue(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start) < 10);
+            Assert.assertTrue(cpu.getBusyCycles() > 0);
+        }
+        finally
+        {
+            cpus.halt();
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package io.windmill.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import io.windmill.utils.Futures;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TimerWheelTest extends AbstractTest
+{
+    private static final long TICK = TimeUnit.MILLISECONDS.toNanos(1);
+
+    // current time of the wheel under test
+    private long now;
+
+    @Test
+    public void testExpiration()
+    {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        TimerWheel wheel = new TimerWheel(TICK, 0);
+
+        List<TestTimer> timers = new ArrayList<>();
+        for (int i = 0; i < 10000; i++)
+        {
+            // cover every level of the wheel
+            long deadline = random.nextLong(0, 1L << random.nextInt(1, 30));
+            TestTimer timer = new TestTimer(deadline);
+
+            wheel.schedule(timer, deadline * TICK);
+            timers.add(timer);
+        }
+
+        Assert.assertEquals(timers.size(), wheel.size());
+
+        int expired = 0;
+
+        while (!wheel.isEmpty())
+        {
+            long nextDelay = wheel.nextDelayNanos(now);
+            Assert.assertTrue(nextDelay >= 0);
+
+            // nothing is allowed to expire before next delay
+            if (nextDelay > 0)
+                Assert.assertEquals(0, wheel.advance(now + nextDelay - 1));
+
+            // next delay is always the exact moment of the next tick which needs processing
+            now += Math.max(nextDelay, TICK);
+            expired += wheel.advance(now);
+        }
+
+        Assert.assertEquals(timers.size(), expired);
+
+        for (TestTimer timer : timers)
+            Assert.assertEquals(Math.max(1, timer.expectedTick), timer.expiredAt);
+    }
+
+    @Test
+    public void testCancellation()
+    {
+        TimerWheel wheel = new TimerWheel(TICK, 0);
+
+        TestTimer a = new TestTimer(5);
+        TestTimer b = new TestTimer(5);
+        TestTimer c = new TestTimer(100_000);
+
+        wheel.schedule(a, 5 * TICK);
+        wheel.schedule(b, 5 * TICK);
+        wheel.schedule(c, 100_000 * TICK);
+
+        Assert.assertTrue(wheel.cancel(a));
+        Assert.assertFalse(wheel.cancel(a));
+        Assert.assertTrue(wheel.cancel(c));
+        Assert.assertEquals(1, wheel.size());
+
+        now = 200_000 * TICK;
+        Assert.assertEquals(1, wheel.advance(now));
+        Assert.assertEquals(-1, a.expiredAt);
+        Assert.assertEquals(200_000, b.expiredAt); // everything expires on the single advance
+        Assert.assertEquals(-1, c.expiredAt);
+        Assert.assertFalse(wheel.cancel(b));
+        Assert.assertEquals(Long.MAX_VALUE, wheel.nextDelayNanos(200_000 * TICK));
+    }
+
+    @Test
+    public void testTimerCancel() throws Throwable
+    {
+        CPU cpu = CPUs.get(0);
+
+        Timer<Integer> timer = cpu.sleep(1, TimeUnit.MINUTES, () -> 42);
+        timer.cancel();
+
+        try
+        {
+            Futures.await(timer);
+            Assert.fail();
+        }
+        catch (CancellationException e)
+        {
+            Assert.assertTrue(timer.isFailure());
+        }
+
+        // cancellation of already expired timer is a no-op
+        Timer<Integer> expired = cpu.sleep(1, TimeUnit.MILLISECONDS, () -> 42);
+        Assert.assertEquals(42, (int) Futures.await(expired));
+
+        expired.cancel();
+        Assert.assertEquals(42, (int) Futures.await(expired));
+    }
+
+    private class TestTimer extends Timer<Void>
+    {
+        private final long expectedTick;
+        private long expiredAt = -1;
+
+        public TestTimer(long expectedTick)
+        {
+            super(null, () -> null);
+            this.expectedTick = expectedTick;
+        }
+
+        @Override
+        void expire()
+        {
+            expiredAt = now / TICK;
+        }
+    }
+}
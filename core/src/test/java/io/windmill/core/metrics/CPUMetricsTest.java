@@ -0,0 +1,90 @@
+package io.windmill.core.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import io.windmill.core.CPU;
+import io.windmill.core.CPUSet;
+import io.windmill.utils.Futures;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CPUMetricsTest
+{
+    @Test
+    public void testSnapshot() throws Throwable
+    {
+        CPUSet cpus = CPUSet.builder().addSocket(0).build();
+        cpus.start();
+
+        try
+        {
+            CPU cpu = cpus.get(0);
+            CPUMetrics.Snapshot before = cpu.getMetrics();
+
+            for (int i = 0; i < 100; i++)
+                Futures.await(cpu.schedule(() -> Futures.sleepUninterruptibly(10, TimeUnit.MICROSECONDS)));
+
+            Futures.await(cpu.scheduleIO(() -> { Futures.sleepUninterruptibly(1, TimeUnit.MILLISECONDS); return null; }));
+
+            CPUMetrics.Snapshot after = cpus.getMetrics().get(0);
+
+            Assert.assertEquals(0, after.getCpuId());
+            Assert.assertTrue(after.getTasksExecuted() >= before.getTasksExecuted() + 100);
+            Assert.assertTrue(after.getTasksPerSecond(before) > 0);
+            Assert.assertTrue(after.getTaskTime().getMax() >= TimeUnit.MICROSECONDS.toNanos(10));
+
+            Assert.assertEquals(1, after.getIOLatency().getCount());
+            Assert.assertTrue(after.getIOLatency().getMax() >= TimeUnit.MILLISECONDS.toNanos(1));
+            Assert.assertEquals(0, after.getIOQueueDepth());
+
+            // run queue is (nearly) empty, only some of the continuations registered by await could still be pending
+            Assert.assertTrue(after.getRunQueueDepth() < 10);
+            Assert.assertEquals(1 << 20, after.getRunQueueDepth() + after.getRunQueueRemainingCapacity());
+        }
+        finally
+        {
+            cpus.halt();
+        }
+    }
+
+    @Test
+    public void testMBean() throws Throwable
+    {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("io.windmill:type=CPU,id=0");
+
+        CPUSet cpus = CPUSet.builder().addSocket(0).setJmxEnabled(true).build();
+        cpus.start();
+
+        try
+        {
+            Futures.await(cpus.get(0).schedule(() -> 42));
+
+            Assert.assertTrue(server.isRegistered(name));
+            Assert.assertTrue((long) server.getAttribute(name, "TasksExecuted") > 0);
+            Assert.assertEquals(0, (int) server.getAttribute(name, "PendingTimers"));
+        }
+        finally
+        {
+            cpus.halt();
+        }
+
+        Assert.assertFalse(server.isRegistered(name));
+    }
+
+    @Test
+    public void testBeforeStart()
+    {
+        CPUSet cpus = CPUSet.builder().addSocket(0).build();
+        Map<Integer, CPUMetrics.Snapshot> metrics = cpus.getMetrics();
+
+        Assert.assertEquals(1, metrics.size());
+        Assert.assertEquals(0, metrics.get(0).getTasksExecuted());
+    }
+}
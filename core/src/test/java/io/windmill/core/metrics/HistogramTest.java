@@ -0,0 +1,89 @@
+package io.windmill.core.metrics;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HistogramTest
+{
+    @Test
+    public void testBuckets()
+    {
+        long previousHighest = -1;
+
+        // every bucket covers continuous range of values right after the previous one
+        for (int bucket = 0; bucket < Histogram.bucketOf(Long.MAX_VALUE); bucket++)
+        {
+            long highest = Histogram.highestValueOf(bucket);
+
+            Assert.assertEquals(bucket, Histogram.bucketOf(previousHighest + 1));
+            Assert.assertEquals(bucket, Histogram.bucketOf(highest));
+
+            previousHighest = highest;
+        }
+
+        Assert.assertEquals(Long.MAX_VALUE, Histogram.highestValueOf(Histogram.bucketOf(Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void testQuantiles()
+    {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Histogram histogram = new Histogram();
+
+        Assert.assertEquals(0, histogram.snapshot().getValueAtQuantile(0.99));
+
+        long[] values = new long[10000];
+        for (int i = 0; i < values.length; i++)
+        {
+            values[i] = random.nextLong(0, 1L << random.nextInt(1, 40));
+            histogram.record(values[i]);
+        }
+
+        Arrays.sort(values);
+
+        Histogram.Snapshot snapshot = histogram.snapshot();
+
+        Assert.assertEquals(values.length, snapshot.getCount());
+        Assert.assertEquals(values[values.length - 1], snapshot.getMax());
+        Assert.assertEquals(Arrays.stream(values).average().getAsDouble(), snapshot.getMean(), 1.0);
+
+        for (double quantile : new double[] { 0.0, 0.5, 0.9, 0.99, 0.999, 1.0 })
+        {
+            long expected = values[Math.max(0, (int) Math.ceil(quantile * values.length) - 1)];
+            long actual = snapshot.getValueAtQuantile(quantile);
+
+            // value is never under-estimated and error is bound by the size of the sub-bucket
+            Assert.assertTrue(actual >= expected);
+            Assert.assertTrue(actual - expected <= Math.max(1, expected / 8));
+        }
+    }
+
+    @Test
+    public void testConcurrentRecording() throws InterruptedException
+    {
+        Histogram histogram = new Histogram();
+
+        Thread[] writers = new Thread[4];
+        for (int i = 0; i < writers.length; i++)
+        {
+            writers[i] = new Thread(() -> {
+                for (int j = 0; j < 10000; j++)
+                    histogram.recordConcurrent(j);
+            });
+
+            writers[i].start();
+        }
+
+        for (Thread writer : writers)
+            writer.join();
+
+        Histogram.Snapshot snapshot = histogram.snapshot();
+
+        Assert.assertEquals(40000, snapshot.getCount());
+        Assert.assertEquals(9999, snapshot.getMax());
+        Assert.assertEquals(4999.5, snapshot.getMean(), 0.001);
+    }
+}
@@ -14,15 +14,16 @@ import java.util.concurrent.atomic.AtomicReference;
 import io.windmill.core.CPUSet;
 import io.windmill.core.Future;
 import io.windmill.disk.cache.Page;
+import io.windmill.disk.cache.PageCache;
 import io.windmill.disk.cache.PageCacheTest;
+import io.windmill.disk.cache.PageCacheTest.FailingFileChannel;
 import io.windmill.disk.cache.PageCacheTest.CountingPageConsumer;
+import io.windmill.disk.cache.PageReplacer;
 import io.windmill.net.Channel;
 import io.windmill.net.io.InputStream;
 import io.windmill.net.io.OutputStream;
 import io.windmill.utils.Futures;
 
-import com.github.benmanes.caffeine.cache.Cache;
-
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 
@@ -116,7 +117,7 @@ public class FileTest
             random.nextBytes(buffer);
 
             Assert.assertEquals(buffer.length, Futures.await(file.seek(0).flatMap((context) -> context.write(buffer))).getPosition());
-            Assert.assertEquals(4,  (int) Futures.await(file.sync()));
+            Assert.assertEquals(3,  (int) Futures.await(file.sync()));
             Assert.assertEquals(buffer.length, tmp.length());
 
             List<byte[]> pages = new ArrayList<>();
@@ -138,6 +139,14 @@ public class FileTest
                 Assert.assertEquals(Unpooled.wrappedBuffer(bytes), read);
                 pageOffset += Page.PAGE_SIZE * 2;
             }
+
+            // small write and read which cross the page boundary
+            byte[] crossing = new byte[100];
+            random.nextBytes(crossing);
+
+            Assert.assertEquals(Page.PAGE_SIZE + 90, Futures.await(file.write(Page.PAGE_SIZE - 10, crossing)).getPosition());
+            Assert.assertEquals(Unpooled.wrappedBuffer(crossing), Futures.await(file.read(Page.PAGE_SIZE - 10, crossing.length)));
+            Assert.assertEquals(2, (int) Futures.await(file.sync()));
         }
         finally
         {
@@ -156,7 +165,7 @@ public class FileTest
         try
         {
             Assert.assertEquals(buffer.readableBytes(), Futures.await(file.write(0, buffer)).getPosition());
-            Assert.assertEquals(6,  (int) Futures.await(file.sync()));
+            Assert.assertEquals(5,  (int) Futures.await(file.sync()));
 
             // evict random page to test situation when there are holes in the cache
             Futures.await(file.cache.evictPage(ThreadLocalRandom.current().nextInt(1, 4)));
@@ -222,29 +231,129 @@ public class FileTest
     }
 
     @Test
-    public void testPageTracker() throws Throwable
+    public void testRangeTransfer() throws Throwable
+    {
+        byte[] expected = new byte[Page.PAGE_SIZE * 5 + 100];
+        ThreadLocalRandom.current().nextBytes(expected);
+
+        File file = Futures.await(CPU.open(createTempFile("rangeTransfer"), "rw"));
+
+        try
+        {
+            Futures.await(file.write(0, Unpooled.wrappedBuffer(expected, 0, Page.PAGE_SIZE * 5)));
+            Futures.await(file.sync());
+
+            // two clean runs (pages 0-1 and page 3) which are going to be sent directly from the file
+            for (int pageOffset : new int[] { 0, 1, 3 })
+                Futures.await(file.cache.evictPage(pageOffset));
+
+            // dirty page in the middle and the one which extends the file, both only available in the cache
+            Futures.await(file.write(Page.PAGE_SIZE * 2 + 100, Unpooled.wrappedBuffer(expected, Page.PAGE_SIZE * 2 + 100, 3000)));
+            Futures.await(file.write(Page.PAGE_SIZE * 5, Unpooled.wrappedBuffer(expected, Page.PAGE_SIZE * 5, 100)));
+
+            Assert.assertEquals(2, file.cache.getDirtyPages().size());
+
+            AtomicReference<Future<Long>> transferred = new AtomicReference<>();
+            CPU.listen(new InetSocketAddress("127.0.0.1", 31339), (c) -> {
+                transferred.set(file.transferTo(c, 10, Page.PAGE_SIZE * 6));
+            }, Throwable::printStackTrace);
+
+            try (java.net.Socket client = new java.net.Socket("127.0.0.1", 31339))
+            {
+                byte[] received = new byte[expected.length - 10];
+                new java.io.DataInputStream(client.getInputStream()).readFully(received);
+
+                Assert.assertEquals(Unpooled.wrappedBuffer(expected, 10, expected.length - 10), Unpooled.wrappedBuffer(received));
+            }
+
+            while (transferred.get() == null)
+                Futures.sleepUninterruptibly(10, TimeUnit.MILLISECONDS);
+
+            Assert.assertEquals(expected.length - 10, (long) Futures.await(transferred.get()));
+        }
+        finally
+        {
+            Futures.await(file.close());
+        }
+    }
+
+    @Test
+    public void testReadAhead() throws Throwable
+    {
+        int numPages = 64;
+        byte[] expected = new byte[numPages * Page.PAGE_SIZE + 100];
+        ThreadLocalRandom.current().nextBytes(expected);
+
+        java.io.File tmp = createTempFile("readAhead");
+        try (java.io.RandomAccessFile raf = new java.io.RandomAccessFile(tmp, "rw"))
+        {
+            raf.write(expected);
+        }
+
+        File file = Futures.await(CPU.open(tmp, "r"));
+
+        try
+        {
+            // sequential scan, which doesn't start at the page boundary
+            for (int position = 100; position < expected.length; position += Page.PAGE_SIZE)
+            {
+                int length = Math.min(Page.PAGE_SIZE, expected.length - position);
+                Assert.assertEquals(Unpooled.wrappedBuffer(expected, position, length), Futures.await(file.read(position, Page.PAGE_SIZE)));
+            }
+
+            // only the pages requested by the very first read had to be loaded on demand
+            Assert.assertEquals(2, file.getReadAheadMisses());
+            Assert.assertTrue(file.getReadAheadHits() >= numPages - 1);
+        }
+        finally
+        {
+            Futures.await(file.close());
+        }
+
+        file = Futures.await(CPU.open(tmp, "r"));
+
+        try
+        {
+            // random reads don't trigger read-ahead
+            for (int pageOffset : new int[] { 50, 10, 30, 20 })
+            {
+                long position = (long) pageOffset * Page.PAGE_SIZE;
+                Assert.assertEquals(Unpooled.wrappedBuffer(expected, (int) position, 10), Futures.await(file.read(position, 10)));
+            }
+
+            Assert.assertEquals(4, file.getReadAheadMisses());
+            Assert.assertEquals(0, file.getReadAheadHits());
+
+            // page next to the one just read has been loaded on demand as well
+            Assert.assertEquals(Unpooled.wrappedBuffer(expected, 21 * Page.PAGE_SIZE, 10), Futures.await(file.read(21 * Page.PAGE_SIZE, 10)));
+            Assert.assertEquals(5, file.getReadAheadMisses());
+        }
+        finally
+        {
+            Futures.await(file.close());
+        }
+    }
+
+    @Test
+    public void testPageReplacer() throws Throwable
     {
         int numPages = 3;
         File file = Futures.await(CPU.open(PageCacheTest.generateTmpFile(numPages * Page.PAGE_SIZE), "rw"));
-        Cache<PageRef, Boolean> pageTracker = file.ioService.pageTracker;
+        PageReplacer replacer = CPU.getPageReplacer();
 
-        // let's invalidate everything currently in the tracker
-        pageTracker.invalidateAll();
+        // other tests could have left some of their pages behind
+        int initialSize = Futures.await(CPU.schedule(replacer::size));
 
-        // and now re-fault all pages we have
         for (int i = 0; i < numPages; i++)
             Futures.await(file.read(i * Page.PAGE_SIZE, 1));
 
-        Assert.assertEquals(3, pageTracker.estimatedSize());
+        Assert.assertEquals(initialSize + 3, (int) Futures.await(CPU.schedule(replacer::size)));
 
         int evictedOffset = ThreadLocalRandom.current().nextInt(0, numPages);
         // let's evict one page and see if read from file brings it back up
-        pageTracker.invalidate(new PageRef(file, evictedOffset));
-
-        // because we can't track when page is actually evicted since it's async
-        Futures.sleepUninterruptibly(250, TimeUnit.MILLISECONDS);
+        Futures.await(CPU.schedule(() -> file.cache.evictPage(evictedOffset)).flatMap((f) -> f));
 
-        Assert.assertEquals(2, pageTracker.estimatedSize());
+        Assert.assertEquals(initialSize + 2, (int) Futures.await(CPU.schedule(replacer::size)));
 
         CountingPageConsumer pageConsumer = new CountingPageConsumer();
         file.cache.forEach(pageConsumer);
@@ -252,15 +361,187 @@ public class FileTest
 
         Futures.await(file.read(evictedOffset * Page.PAGE_SIZE, 1));
 
-        Assert.assertEquals(3, pageTracker.estimatedSize());
+        Assert.assertEquals(initialSize + 3, (int) Futures.await(CPU.schedule(replacer::size)));
         pageConsumer = new CountingPageConsumer();
         file.cache.forEach(pageConsumer);
         Assert.assertEquals(3, pageConsumer.getCount());
 
-        // should evict everything from page tracker
+        // should stop tracking all of the pages of the file
         Futures.await(file.close());
 
-        Assert.assertEquals(0, pageTracker.estimatedSize());
+        Assert.assertEquals(initialSize, (int) Futures.await(CPU.schedule(replacer::size)));
+    }
+
+    @Test
+    public void testReadLargerThanCache() throws Throwable
+    {
+        int numPages = 32;
+        CPUSet cpus = CPUSet.builder().addSocket(0).setPageCacheSize(8 * Page.PAGE_SIZE).build();
+        cpus.start();
+
+        try
+        {
+            java.io.File tmp = createTempFile("readLargerThanCache");
+            byte[] expected = new byte[numPages * Page.PAGE_SIZE];
+            ThreadLocalRandom.current().nextBytes(expected);
+            java.nio.file.Files.write(tmp.toPath(), expected);
+
+            File file = Futures.await(cpus.get(0).open(tmp, "r"));
+
+            try
+            {
+                // pages of the read are loaded in one go and have to survive until they are copied out
+                for (int i = 0; i < 3; i++)
+                    Assert.assertEquals(Unpooled.wrappedBuffer(expected), Futures.await(file.read(0, expected.length)));
+
+                // and then cache is brought back within its budget
+                PageReplacer replacer = cpus.get(0).getPageReplacer();
+                Assert.assertTrue(Futures.await(cpus.get(0).schedule(() -> replacer.size() <= replacer.getBudget())));
+            }
+            finally
+            {
+                Futures.await(file.close());
+            }
+        }
+        finally
+        {
+            cpus.halt();
+        }
+    }
+
+    @Test
+    public void testCancelledRead() throws Throwable
+    {
+        File file = Futures.await(CPU.open(PageCacheTest.generateTmpFile(Page.PAGE_SIZE), "rw"));
+
+        try
+        {
+            // both reads wait for the same page load, the first one giving up shouldn't fail the second one
+            Future<ByteBuf> read = CPU.schedule(() -> {
+                Future<ByteBuf> cancelled = file.read(0, 100);
+                cancelled.cancel();
+
+                return file.read(0, 100);
+            }).flatMap((f) -> f);
+
+            Assert.assertEquals(100, Futures.await(read).readableBytes());
+        }
+        finally
+        {
+            Futures.await(file.close());
+        }
+    }
+
+    @Test
+    public void testBackgroundFlush() throws Throwable
+    {
+        int numPages = 10;
+        byte[] expected = new byte[numPages * Page.PAGE_SIZE];
+        ThreadLocalRandom.current().nextBytes(expected);
+
+        java.io.File tmp = createTempFile("backgroundFlush");
+        File file = Futures.await(CPU.open(tmp, "rw"));
+
+        try
+        {
+            Futures.await(file.write(0, expected));
+            Assert.assertEquals(numPages, getNumDirtyPages(file));
+
+            // the oldest pages above the threshold are written back, a batch at a time
+            Flusher flusher = new Flusher(CPU, 4, TimeUnit.HOURS.toNanos(1), TimeUnit.HOURS.toNanos(1), 3);
+            flusher.register(file.cache);
+
+            Assert.assertEquals(3, flush(flusher));
+            Assert.assertEquals(3, flush(flusher));
+            Assert.assertEquals(0, flush(flusher));
+            Assert.assertEquals(4, getNumDirtyPages(file));
+
+            byte[] written = java.nio.file.Files.readAllBytes(tmp.toPath());
+            Assert.assertEquals(Unpooled.wrappedBuffer(expected, 0, 6 * Page.PAGE_SIZE), Unpooled.wrappedBuffer(written));
+
+            // expired pages are written back even if there are only a few of them
+            flusher = new Flusher(CPU, 100, 0, TimeUnit.HOURS.toNanos(1), 100);
+            flusher.register(file.cache);
+
+            Assert.assertEquals(4, flush(flusher));
+            Assert.assertEquals(0, getNumDirtyPages(file));
+            Assert.assertArrayEquals(expected, java.nio.file.Files.readAllBytes(tmp.toPath()));
+
+            // the flusher of the CPU eventually writes back the rest without explicit sync
+            Futures.await(file.write(0, new byte[] { 42 }));
+            Assert.assertEquals(1, getNumDirtyPages(file));
+
+            for (int i = 0; i < 100 && getNumDirtyPages(file) > 0; i++)
+                Futures.sleepUninterruptibly(50, TimeUnit.MILLISECONDS);
+
+            Assert.assertEquals(0, getNumDirtyPages(file));
+            Assert.assertEquals(42, java.nio.file.Files.readAllBytes(tmp.toPath())[0]);
+
+            // nothing left to write, but the file still has to be forced
+            Assert.assertEquals(0, (int) Futures.await(file.sync()));
+        }
+        finally
+        {
+            Futures.await(file.close());
+        }
+    }
+
+    @Test
+    public void testBackgroundFlushBackoff() throws Throwable
+    {
+        int numPages = 4;
+        FailingFileChannel channel = new FailingFileChannel(PageCacheTest.generateTmpFile(PageCacheTest.createTmpFile(), numPages * Page.PAGE_SIZE));
+        PageCache cache = new PageCache(CPU, channel);
+
+        long intervalNanos = TimeUnit.MILLISECONDS.toNanos(1);
+        // every dirty page is over the threshold, so rounds would follow each other right away if they succeeded
+        Flusher flusher = new Flusher(CPU, 0, 0, intervalNanos, 256);
+
+        Assert.assertEquals(intervalNanos, flusher.getRetryDelayNanos(1));
+        Assert.assertEquals(4 * intervalNanos, flusher.getRetryDelayNanos(3));
+        Assert.assertEquals(Flusher.MAX_BACKOFF_INTERVALS * intervalNanos, flusher.getRetryDelayNanos(100));
+
+        try
+        {
+            List<Page> pages = Futures.await(CPU.schedule(() -> cache.getOrCreate(0, numPages)).flatMap((f) -> f));
+            Futures.await(CPU.schedule(() -> {
+                for (Page page : pages)
+                    page.write((short) 0, Unpooled.wrappedBuffer(new byte[] { 42 }));
+            }));
+
+            channel.isFailing = true;
+            flusher.register(cache);
+
+            Futures.sleepUninterruptibly(300, TimeUnit.MILLISECONDS);
+
+            // retries back off instead of hammering the disk, which keeps failing
+            int numFailures = channel.getNumFailures();
+            Assert.assertTrue(String.valueOf(numFailures), numFailures > 0 && numFailures < 50);
+            Assert.assertEquals(numPages, (int) Futures.await(CPU.schedule(cache::getNumDirtyPages)));
+
+            // and once disk is back everything is written
+            channel.isFailing = false;
+
+            for (int i = 0; i < 100 && Futures.await(CPU.schedule(cache::getNumDirtyPages)) > 0; i++)
+                Futures.sleepUninterruptibly(50, TimeUnit.MILLISECONDS);
+
+            Assert.assertEquals(0, (int) Futures.await(CPU.schedule(cache::getNumDirtyPages)));
+        }
+        finally
+        {
+            flusher.unregister(cache);
+            Futures.await(cache.close());
+        }
+    }
+
+    private static int flush(Flusher flusher) throws Throwable
+    {
+        return Futures.await(CPU.schedule(flusher::flush).flatMap((f) -> f));
+    }
+
+    private static int getNumDirtyPages(File file) throws Throwable
+    {
+        return Futures.await(CPU.schedule(file.cache::getNumDirtyPages));
     }
 
     private byte[] getInt(int n)
@@ -0,0 +1,235 @@
+package io.windmill.disk;
+
+import java.io.DataInputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.NonWritableChannelException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import io.windmill.core.CPU;
+import io.windmill.core.CPUSet;
+import io.windmill.core.Future;
+import io.windmill.disk.MappedFile.Advice;
+import io.windmill.disk.cache.Page;
+import io.windmill.utils.Futures;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import org.junit.*;
+
+public class MappedFileTest
+{
+    private static CPUSet CPU_SET;
+    private static CPU CPU;
+
+    @BeforeClass
+    public static void beforeAll()
+    {
+        CPU_SET = CPUSet.builder().addSocket(0).build();
+        CPU_SET.start();
+
+        CPU = CPU_SET.get(0);
+    }
+
+    @AfterClass
+    public static void afterAll()
+    {
+        CPU_SET.halt();
+    }
+
+    @Test
+    public void testReads() throws Throwable
+    {
+        byte[] expected = randomBytes(Page.PAGE_SIZE * 3 + 100);
+        File file = Futures.await(CPU.open(createTempFile(expected), MappedFile.MODE));
+
+        try
+        {
+            Assert.assertEquals(MappedFile.class, file.getClass());
+            Assert.assertEquals(expected.length, ((MappedFile) file).size());
+
+            assertRead(expected, 0, expected.length, Futures.await(file.read(0, expected.length)));
+            assertRead(expected, 42, 1000, Futures.await(file.read(42, 1000)));
+
+            // reads past the end of the file are truncated
+            assertRead(expected, expected.length - 10, 10, Futures.await(file.read(expected.length - 10, 100)));
+            Assert.assertEquals(Unpooled.EMPTY_BUFFER, Futures.await(file.read(expected.length + 1, 100)));
+
+            // sequential reads advance position of the context
+            ByteBuf read = Futures.await(file.seek(100).flatMap((context) -> context.read(50).flatMap((first) -> {
+                assertRead(expected, 100, 50, first);
+                return context.read(50);
+            })));
+
+            assertRead(expected, 150, 50, read);
+
+            // slices are read-only views of the mapping
+            try
+            {
+                read.setByte(0, 1);
+                Assert.fail();
+            }
+            catch (UnsupportedOperationException e)
+            {
+                // expected
+            }
+
+            try
+            {
+                Futures.await(file.write(0, new byte[] { 1 }));
+                Assert.fail();
+            }
+            catch (NonWritableChannelException e)
+            {
+                // expected
+            }
+
+            Assert.assertEquals(0, (int) Futures.await(file.sync()));
+        }
+        finally
+        {
+            Futures.await(file.close());
+        }
+    }
+
+    @Test
+    public void testChunks() throws Throwable
+    {
+        byte[] expected = randomBytes(Page.PAGE_SIZE * 4 + 100);
+        java.io.File tmp = createTempFile(expected);
+        File opened = Futures.await(CPU.open(tmp, MappedFile.MODE));
+
+        try (RandomAccessFile raf = new RandomAccessFile(tmp, "r"))
+        {
+            // map every page separately, so reads have to span multiple chunks
+            MappedFile file = new MappedFile(CPU, opened.ioService, raf.getChannel(), Page.PAGE_SIZE, 4 * Page.PAGE_SIZE);
+
+            assertRead(expected, 0, expected.length, Futures.await(file.read(0, expected.length)));
+            assertRead(expected, Page.PAGE_SIZE - 10, 20, Futures.await(file.read(Page.PAGE_SIZE - 10, 20)));
+            assertRead(expected, Page.PAGE_SIZE * 4, 100, Futures.await(file.read(Page.PAGE_SIZE * 4, 1000)));
+
+            // loads all of the chunks
+            Futures.await(file.advise(Advice.WILLNEED));
+
+            Futures.await(file.advise(Advice.SEQUENTIAL));
+            assertRead(expected, 1, Page.PAGE_SIZE * 2, Futures.await(file.read(1, Page.PAGE_SIZE * 2)));
+
+            try
+            {
+                new MappedFile(CPU, opened.ioService, raf.getChannel(), Page.PAGE_SIZE + 1, 0);
+                Assert.fail();
+            }
+            catch (IllegalArgumentException e)
+            {
+                // expected
+            }
+        }
+        finally
+        {
+            Futures.await(opened.close());
+        }
+    }
+
+    @Test
+    public void testLoadAhead() throws Throwable
+    {
+        int numPages = 16;
+        byte[] expected = randomBytes(Page.PAGE_SIZE * numPages);
+        java.io.File tmp = createTempFile(expected);
+        File opened = Futures.await(CPU.open(tmp, MappedFile.MODE));
+
+        try (RandomAccessFile raf = new RandomAccessFile(tmp, "r"))
+        {
+            MappedFile file = new MappedFile(CPU, opened.ioService, raf.getChannel(), Page.PAGE_SIZE, 4 * Page.PAGE_SIZE);
+
+            // nothing is loaded ahead without the advice
+            assertRead(expected, 0, Page.PAGE_SIZE, Futures.await(file.read(0, Page.PAGE_SIZE)));
+            Assert.assertEquals(0L, (long) Futures.await(CPU.schedule(() -> file.loadAheadPosition)));
+
+            Futures.await(file.advise(Advice.SEQUENTIAL));
+
+            // window starts right after the read, and the next one is only requested once half of it is read
+            long[] positions = new long[numPages];
+            for (int i = 0; i < numPages; i++)
+            {
+                int page = i;
+                assertRead(expected, page * Page.PAGE_SIZE, Page.PAGE_SIZE, Futures.await(file.read(page * Page.PAGE_SIZE, Page.PAGE_SIZE)));
+                positions[page] = Futures.await(CPU.schedule(() -> file.loadAheadPosition));
+            }
+
+            Assert.assertEquals(5L * Page.PAGE_SIZE, positions[0]);
+            Assert.assertEquals(5L * Page.PAGE_SIZE, positions[1]);
+            Assert.assertEquals(5L * Page.PAGE_SIZE, positions[2]);
+            Assert.assertEquals(8L * Page.PAGE_SIZE, positions[3]);
+
+            // never goes past the end of the file
+            Assert.assertEquals((long) expected.length, positions[numPages - 1]);
+        }
+        finally
+        {
+            Futures.await(opened.close());
+        }
+    }
+
+    @Test
+    public void testTransfer() throws Throwable
+    {
+        byte[] expected = randomBytes(Page.PAGE_SIZE * 5 + 100);
+        File file = Futures.await(CPU.open(createTempFile(expected), MappedFile.MODE));
+
+        try
+        {
+            AtomicReference<Future<Long>> transferred = new AtomicReference<>();
+            CPU.listen(new InetSocketAddress("127.0.0.1", 31354), (c) -> {
+                // requests more than there is in the file
+                transferred.set(file.transferTo(c, 10, expected.length));
+            }, Throwable::printStackTrace);
+
+            try (Socket client = new Socket("127.0.0.1", 31354))
+            {
+                byte[] received = new byte[expected.length - 10];
+                new DataInputStream(client.getInputStream()).readFully(received);
+
+                Assert.assertEquals(Unpooled.wrappedBuffer(expected, 10, expected.length - 10), Unpooled.wrappedBuffer(received));
+            }
+
+            while (transferred.get() == null)
+                Futures.sleepUninterruptibly(10, TimeUnit.MILLISECONDS);
+
+            Assert.assertEquals(expected.length - 10, (long) Futures.await(transferred.get()));
+        }
+        finally
+        {
+            Futures.await(file.close());
+        }
+    }
+
+    private static void assertRead(byte[] expected, int offset, int length, ByteBuf read)
+    {
+        Assert.assertEquals(Unpooled.wrappedBuffer(expected, offset, length), read);
+    }
+
+    private static byte[] randomBytes(int size)
+    {
+        byte[] bytes = new byte[size];
+        ThreadLocalRandom.current().nextBytes(bytes);
+        return bytes;
+    }
+
+    private static java.io.File createTempFile(byte[] contents) throws Exception
+    {
+        java.io.File tmp = java.io.File.createTempFile("mapped-file-", ".db");
+        tmp.deleteOnExit();
+
+        try (RandomAccessFile file = new RandomAccessFile(tmp, "rw"))
+        {
+            file.write(contents);
+        }
+
+        return tmp;
+    }
+}
@@ -3,10 +3,18 @@ package io.windmill.disk.cache;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 
 import io.netty.buffer.ByteBuf;
@@ -15,6 +23,7 @@ import io.netty.util.collection.IntObjectHashMap;
 import io.netty.util.collection.IntObjectMap;
 
 import io.windmill.core.AbstractTest;
+import io.windmill.core.Future;
 import io.windmill.utils.Futures;
 import org.junit.Assert;
 import org.junit.Test;
@@ -218,6 +227,281 @@ public class PageCacheTest extends AbstractTest
         Assert.assertEquals(0, pageConsumer.getCount());
     }
 
+    @Test
+    public void testBatchedLoad() throws Throwable
+    {
+        int numPages = 20;
+        String path = generateTmpFile(numPages * Page.PAGE_SIZE);
+        byte[] expected = java.nio.file.Files.readAllBytes(new File(path).toPath());
+
+        PageCache cache = new PageCache(CPUs.get(0), new RandomAccessFile(path, "rw").getChannel());
+
+        try
+        {
+            // a couple of pages in the middle of the range are already cached
+            Page third = Futures.await(cache.getOrCreate(3));
+            Page tenth = Futures.await(cache.getOrCreate(10));
+
+            // range goes past the end of the file
+            List<Page> pages = Futures.await(CPUs.get(0).schedule(() -> cache.getOrCreate(0, numPages + 4)).flatMap((f) -> f));
+
+            Assert.assertEquals(numPages + 4, pages.size());
+            Assert.assertSame(third, pages.get(3));
+            Assert.assertSame(tenth, pages.get(10));
+
+            for (int i = 0; i < pages.size(); i++)
+            {
+                Page page = pages.get(i);
+                Assert.assertEquals(i, page.getOffset());
+
+                ByteBuf expectedBytes = i < numPages
+                                        ? Unpooled.wrappedBuffer(expected, i * Page.PAGE_SIZE, Page.PAGE_SIZE)
+                                        : Unpooled.EMPTY_BUFFER;
+
+                Assert.assertEquals(expectedBytes, page.read((short) 0, Page.PAGE_SIZE));
+            }
+
+            // everything is cached now, so the same pages are returned
+            List<Page> cached = Futures.await(CPUs.get(0).schedule(() -> cache.getOrCreate(2, 5)).flatMap((f) -> f));
+            Assert.assertEquals(pages.subList(2, 7), cached);
+        }
+        finally
+        {
+            Futures.await(cache.close());
+        }
+    }
+
+    @Test
+    public void testConcurrentIO() throws Throwable
+    {
+        int numPages = 128;
+        String path = createTmpFile();
+        PageCache cache = new PageCache(CPUs.get(0), generateTmpFile(path, numPages * Page.PAGE_SIZE));
+        byte[] expected = java.nio.file.Files.readAllBytes(new File(path).toPath());
+
+        try
+        {
+            // every page is loaded by a separate task, so loads are spread across all of the I/O threads
+            List<Page> pages = Futures.await(CPUs.get(0).schedule(() -> {
+                List<Future<Page>> loads = new ArrayList<>(numPages);
+                for (int i = 0; i < numPages; i++)
+                    loads.add(cache.getOrCreate(i));
+
+                return CPUs.get(0).sequence(loads);
+            }).flatMap((f) -> f));
+
+            for (int i = 0; i < numPages; i++)
+                Assert.assertEquals(Unpooled.wrappedBuffer(expected, i * Page.PAGE_SIZE, Page.PAGE_SIZE), pages.get(i).read((short) 0, Page.PAGE_SIZE));
+
+            // re-write every page and write them all back concurrently
+            Futures.await(CPUs.get(0).schedule(() -> {
+                List<Future<Void>> evictions = new ArrayList<>(numPages);
+                for (int i = 0; i < numPages; i++)
+                {
+                    byte[] bytes = new byte[Page.PAGE_SIZE];
+                    Arrays.fill(bytes, (byte) i);
+
+                    pages.get(i).write((short) 0, Unpooled.wrappedBuffer(bytes));
+                    evictions.add(cache.evictPage(i));
+                }
+
+                return CPUs.get(0).sequence(evictions);
+            }).flatMap((f) -> f));
+
+            byte[] written = java.nio.file.Files.readAllBytes(new File(path).toPath());
+            Assert.assertEquals(numPages * Page.PAGE_SIZE, written.length);
+
+            for (int i = 0; i < written.length; i++)
+                Assert.assertEquals((byte) (i >> Page.PAGE_BITS), written[i]);
+        }
+        finally
+        {
+            Futures.await(cache.close());
+        }
+    }
+
+    @Test
+    public void testCoalescedSync() throws Throwable
+    {
+        int numPages = 100;
+        String path = createTmpFile();
+        PageCache cache = new PageCache(CPUs.get(0), generateTmpFile(path, numPages * Page.PAGE_SIZE));
+        byte[] expected = java.nio.file.Files.readAllBytes(new File(path).toPath());
+
+        try
+        {
+            List<Page> pages = Futures.await(CPUs.get(0).schedule(() -> cache.getOrCreate(0, numPages)).flatMap((f) -> f));
+
+            int numWrites = Futures.await(CPUs.get(0).schedule(() -> {
+                // 280K of the contiguous dirty pages, split at the maximum I/O size
+                for (int i = 0; i < 70; i++)
+                    write(pages.get(i), expected, 0, Page.PAGE_SIZE);
+
+                // the first and the last blocks of the page, the last one is adjacent to the first block of the next page
+                write(pages.get(80), expected, 0, 10);
+                write(pages.get(80), expected, Page.PAGE_SIZE - 10, 10);
+                write(pages.get(81), expected, 0, 10);
+
+                WriteBack writeBack = new WriteBack(cache.getDirtyPages());
+                writeBack.release();
+
+                return writeBack.getNumWrites();
+            }));
+
+            Assert.assertEquals(4, numWrites);
+            Assert.assertEquals(72, (int) Futures.await(cache.sync()));
+            Assert.assertFalse(Futures.await(CPUs.get(0).schedule(cache::isDirty)));
+            Assert.assertArrayEquals(expected, java.nio.file.Files.readAllBytes(new File(path).toPath()));
+
+            // page modified while it's being written back stays dirty
+            boolean isDirty = Futures.await(CPUs.get(0).schedule(() -> {
+                write(pages.get(0), expected, 0, 10);
+                WriteBack writeBack = new WriteBack(cache.getDirtyPages());
+
+                write(pages.get(0), expected, 10, 10);
+                writeBack.complete();
+                writeBack.release();
+
+                return pages.get(0).isDirty() && cache.isDirty();
+            }));
+
+            Assert.assertTrue(isDirty);
+            Assert.assertEquals(1, (int) Futures.await(cache.sync()));
+            Assert.assertFalse(pages.get(0).isDirty());
+        }
+        finally
+        {
+            Futures.await(cache.close());
+        }
+    }
+
+    @Test
+    public void testFailedWriteBack() throws Throwable
+    {
+        int numPages = 4;
+        String path = createTmpFile();
+        FailingFileChannel file = new FailingFileChannel(generateTmpFile(path, numPages * Page.PAGE_SIZE));
+        PageCache cache = new PageCache(CPUs.get(0), file);
+        byte[] expected = java.nio.file.Files.readAllBytes(new File(path).toPath());
+
+        try
+        {
+            List<Page> pages = Futures.await(CPUs.get(0).schedule(() -> cache.getOrCreate(0, numPages)).flatMap((f) -> f));
+
+            Futures.await(CPUs.get(0).schedule(() -> {
+                for (Page page : pages)
+                    write(page, expected, 0, 10);
+            }));
+
+            file.isFailing = true;
+
+            // both background write-back and eviction of the dirty page fail
+            List<Future<Integer>> writeBacks = Futures.await(CPUs.get(0).schedule(() -> Arrays.asList(cache.flushOldest(2, Long.MAX_VALUE),
+                                                                                                       cache.evictPage(numPages - 1).map((v) -> 0))));
+            for (Future<Integer> writeBack : writeBacks)
+            {
+                try
+                {
+                    Futures.await(writeBack);
+                    Assert.fail();
+                }
+                catch (IOException e)
+                {
+                    // expected
+                }
+            }
+
+            // page which failed to be evicted is still cached, with its changes
+            Assert.assertTrue(Futures.await(CPUs.get(0).schedule(() -> cache.contains(pages.get(numPages - 1)))));
+
+            // once disk is back, sync goes through and writes everything which is still dirty
+            file.isFailing = false;
+
+            Assert.assertEquals(numPages, (int) Futures.await(CPUs.get(0).schedule(cache::sync).flatMap((f) -> f).within(10, TimeUnit.SECONDS)));
+            Assert.assertFalse(Futures.await(CPUs.get(0).schedule(cache::isDirty)));
+
+            byte[] written = java.nio.file.Files.readAllBytes(new File(path).toPath());
+            for (int i = 0; i < numPages; i++)
+            {
+                int offset = i * Page.PAGE_SIZE;
+                Assert.assertArrayEquals(Arrays.copyOfRange(expected, offset, offset + Page.PAGE_SIZE),
+                                         Arrays.copyOfRange(written, offset, offset + Page.PAGE_SIZE));
+            }
+        }
+        finally
+        {
+            Futures.await(cache.close());
+        }
+    }
+
+    private static void write(Page page, byte[] file, int position, int length)
+    {
+        int offset = (page.getOffset() << Page.PAGE_BITS) + position;
+
+        // flip the bytes, so it's possible to tell if they are not written back
+        for (int i = offset; i < offset + length; i++)
+            file[i] = (byte) ~file[i];
+
+        page.write((short) position, Unpooled.wrappedBuffer(file, offset, length));
+    }
+
+    @Test
+    public void testPageArena() throws Throwable
+    {
+        PageArena arena = new PageArena(3 * Page.PAGE_SIZE);
+
+        List<ByteBuf> pages = new ArrayList<>();
+        for (int i = 0; i < 3; i++)
+            pages.add(arena.allocate());
+
+        pages.forEach((page) -> {
+            Assert.assertTrue(page.isDirect());
+            Assert.assertEquals(0, page.readableBytes());
+            Assert.assertEquals(Page.PAGE_SIZE, page.writableBytes());
+        });
+
+        Assert.assertEquals(3, arena.getUsedSlots());
+
+        // arena is exhausted, so it falls back to heap
+        ByteBuf overflow = arena.allocate();
+        Assert.assertFalse(overflow.isDirect());
+        Assert.assertEquals(3, arena.getUsedSlots());
+
+        // slot is not recycled until everybody sharing it is done with it
+        ByteBuf page = pages.get(0).writeInt(42);
+        ByteBuf slice = page.slice().retain();
+        page.release();
+
+        Assert.assertEquals(3, arena.getUsedSlots());
+        Assert.assertEquals(42, slice.getInt(0));
+
+        slice.release();
+        Assert.assertEquals(2, arena.getUsedSlots());
+
+        ByteBuf recycled = arena.allocate();
+        Assert.assertTrue(recycled.isDirect());
+        Assert.assertEquals(0, recycled.readableBytes());
+        Assert.assertEquals(3, arena.getAllocatedSlots());
+
+        // cache takes its pages from the CPU arena and gives them back on eviction
+        int numPages = 8;
+        PageCache cache = new PageCache(CPUs.get(0), generateTmpFile(createTmpFile(), numPages * Page.PAGE_SIZE));
+        PageArena cpuArena = CPUs.get(0).getPageArena();
+
+        int usedSlots = cpuArena.getUsedSlots();
+
+        for (int i = 0; i < numPages; i++)
+            Assert.assertEquals(Page.PAGE_SIZE, Futures.await(cache.getOrCreate(i)).read((short) 0, Page.PAGE_SIZE).readableBytes());
+
+        Assert.assertEquals(usedSlots + numPages, cpuArena.getUsedSlots());
+
+        for (int i = 0; i < numPages / 2; i++)
+            Futures.await(cache.evictPage(i));
+
+        Assert.assertEquals(usedSlots + numPages / 2, cpuArena.getUsedSlots());
+        Futures.await(cache.close());
+    }
+
     public static String generateTmpFile(long fileLength) throws IOException
     {
         String path = createTmpFile();
@@ -246,7 +530,7 @@ public class PageCacheTest extends AbstractTest
         return file.getChannel();
     }
 
-    private static String createTmpFile() throws IOException
+    public static String createTmpFile() throws IOException
     {
         File tmp = File.createTempFile("random-file-cache-", ".db");
         tmp.deleteOnExit();
@@ -254,6 +538,148 @@ public class PageCacheTest extends AbstractTest
         return tmp.getAbsolutePath();
     }
 
+    /**
+     * File channel which could be made to fail all of the writes, as if the disk is full.
+     */
+    public static class FailingFileChannel extends FileChannel
+    {
+        private final FileChannel file;
+        private final AtomicInteger numFailures = new AtomicInteger();
+
+        public volatile boolean isFailing = false;
+
+        public FailingFileChannel(FileChannel file)
+        {
+            this.file = file;
+        }
+
+        /**
+         * @return The number of writes which have been failed so far.
+         */
+        public int getNumFailures()
+        {
+            return numFailures.get();
+        }
+
+        private void checkFailing() throws IOException
+        {
+            if (!isFailing)
+                return;
+
+            numFailures.incrementAndGet();
+            throw new IOException("No space left on device");
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException
+        {
+            return file.read(dst);
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) throws IOException
+        {
+            return file.read(dsts, offset, length);
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) throws IOException
+        {
+            return file.read(dst, position);
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException
+        {
+            checkFailing();
+            return file.write(src);
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException
+        {
+            checkFailing();
+            return file.write(srcs, offset, length);
+        }
+
+        @Override
+        public int write(ByteBuffer src, long position) throws IOException
+        {
+            checkFailing();
+            return file.write(src, position);
+        }
+
+        @Override
+        public long position() throws IOException
+        {
+            return file.position();
+        }
+
+        @Override
+        public FileChannel position(long newPosition) throws IOException
+        {
+            file.position(newPosition);
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException
+        {
+            return file.size();
+        }
+
+        @Override
+        public FileChannel truncate(long size) throws IOException
+        {
+            file.truncate(size);
+            return this;
+        }
+
+        @Override
+        public void force(boolean metaData) throws IOException
+        {
+            checkFailing();
+            file.force(metaData);
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException
+        {
+            return file.transferTo(position, count, target);
+        }
+
+        @Override
+        public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException
+        {
+            checkFailing();
+            return file.transferFrom(src, position, count);
+        }
+
+        @Override
+        public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException
+        {
+            return file.map(mode, position, size);
+        }
+
+        @Override
+        public FileLock lock(long position, long size, boolean shared) throws IOException
+        {
+            return file.lock(position, size, shared);
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared) throws IOException
+        {
+            return file.tryLock(position, size, shared);
+        }
+
+        @Override
+        protected void implCloseChannel() throws IOException
+        {
+            file.close();
+        }
+    }
+
     public static class CountingPageConsumer implements Consumer<Page>
     {
         private int count = 0;
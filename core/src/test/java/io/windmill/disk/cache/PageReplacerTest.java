@@ -0,0 +1,215 @@
+package io.windmill.disk.cache;
+
+import java.util.Arrays;
+
+import io.netty.buffer.Unpooled;
+
+import io.windmill.core.AbstractTest;
+import io.windmill.core.CPU;
+import io.windmill.utils.Futures;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PageReplacerTest extends AbstractTest
+{
+    @Test
+    public void testScanResistance() throws Throwable
+    {
+        CPU cpu = CPUs.get(0);
+        PageReplacer replacer = new PageReplacer(cpu, 10);
+        // nothing is ever loaded into the cache, so evicting its pages is a no-op
+        PageCache cache = new PageCache(cpu, PageCacheTest.generateTmpFile(PageCacheTest.createTmpFile(), 0));
+
+        Page[] pages = new Page[10], scan = new Page[10];
+
+        try
+        {
+            Futures.await(cpu.schedule(() -> {
+                for (int i = 0; i < pages.length; i++)
+                    replacer.add(pages[i] = createPage(cache, i, false));
+
+                // only the first few pages are re-used
+                for (int i = 0; i < 3; i++)
+                    pages[i].markAccessed();
+
+                // and then there is a scan over the pages which are never going to be accessed again
+                for (int i = 0; i < scan.length; i++)
+                    replacer.add(scan[i] = createPage(cache, 100 + i, false));
+
+                // eviction is deferred until after the current task
+                Assert.assertEquals(20, replacer.size());
+                return null;
+            }));
+
+            Futures.await(cpu.schedule(() -> {
+                Assert.assertEquals(10, replacer.size());
+                Assert.assertEquals(10, replacer.getEvictions());
+
+                // re-used pages have been moved to the main queue and survived the scan
+                for (int i = 0; i < 3; i++)
+                    Assert.assertEquals(PageReplacer.MAIN, pages[i].queue);
+
+                for (int i = 3; i < pages.length; i++)
+                    Assert.assertEquals(PageReplacer.NONE, pages[i].queue);
+
+                // the oldest pages of the scan have been evicted, the rest are waiting in the small queue
+                for (int i = 0; i < scan.length; i++)
+                    Assert.assertEquals(i < 3 ? PageReplacer.NONE : PageReplacer.SMALL, scan[i].queue);
+
+                // page evicted recently is remembered by the ghost table, so it goes straight to the main queue
+                Page reloaded = createPage(cache, 102, false);
+                replacer.add(reloaded);
+                Assert.assertEquals(PageReplacer.MAIN, reloaded.queue);
+
+                // but the page which has never been seen before doesn't
+                Page fresh = createPage(cache, 1000, false);
+                replacer.add(fresh);
+                Assert.assertEquals(PageReplacer.SMALL, fresh.queue);
+
+                // shrinking the budget evicts right away, the main queue is not touched while small queue is over its share
+                replacer.setBudget(5);
+                Assert.assertEquals(5, replacer.size());
+                Assert.assertEquals(PageReplacer.MAIN, reloaded.queue);
+                Assert.assertEquals(PageReplacer.NONE, scan[3].queue);
+
+                return null;
+            }));
+        }
+        finally
+        {
+            Futures.await(cache.close());
+        }
+    }
+
+    @Test
+    public void testReadAhead() throws Throwable
+    {
+        CPU cpu = CPUs.get(0);
+        PageReplacer replacer = new PageReplacer(cpu, 1);
+        PageCache cache = new PageCache(cpu, PageCacheTest.generateTmpFile(PageCacheTest.createTmpFile(), 0));
+
+        Page readAhead = createPage(cache, 0, true);
+        Page loaded = createPage(cache, 1, false);
+
+        try
+        {
+            Futures.await(cpu.schedule(() -> {
+                replacer.add(readAhead);
+                replacer.add(loaded);
+
+                // the first read of the page loaded ahead of time is not a re-use
+                readAhead.markAccessed();
+                loaded.markAccessed();
+                return null;
+            }));
+
+            Futures.await(cpu.schedule(() -> {
+                Assert.assertEquals(1, replacer.size());
+                Assert.assertEquals(PageReplacer.NONE, readAhead.queue);
+                Assert.assertEquals(PageReplacer.SMALL, loaded.queue);
+
+                // pages removed by their caches are no longer tracked
+                replacer.remove(loaded);
+                Assert.assertEquals(0, replacer.size());
+                Assert.assertEquals(PageReplacer.NONE, loaded.queue);
+                return null;
+            }));
+        }
+        finally
+        {
+            Futures.await(cache.close());
+        }
+    }
+
+    @Test
+    public void testPinnedPages() throws Throwable
+    {
+        CPU cpu = CPUs.get(0);
+        PageReplacer replacer = new PageReplacer(cpu, 1);
+        PageCache cache = new PageCache(cpu, PageCacheTest.generateTmpFile(PageCacheTest.createTmpFile(), 0));
+
+        Page[] pages = new Page[3];
+
+        try
+        {
+            Futures.await(cpu.schedule(() -> {
+                for (int i = 0; i < pages.length; i++)
+                {
+                    pages[i] = createPage(cache, i, false);
+                    pages[i].pin();
+                    replacer.add(pages[i]);
+                }
+
+                return null;
+            }));
+
+            Futures.await(cpu.schedule(() -> {
+                // pages in use are never evicted, even if cache stays over its budget because of that
+                Assert.assertEquals(3, replacer.size());
+                Assert.assertEquals(0, replacer.getEvictions());
+
+                pages[1].unpin();
+                replacer.evictLater();
+                return null;
+            }));
+
+            Futures.await(cpu.schedule(() -> {
+                Assert.assertEquals(2, replacer.size());
+                Assert.assertEquals(PageReplacer.NONE, pages[1].queue);
+                Assert.assertEquals(PageReplacer.SMALL, pages[0].queue);
+                Assert.assertEquals(PageReplacer.SMALL, pages[2].queue);
+                return null;
+            }));
+        }
+        finally
+        {
+            Futures.await(cache.close());
+        }
+    }
+
+    @Test
+    public void testRebalance()
+    {
+        // nobody evicts, so budgets stay where they are
+        Assert.assertArrayEquals(new int[] { 100, 100 }, PageReplacer.rebalance(new int[] { 100, 100 }, new long[] { 0, 0 }));
+
+        int[] budgets = { 1000, 1000, 1000, 1000 };
+        long[] evictions = { 0, 0, 0, 5000 };
+
+        int[] rebalanced = PageReplacer.rebalance(budgets, evictions);
+        Assert.assertEquals(4000, Arrays.stream(rebalanced).sum());
+        Assert.assertTrue(rebalanced[3] > 1000);
+
+        for (int i = 0; i < 3; i++)
+        {
+            Assert.assertTrue(rebalanced[i] < 1000);
+            // moves only part of the way there
+            Assert.assertTrue(rebalanced[i] > 250);
+        }
+
+        // CPUs which don't evict keep a quarter of their fair share however long the imbalance lasts
+        for (int round = 0; round < 100; round++)
+            rebalanced = PageReplacer.rebalance(rebalanced, evictions);
+
+        Assert.assertEquals(4000, Arrays.stream(rebalanced).sum());
+        for (int i = 0; i < 3; i++)
+            Assert.assertTrue(rebalanced[i] >= 250);
+
+        try
+        {
+            PageReplacer.rebalance(new int[2], new long[3]);
+            Assert.fail();
+        }
+        catch (IllegalArgumentException e)
+        {
+            // expected
+        }
+    }
+
+    private static Page createPage(PageCache cache, int offset, boolean isReadAhead)
+    {
+        Page page = new Page(cache, offset, Unpooled.buffer(Page.PAGE_SIZE));
+        page.isReadAhead = isReadAhead;
+        return page;
+    }
+}
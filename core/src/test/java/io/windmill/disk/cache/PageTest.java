@@ -3,6 +3,8 @@ package io.windmill.disk.cache;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
 import java.util.concurrent.ThreadLocalRandom;
 
 import io.windmill.core.AbstractTest;
@@ -71,7 +73,7 @@ public class PageTest extends AbstractTest
             random.nextBytes(suffix);
 
             page.write((short) bytes.length, Unpooled.wrappedBuffer(suffix));
-            page.writeTo(file.getChannel(), true);
+            writeTo(page, file.getChannel());
 
             cache = new PageCache(CPUs.get(0), file.getChannel());
             Page extendedPage = Futures.await(cache.getOrCreate(0));
@@ -124,7 +126,7 @@ public class PageTest extends AbstractTest
             page.write((short) 1024, Unpooled.wrappedBuffer(independent));
             Assert.assertTrue(page.isDirty());
 
-            page.writeTo(file.getChannel(), true);
+            writeTo(page, file.getChannel());
             Assert.assertFalse(page.isDirty());
 
             cache = new PageCache(CPUs.get(0), file.getChannel());
@@ -180,6 +182,14 @@ public class PageTest extends AbstractTest
         }
     }
 
+    private static void writeTo(Page page, FileChannel file) throws IOException
+    {
+        WriteBack writeBack = new WriteBack(Collections.singletonList(page));
+        writeBack.writeTo(file, true, true);
+        // page is only marked clean once it has been written successfully
+        writeBack.complete();
+    }
+
     private static RandomAccessFile createTempFile(String prefix, String mode) throws IOException
     {
         File tmp = File.createTempFile(prefix, ".tmp");
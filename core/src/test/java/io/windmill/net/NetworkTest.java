@@ -0,0 +1,181 @@
+package io.windmill.net;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReference;
+
+import io.windmill.core.CPUSet;
+import io.windmill.core.Status;
+import io.windmill.core.Status.Flag;
+import io.windmill.net.io.InputStream;
+import io.windmill.net.io.OutputStream;
+import io.windmill.utils.IOUtils;
+
+import io.netty.buffer.ByteBuf;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class NetworkTest
+{
+    @Test
+    public void testSelectedKeySet() throws Exception
+    {
+        SelectedKeySet keys = new SelectedKeySet();
+        Selector selector = Selector.open();
+
+        try
+        {
+            List<SelectionKey> expected = new ArrayList<>();
+
+            // grows past the initial capacity
+            for (int i = 0; i < 2000; i++)
+            {
+                SelectionKey key = new DummyKey(selector);
+
+                Assert.assertTrue(keys.add(key));
+                expected.add(key);
+            }
+
+            Assert.assertFalse(keys.add(null));
+            Assert.assertEquals(expected.size(), keys.size());
+
+            List<SelectionKey> actual = new ArrayList<>();
+            keys.forEach(actual::add);
+            Assert.assertEquals(expected, actual);
+
+            keys.reset();
+
+            Assert.assertEquals(0, keys.size());
+            Assert.assertTrue(Arrays.stream(keys.keys).allMatch((k) -> k == null));
+        }
+        finally
+        {
+            selector.close();
+        }
+    }
+
+    @Test
+    public void testEchoWithIdleConnections() throws Throwable
+    {
+        CPUSet cpus = CPUSet.builder().addSocket(0).build();
+        cpus.start();
+
+        List<Socket> idle = new ArrayList<>();
+
+        try
+        {
+            cpus.get(0).listen(new InetSocketAddress("localhost", 31350), (c) -> {
+                InputStream input = c.getInput();
+                OutputStream output = c.getOutput();
+
+                // echo everything back as soon as it arrives
+                c.loop((cpu) -> input.read((buffer) -> Status.of(Flag.STOP, buffer.readBytes(buffer.readableBytes())))
+                                     .flatMap((ByteBuf bytes) -> output.writeAndFlush(bytes)));
+            }, Throwable::printStackTrace);
+
+            for (int i = 0; i < 64; i++)
+                idle.add(new Socket("localhost", 31350));
+
+            try (Socket client = new Socket("localhost", 31350))
+            {
+                // large enough to exceed socket buffers, so connection is both readable and writable at the same time
+                byte[] payload = new byte[4 * 1024 * 1024];
+                ThreadLocalRandom.current().nextBytes(payload);
+
+                AtomicReference<Throwable> failure = new AtomicReference<>();
+                Thread writer = new Thread(() -> {
+                    try
+                    {
+                        DataOutputStream output = new DataOutputStream(client.getOutputStream());
+                        output.write(payload);
+                        output.flush();
+                    }
+                    catch (Throwable e)
+                    {
+                        failure.set(e);
+                    }
+                });
+
+                writer.start();
+
+                byte[] response = new byte[payload.length];
+                new DataInputStream(client.getInputStream()).readFully(response);
+
+                writer.join();
+
+                Assert.assertNull(failure.get());
+                Assert.assertArrayEquals(payload, response);
+            }
+        }
+        finally
+        {
+            idle.forEach(IOUtils::closeQuietly);
+            cpus.halt();
+        }
+    }
+
+    @Test
+    public void testSelectorIsOptimized()
+    {
+        Network network = new Network(null);
+
+        try
+        {
+            Assert.assertTrue(network.isOptimized());
+            Assert.assertTrue(network.getSelector().selectedKeys() instanceof SelectedKeySet);
+        }
+        finally
+        {
+            network.close();
+        }
+    }
+
+    private static class DummyKey extends java.nio.channels.spi.AbstractSelectionKey
+    {
+        private final Selector selector;
+
+        DummyKey(Selector selector)
+        {
+            this.selector = selector;
+        }
+
+        @Override
+        public java.nio.channels.SelectableChannel channel()
+        {
+            return null;
+        }
+
+        @Override
+        public Selector selector()
+        {
+            return selector;
+        }
+
+        @Override
+        public int interestOps()
+        {
+            return 0;
+        }
+
+        @Override
+        public SelectionKey interestOps(int ops)
+        {
+            return this;
+        }
+
+        @Override
+        public int readyOps()
+        {
+            return 0;
+        }
+    }
+}
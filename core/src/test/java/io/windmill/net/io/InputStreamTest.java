@@ -0,0 +1,147 @@
+package io.windmill.net.io;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.CRC32;
+
+import io.windmill.core.CPUSet;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class InputStreamTest
+{
+    @Test
+    public void testAdaptiveReceiveSizer()
+    {
+        AdaptiveReceiveSizer sizer = new AdaptiveReceiveSizer();
+        Assert.assertEquals(AdaptiveReceiveSizer.INITIAL_SIZE, sizer.nextSize());
+
+        // reads which fill up the whole buffer grow it right away
+        for (int i = 0; i < 10; i++)
+            sizer.record(sizer.nextSize());
+
+        Assert.assertEquals(AdaptiveReceiveSizer.MAX_SIZE, sizer.nextSize());
+
+        // single small read doesn't shrink it
+        sizer.record(1);
+        Assert.assertEquals(AdaptiveReceiveSizer.MAX_SIZE, sizer.nextSize());
+
+        // but consecutive ones do, down to the minimum
+        for (int i = 0; i < 200; i++)
+            sizer.record(1);
+
+        Assert.assertEquals(AdaptiveReceiveSizer.MIN_SIZE, sizer.nextSize());
+    }
+
+    @Test
+    public void testLargeReads() throws Throwable
+    {
+        CPUSet cpus = CPUSet.builder().addSocket(0).build();
+        cpus.start();
+
+        try
+        {
+            cpus.get(0).listen(new InetSocketAddress("localhost", 31351), (c) -> {
+                InputStream input = c.getInput();
+                OutputStream output = c.getOutput();
+
+                c.loop((cpu) -> input.readInt().flatMap(input::read).flatMap((message) -> {
+                    byte[] bytes = new byte[message.readableBytes()];
+                    message.readBytes(bytes);
+
+                    CRC32 checksum = new CRC32();
+                    checksum.update(bytes);
+
+                    return output.writeLong(checksum.getValue()).flush();
+                }));
+            }, Throwable::printStackTrace);
+
+            try (Socket client = new Socket("localhost", 31351))
+            {
+                DataInputStream input = new DataInputStream(client.getInputStream());
+                DataOutputStream output = new DataOutputStream(client.getOutputStream());
+
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+
+                // mix of messages smaller and larger than receive buffers, so buffers grow and shrink
+                for (int size : new int[] { 1, 100, 64 * 1024, 1024 * 1024, 10, 300 * 1024, 3 })
+                {
+                    byte[] message = new byte[size];
+                    random.nextBytes(message);
+
+                    CRC32 checksum = new CRC32();
+                    checksum.update(message);
+
+                    output.writeInt(size);
+                    output.write(message);
+                    output.flush();
+
+                    Assert.assertEquals(checksum.getValue(), input.readLong());
+                }
+            }
+        }
+        finally
+        {
+            cpus.halt();
+        }
+    }
+
+    @Test
+    public void testPrimitiveReads() throws Throwable
+    {
+        CPUSet cpus = CPUSet.builder().addSocket(0).build();
+        cpus.start();
+
+        try
+        {
+            cpus.get(0).listen(new InetSocketAddress("localhost", 31355), (c) -> {
+                InputStream input = c.getInput();
+                OutputStream output = c.getOutput();
+
+                // echo the values back, every record is 27 bytes, so values keep crossing the boundaries of receive buffers
+                c.loop((cpu) -> input.readByte().flatMap((b) -> input.readShort().flatMap((s) -> input.readInt().flatMap((i) ->
+                                input.readLong().flatMap((l) -> input.readFloat().flatMap((f) -> input.readDouble().flatMap((d) ->
+                                output.writeBytes(new byte[] { b }).writeShort(s).writeInt(i).writeLong(l).writeFloat(f).writeDouble(d).flush())))))));
+            }, Throwable::printStackTrace);
+
+            try (Socket client = new Socket("localhost", 31355))
+            {
+                DataInputStream input = new DataInputStream(client.getInputStream());
+                DataOutputStream output = new DataOutputStream(new java.io.BufferedOutputStream(client.getOutputStream()));
+
+                int numRecords = 10000;
+
+                // sent in bulk, so the server receives many records with a single read
+                for (int i = 0; i < numRecords; i++)
+                {
+                    output.writeByte(i);
+                    output.writeShort(i);
+                    output.writeInt(i);
+                    output.writeLong(i);
+                    output.writeFloat(i);
+                    output.writeDouble(i);
+                }
+
+                output.flush();
+
+                for (int i = 0; i < numRecords; i++)
+                {
+                    Assert.assertEquals((byte) i, input.readByte());
+                    Assert.assertEquals((short) i, input.readShort());
+                    Assert.assertEquals(i, input.readInt());
+                    Assert.assertEquals(i, input.readLong());
+                    Assert.assertEquals(i, input.readFloat(), 0.0);
+                    Assert.assertEquals(i, input.readDouble(), 0.0);
+                }
+            }
+        }
+        finally
+        {
+            cpus.halt();
+        }
+    }
+}
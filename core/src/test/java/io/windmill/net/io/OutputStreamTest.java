@@ -0,0 +1,204 @@
+package io.windmill.net.io;
+
+import java.io.DataInputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import io.windmill.core.CPUSet;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class OutputStreamTest
+{
+    private static final int NUM_SMALL = 1000;
+    private static final int NUM_LARGE = 200;
+    private static final int LARGE_SIZE = 2 * OutputStream.COALESCE_THRESHOLD;
+    private static final int BULK_SIZE = 4 * 1024 * 1024;
+    private static final int FILE_SIZE = 64 * 1024;
+
+    @Test
+    public void testCoalescedAndGatheringWrites() throws Throwable
+    {
+        java.io.File tmp = java.io.File.createTempFile("output-stream-", ".db");
+        tmp.deleteOnExit();
+
+        try (RandomAccessFile file = new RandomAccessFile(tmp, "rw"))
+        {
+            for (int i = 0; i < FILE_SIZE; i++)
+                file.write(pattern(i));
+        }
+
+        CPUSet cpus = CPUSet.builder().addSocket(0).build();
+        cpus.start();
+
+        AtomicLong bulkWritten = new AtomicLong(-1);
+        AtomicLong fileWritten = new AtomicLong(-1);
+        CountDownLatch isFlushed = new CountDownLatch(1);
+
+        try (RandomAccessFile file = new RandomAccessFile(tmp, "r"))
+        {
+            FileChannel fileChannel = file.getChannel();
+
+            cpus.get(0).listen(new InetSocketAddress("localhost", 31352), (c) -> {
+                OutputStream output = c.getOutput();
+
+                // small writes are coalesced together
+                for (int i = 0; i < NUM_SMALL; i++)
+                    output.writeShort((short) i).writeInt(i).writeLong(i).writeFloat(i).writeDouble(i).writeBytes(new byte[] { (byte) i });
+
+                // more large buffers than fit into a single gathering write
+                for (int i = 0; i < NUM_LARGE; i++)
+                    output.writeBytes(patternBuffer(LARGE_SIZE)).writeInt(i);
+
+                // more bytes than socket can take at once, so the rest is written once it becomes writable
+                output.writeAndFlush(patternBuffer(BULK_SIZE)).onSuccess(bulkWritten::set);
+
+                output.writeInt(FILE_SIZE);
+                output.transferFrom(fileChannel, 0, FILE_SIZE).onSuccess(fileWritten::set);
+
+                output.writeLong(Long.MAX_VALUE).flush().onSuccess((v) -> isFlushed.countDown());
+            }, Throwable::printStackTrace);
+
+            try (Socket client = new Socket("localhost", 31352))
+            {
+                DataInputStream input = new DataInputStream(client.getInputStream());
+
+                // let the socket buffers fill up first
+                Thread.sleep(200);
+
+                for (int i = 0; i < NUM_SMALL; i++)
+                {
+                    Assert.assertEquals((short) i, input.readShort());
+                    Assert.assertEquals(i, input.readInt());
+                    Assert.assertEquals(i, input.readLong());
+                    Assert.assertEquals(i, input.readFloat(), 0.0);
+                    Assert.assertEquals(i, input.readDouble(), 0.0);
+                    Assert.assertEquals((byte) i, input.readByte());
+                }
+
+                for (int i = 0; i < NUM_LARGE; i++)
+                {
+                    assertPattern(input, LARGE_SIZE);
+                    Assert.assertEquals(i, input.readInt());
+                }
+
+                assertPattern(input, BULK_SIZE);
+
+                Assert.assertEquals(FILE_SIZE, input.readInt());
+                assertPattern(input, FILE_SIZE);
+
+                Assert.assertEquals(Long.MAX_VALUE, input.readLong());
+
+                Assert.assertTrue(isFlushed.await(5, TimeUnit.SECONDS));
+                Assert.assertEquals(BULK_SIZE, bulkWritten.get());
+                Assert.assertEquals(FILE_SIZE, fileWritten.get());
+            }
+        }
+        finally
+        {
+            cpus.halt();
+        }
+    }
+
+    @Test
+    public void testWatermarks() throws Throwable
+    {
+        CPUSet cpus = CPUSet.builder().addSocket(0).build();
+        cpus.start();
+
+        AtomicReference<String> states = new AtomicReference<>();
+        CountDownLatch isWritable = new CountDownLatch(1);
+
+        try
+        {
+            cpus.get(0).listen(new InetSocketAddress("localhost", 31353), (c) -> {
+                OutputStream output = c.getOutput();
+                StringBuilder sb = new StringBuilder();
+
+                output.setWriteWatermarks(LARGE_SIZE, 2 * LARGE_SIZE);
+                sb.append(output.isWritable()).append(',');
+
+                output.writeBytes(patternBuffer(LARGE_SIZE)).writeBytes(patternBuffer(LARGE_SIZE));
+                sb.append(output.isWritable()).append(',');
+
+                // goes above the high watermark even before it's flushed
+                output.writeInt(0);
+                sb.append(output.isWritable()).append(',');
+
+                // client is not reading yet, so most of it stays queued
+                output.writeAndFlush(patternBuffer(BULK_SIZE));
+                sb.append(output.isWritable()).append(',').append(output.getQueuedBytes() > 2 * LARGE_SIZE);
+
+                output.awaitWritable().onSuccess((v) -> {
+                    if (output.isWritable() && output.getQueuedBytes() <= LARGE_SIZE)
+                        isWritable.countDown();
+                });
+
+                states.set(sb.toString());
+            }, Throwable::printStackTrace);
+
+            try (Socket client = new Socket("localhost", 31353))
+            {
+                DataInputStream input = new DataInputStream(client.getInputStream());
+
+                Thread.sleep(200);
+                Assert.assertEquals("true,true,false,false,true", states.get());
+                Assert.assertEquals(1, isWritable.getCount());
+
+                assertPattern(input, LARGE_SIZE);
+                assertPattern(input, LARGE_SIZE);
+                Assert.assertEquals(0, input.readInt());
+                assertPattern(input, BULK_SIZE);
+
+                Assert.assertTrue(isWritable.await(5, TimeUnit.SECONDS));
+            }
+
+            try
+            {
+                new OutputStream(cpus.get(0), null, null).setWriteWatermarks(10, 5);
+                Assert.fail();
+            }
+            catch (IllegalArgumentException e)
+            {
+                // expected
+            }
+        }
+        finally
+        {
+            cpus.halt();
+        }
+    }
+
+    private static byte pattern(int i)
+    {
+        return (byte) (i * 31);
+    }
+
+    private static ByteBuf patternBuffer(int size)
+    {
+        ByteBuf buffer = Unpooled.buffer(size);
+        for (int i = 0; i < size; i++)
+            buffer.writeByte(pattern(i));
+
+        return buffer;
+    }
+
+    private static void assertPattern(DataInputStream input, int size) throws Exception
+    {
+        byte[] bytes = new byte[size];
+        input.readFully(bytes);
+
+        for (int i = 0; i < size; i++)
+            Assert.assertEquals(pattern(i), bytes[i]);
+    }
+}
@@ -7,13 +7,10 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.TimeUnit;
 
 import io.windmill.core.CPU;
 import io.windmill.core.CPUSet;
 import io.windmill.core.Future;
-import io.windmill.core.Status;
-import io.windmill.core.Status.Flag;
 import io.windmill.disk.File;
 import io.windmill.disk.FileContext;
 import io.windmill.net.io.InputStream;
@@ -45,9 +42,24 @@ public class KVStore
 
         cpus.start();
 
+        start(cpus, new InetSocketAddress("127.0.0.1", 31337));
+
+        Thread.currentThread().join();
+        System.exit(1);
+    }
+
+    /**
+     * Start serving requests on the given address, first CPU of the set is listening
+     * for connections and every CPU is assigned a bucket of keys.
+     *
+     * @param cpus The set of (already started) CPUs to run the store on.
+     * @param address The address to listen for client connections on.
+     */
+    public static void start(CPUSet cpus, InetSocketAddress address)
+    {
         AppConfig config = new AppConfig(cpus);
 
-        cpus.get(0).listen(new InetSocketAddress("127.0.0.1", 31337), (channel) -> {
+        cpus.get(0).listen(address, (channel) -> {
             InputStream  in  = channel.getInput();
             OutputStream out = channel.getOutput();
 
@@ -59,9 +71,6 @@ public class KVStore
                                                                .writeBytes(response)
                                                                .flush()));
         }, Throwable::printStackTrace);
-
-        Thread.currentThread().join();
-        System.exit(1);
     }
 
     private static class AppConfig
@@ -128,9 +137,8 @@ public class KVStore
             this.cpu = cpu;
             this.store = new HashMap<>();
             this.commitLog = cpu.open(commitLogPath, "rw");
+            // dirty pages of the commit log are written back in the background by the CPU
             this.currentCLContext = commitLog.flatMap((file) -> file.seek(0));
-            this.cpu.repeat((bucketCPU) -> cpu.sleep(1, TimeUnit.SECONDS, () -> commitLog.map(File::sync))
-                                                           .map((numFlushed) -> Status.of(Flag.CONTINUE)));
         }
 
         public Future<ByteBuf> put(Put put)
@@ -148,7 +156,8 @@ public class KVStore
         {
             return cpu.schedule(() -> {
                 ByteBuf value = store.get(get.key);
-                return value == null ? Unpooled.EMPTY_BUFFER : value;
+                // output stream takes ownership of the response, so it gets its own view (and reference) of the stored value
+                return value == null ? Unpooled.EMPTY_BUFFER : value.duplicate().retain();
             });
         }
     }
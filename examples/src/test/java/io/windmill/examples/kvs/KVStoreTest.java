@@ -0,0 +1,49 @@
+package io.windmill.examples.kvs;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import io.windmill.core.CPUSet;
+import io.windmill.utils.Futures;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class KVStoreTest
+{
+    @Test
+    public void testRepeatedGet() throws Throwable
+    {
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", 31402);
+
+        CPUSet cpus = CPUSet.builder().addSocket(0).addSocket(1).build();
+        cpus.start();
+
+        try
+        {
+            KVStore.start(cpus, address);
+
+            KVClient.Client client = new KVClient.Client(cpus.get(1), address);
+            Futures.await(client.connect());
+
+            ByteBuf key = Unpooled.copiedBuffer("key".getBytes());
+            Futures.await(client.put(key.duplicate(), Unpooled.copyLong(42)));
+
+            // stored value is handed to the connection by every get, so it has to survive being written out
+            for (int i = 0; i < 3; i++)
+            {
+                ByteBuf value = Futures.await(client.get(key.duplicate()).within(10, TimeUnit.SECONDS));
+
+                Assert.assertEquals(8, value.readableBytes());
+                Assert.assertEquals(42, value.readLong());
+            }
+        }
+        finally
+        {
+            cpus.halt();
+        }
+    }
+}